@@ -29,6 +29,9 @@ dependencies {
 
     // Customise antlr4 version, for buildscript
     antlr("org.antlr:antlr4:4.13.1")
+
+    // Bytecode generation for the block compiler
+    implementation("org.ow2.asm:asm:9.6")
 }
 
 publishing {
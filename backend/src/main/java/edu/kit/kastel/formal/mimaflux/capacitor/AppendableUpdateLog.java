@@ -0,0 +1,50 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * {@link UpdateLog} that is being recorded.
+ *
+ * Updates are added one by one, {@link #commit()} closes a step.
+ */
+public interface AppendableUpdateLog extends UpdateLog {
+
+    /**
+     * Recordings of up to this many steps are kept on the heap, longer ones
+     * go to a memory-mapped file.
+     */
+    long MAX_MEMORY_STEPS = 1 << 21;
+
+    /**
+     * Create a log suitable for recording the given number of steps.
+     */
+    static AppendableUpdateLog create(long maxSteps) {
+        if (maxSteps <= MAX_MEMORY_STEPS) {
+            return new MemoryUpdateLog();
+        }
+        try {
+            return MappedUpdateLog.createTemporary();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void add(int addr, int oldValue, int newValue);
+
+    void commit();
+}
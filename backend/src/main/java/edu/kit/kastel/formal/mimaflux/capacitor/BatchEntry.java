@@ -0,0 +1,30 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.List;
+
+/**
+ * An entry of a {@link BatchManifest}.
+ *
+ * @param id      the name of the entry in the results
+ * @param program the file name of the program
+ * @param spec    the file name of the spec file, null to run the program
+ *                once without test cases
+ * @param sets    values set before every run, as addr=val
+ * @param tests   values checked after every run, as addr=val
+ */
+public record BatchEntry(String id, String program, String spec, List<String> sets, List<String> tests) {
+}
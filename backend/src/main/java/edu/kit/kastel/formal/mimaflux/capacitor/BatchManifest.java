@@ -0,0 +1,231 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The entries of a batch run, read from a file one at a time.
+ *
+ * Files ending in .jsonl or .json have one JSON object per line with the
+ * members "id", "program", "spec", "set" and "test". Other files are CSV
+ * with a header line naming the same columns in any order. Only "program"
+ * is required. "set" and "test" are lists of addr=val items, in CSV
+ * separated by semicolons, which cannot occur in an item. The id defaults
+ * to the line number. Relative file names are resolved against the
+ * directory of the manifest. Empty lines are skipped.
+ */
+public final class BatchManifest implements Closeable {
+
+    private static final List<String> COLUMNS = List.of("id", "program", "spec", "set", "test");
+
+    private final BufferedReader reader;
+    private final Path directory;
+    private final boolean json;
+    // the CSV column of each of COLUMNS, -1 if missing
+    private int[] columns;
+    private int lineNumber;
+
+    private BatchManifest(BufferedReader reader, Path directory, boolean json) {
+        this.reader = reader;
+        this.directory = directory;
+        this.json = json;
+    }
+
+    public static BatchManifest open(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        Path directory = file.toAbsolutePath().getParent();
+        return new BatchManifest(Files.newBufferedReader(file), directory,
+                name.endsWith(".jsonl") || name.endsWith(".json"));
+    }
+
+    /**
+     * @return the next entry, null at the end of the file
+     * @throws IllegalArgumentException if the line is malformed
+     * @throws IOException if the file cannot be read or the header of a CSV
+     * file is malformed
+     */
+    public BatchEntry next() throws IOException {
+        String line = nextLine();
+        if (!json && columns == null && line != null) {
+            readHeader(line);
+            line = nextLine();
+        }
+        if (line == null) {
+            return null;
+        }
+
+        try {
+            return json ? jsonEntry(line) : csvEntry(line);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + " of the manifest: " + e.getMessage(), e);
+        }
+    }
+
+    // the next line that is not blank, null at the end of the file
+    private String nextLine() throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            lineNumber++;
+            if (line == null) {
+                return null;
+            }
+        } while (line.isBlank());
+        return line;
+    }
+
+    private BatchEntry jsonEntry(String line) {
+        if (!(Json.parse(line) instanceof Map<?, ?> object)) {
+            throw new IllegalArgumentException("JSON object expected");
+        }
+        return entry(object, Integer.toString(lineNumber), directory);
+    }
+
+    /**
+     * Read an entry from the members of a JSON object as in a manifest.
+     *
+     * @param defaultId the id if there is no member "id"
+     * @param directory against which relative file names are resolved
+     * @throws IllegalArgumentException if a member is malformed
+     */
+    static BatchEntry entry(Map<?, ?> object, String defaultId, Path directory) {
+        return entry(string(object, "id"), string(object, "program"), string(object, "spec"),
+                items(object.get("set")), items(object.get("test")), defaultId, directory);
+    }
+
+    private static String string(Map<?, ?> object, String name) {
+        Object value = object.get(name);
+        if (value != null && !(value instanceof String)) {
+            throw new IllegalArgumentException("Member " + name + " must be a string");
+        }
+        return (String) value;
+    }
+
+    private static List<String> items(Object value) {
+        if (value == null) {
+            return List.of();
+        }
+        if (value instanceof String string) {
+            return split(string);
+        }
+        if (!(value instanceof List<?>)) {
+            throw new IllegalArgumentException("Members set and test must be strings or lists");
+        }
+        List<String> result = new ArrayList<>();
+        for (Object item : (List<?>) value) {
+            result.add(String.valueOf(item));
+        }
+        return result;
+    }
+
+    // a broken header fails the whole manifest, not just its line
+    private void readHeader(String line) throws IOException {
+        List<String> header;
+        try {
+            header = parseCsv(line).stream().map(String::strip).toList();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed header of the manifest: " + e.getMessage(), e);
+        }
+        int[] found = new int[COLUMNS.size()];
+        for (int i = 0; i < COLUMNS.size(); i++) {
+            found[i] = header.indexOf(COLUMNS.get(i));
+        }
+        if (found[1] < 0) {
+            throw new IOException("Column program missing in the header of the manifest");
+        }
+        columns = found;
+    }
+
+    private BatchEntry csvEntry(String line) {
+        List<String> cells = parseCsv(line);
+        String[] values = new String[COLUMNS.size()];
+        for (int i = 0; i < values.length; i++) {
+            if (columns[i] >= 0 && columns[i] < cells.size() && !cells.get(columns[i]).isBlank()) {
+                values[i] = cells.get(columns[i]).strip();
+            }
+        }
+        return entry(values[0], values[1], values[2], split(values[3]), split(values[4]),
+                Integer.toString(lineNumber), directory);
+    }
+
+    private static BatchEntry entry(String id, String program, String spec, List<String> sets, List<String> tests,
+                                    String defaultId, Path directory) {
+        if (program == null) {
+            throw new IllegalArgumentException("No program given");
+        }
+        return new BatchEntry(id != null ? id : defaultId, directory.resolve(program).toString(),
+                spec != null ? directory.resolve(spec).toString() : null, sets, tests);
+    }
+
+    private static List<String> split(String items) {
+        if (items == null) {
+            return List.of();
+        }
+        return Arrays.stream(items.split(";")).map(String::strip).filter(item -> !item.isEmpty()).toList();
+    }
+
+    // fields may be quoted with ", a doubled " stands for itself
+    private static List<String> parseCsv(String line) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    cell.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    cell.append(c);
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote");
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+
+    /**
+     * @return the number of the line read last, counting from 1
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.nio.file.NoSuchFileException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of a {@link BatchEntry}.
+ *
+ * @param id         the id of the entry
+ * @param status     the overall outcome
+ * @param steps      the steps executed by all runs
+ * @param haltReason why the run stopped, null if the entry has a spec file
+ *                   or could not be run
+ * @param tests      the number of runs, i.e. test cases
+ * @param failures   the failed runs and their first violated check
+ * @param error      why the entry could not be run, null if it has been run
+ */
+public record BatchResult(String id, Status status, long steps, RunResult.HaltReason haltReason, int tests,
+                          List<String> failures, String error) {
+
+    public enum Status {
+        /** All runs have passed all checks. */
+        PASSED,
+        /** A run has failed a check or stopped with an exception. */
+        FAILED,
+        /** The program or spec file could not be read or parsed. */
+        ERROR
+    }
+
+    static BatchResult error(String id, Exception exception) {
+        String message = exception.getMessage() != null ? exception.getMessage() : exception.toString();
+        if (exception instanceof NoSuchFileException) {
+            message = "File not found: " + message;
+        }
+        return new BatchResult(id, Status.ERROR, 0, null, 0, List.of(), message);
+    }
+
+    /**
+     * @return the result as JSON object on a single line, members that are
+     * null are left out
+     */
+    public String toJson() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("id", id);
+        values.put("status", status.name());
+        values.put("steps", steps);
+        if (haltReason != null) {
+            values.put("haltReason", haltReason.name());
+        }
+        values.put("tests", (long) tests);
+        values.put("failures", failures);
+        if (error != null) {
+            values.put("error", error);
+        }
+        return Json.write(values);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs the entries of a manifest in one process, see {@link BatchManifest}.
+ *
+ * The entries run concurrently on a fixed number of threads, each entry
+ * runs its test cases one after the other. Results are passed on in the
+ * order of the manifest as soon as all earlier ones are done. At most two
+ * entries per thread are read ahead, so that memory does not grow with the
+ * size of the manifest. Assembled programs and parsed spec files are shared
+ * between entries through their caches. A malformed line of the manifest
+ * gives an error result with the line number as id.
+ */
+public class BatchRunner {
+
+    // the messages of the runs are not needed
+    static final Logger SILENT = new Logger() {
+        @Override
+        public void log(LogProducer logProducer, Level level) {
+        }
+    };
+
+    private final long maxSteps;
+    private final Executor.Engine engine;
+    private final int threads;
+    private boolean cycleDetection;
+    private long timeoutMillis;
+
+    /**
+     * @param threads the number of entries run concurrently, 0 for the
+     *                number of available processors
+     */
+    public BatchRunner(long maxSteps, Executor.Engine engine, int threads) {
+        this.maxSteps = maxSteps;
+        this.engine = engine;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * See {@link MimaVerification#setCycleDetection(boolean)}.
+     */
+    public void setCycleDetection(boolean cycleDetection) {
+        this.cycleDetection = cycleDetection;
+    }
+
+    /**
+     * Stop the runs of an entry once it has taken the given time, see
+     * {@link MimaVerification#setDeadline(long)}.
+     *
+     * @param timeoutMillis the time per entry, 0 for no limit
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Run all entries of the manifest.
+     *
+     * @param results called with the result of every entry in the order of
+     *                the manifest, on the calling thread
+     * @return the number of entries that have not passed
+     */
+    public int run(BatchManifest manifest, Consumer<BatchResult> results) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<BatchResult>> pending = new ArrayDeque<>();
+            int notPassed = 0;
+            while (true) {
+                Future<BatchResult> future;
+                try {
+                    BatchEntry entry = manifest.next();
+                    if (entry == null) {
+                        break;
+                    }
+                    future = pool.submit(() -> run(entry));
+                } catch (IllegalArgumentException e) {
+                    future = CompletableFuture.completedFuture(
+                            BatchResult.error(Integer.toString(manifest.getLineNumber()), e));
+                }
+                if (pending.size() >= 2 * threads) {
+                    notPassed += report(pending.poll(), results);
+                }
+                pending.add(future);
+            }
+            while (!pending.isEmpty()) {
+                notPassed += report(pending.poll(), results);
+            }
+            return notPassed;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static int report(Future<BatchResult> future, Consumer<BatchResult> results)
+            throws InterruptedException {
+        BatchResult result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            // run(BatchEntry) catches all exceptions
+            throw new IllegalStateException(e.getCause());
+        }
+        results.accept(result);
+        return result.status() == BatchResult.Status.PASSED ? 0 : 1;
+    }
+
+    /**
+     * Run a single entry on the calling thread.
+     */
+    public BatchResult run(BatchEntry entry) {
+        MimaVerification verification = new MimaVerification(SILENT, maxSteps, List.of(), engine, 1);
+        verification.setCycleDetection(cycleDetection);
+        if (timeoutMillis > 0) {
+            verification.setDeadline(System.nanoTime() + timeoutMillis * 1_000_000);
+        }
+        List<TestResult> testResults;
+        try {
+            if (entry.spec() == null) {
+                testResults = List.of(verification.runProgram(entry.program(), entry.sets(), entry.tests()));
+            } else {
+                testResults = verification.runTests(entry.spec(), entry.program(), entry.sets(), entry.tests());
+            }
+        } catch (Exception exception) {
+            return BatchResult.error(entry.id(), exception);
+        }
+
+        long steps = 0;
+        List<String> failures = new ArrayList<>();
+        for (TestResult testResult : testResults) {
+            steps += testResult.steps();
+            if (!testResult.passed()) {
+                failures.add(entry.spec() == null ? testResult.failure()
+                        : testResult.name() + ": " + testResult.failure());
+            }
+        }
+        RunResult.HaltReason haltReason = entry.spec() == null ? testResults.get(0).haltReason() : null;
+        return new BatchResult(entry.id(), failures.isEmpty() ? BatchResult.Status.PASSED : BatchResult.Status.FAILED,
+                steps, haltReason, testResults.size(), failures, null);
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles hot basic blocks of a Mima program into JVM methods.
+ *
+ * The executor reports every block entry using {@link #enter(int)}. Once an
+ * address has been entered {@link #HOT_THRESHOLD} times, the basic block
+ * starting there is translated into a hidden class implementing
+ * {@link CompiledBlock}, which HotSpot can then JIT like any other code.
+ *
+ * A block extends up to and including the next jump (JMP, JMN, JMS, JIND),
+ * it stops before HALT and illegal instructions. Writes into the range of
+ * a compiled block (self-modifying code) discard that block and the running
+ * block is left right after the write. Blocks that are discarded too often
+ * are not compiled again.
+ */
+class BlockCompiler {
+
+    static final int HOT_THRESHOLD = 1000;
+    private static final int MAX_BLOCK_LENGTH = 256;
+    private static final int MAX_DEOPTIMIZATIONS = 3;
+    private static final int NEVER = -1;
+
+    private static final String FRAME = Type.getInternalName(BlockFrame.class);
+    private static final String PACKAGE_PREFIX =
+            BlockCompiler.class.getPackageName().replace('.', '/') + "/CompiledBlock_";
+
+    record Block(int start, int length, CompiledBlock code) {
+    }
+
+    private final State state;
+    private final Lookup lookup = MethodHandles.lookup();
+
+    private final int[][] entryCounts = new int[Constants.PAGE_COUNT][];
+    private final int[][] deoptimizations = new int[Constants.PAGE_COUNT][];
+    private final Block[][] blocks = new Block[Constants.PAGE_COUNT][];
+    // number of compiled blocks covering an address
+    private final int[][] coverage = new int[Constants.PAGE_COUNT][];
+    private final List<Block> compiled = new ArrayList<>();
+
+    private long compilations;
+    private long deoptimizationCount;
+
+    BlockCompiler(State state) {
+        this.state = state;
+    }
+
+    /**
+     * Called whenever execution enters a block at the given address.
+     *
+     * @return the compiled block starting there, null if there is none (yet)
+     */
+    Block enter(int addr) {
+        int page = addr >> Constants.PAGE_WIDTH;
+        int offset = addr & Constants.PAGE_MASK;
+        Block[] blockPage = blocks[page];
+        if (blockPage != null && blockPage[offset] != null) {
+            return blockPage[offset];
+        }
+        int[] counts = pageOf(entryCounts, addr);
+        int count = counts[offset];
+        if (count == NEVER) {
+            return null;
+        }
+        if (count < HOT_THRESHOLD) {
+            counts[offset] = count + 1;
+            return null;
+        }
+        Block block = compile(addr);
+        if (block == null) {
+            counts[offset] = NEVER;
+            return null;
+        }
+        if (blockPage == null) {
+            blockPage = new Block[Constants.PAGE_SIZE];
+            blocks[page] = blockPage;
+        }
+        blockPage[offset] = block;
+        compiled.add(block);
+        for (int i = 0; i < block.length(); i++) {
+            pageOf(coverage, addr + i)[(addr + i) & Constants.PAGE_MASK]++;
+        }
+        return block;
+    }
+
+    /**
+     * Called for every write to memory. Discards all compiled blocks that
+     * contain the address.
+     *
+     * @return true iff there had been such a block
+     */
+    boolean invalidate(int addr) {
+        int[] cov = coverage[addr >> Constants.PAGE_WIDTH];
+        if (cov == null || cov[addr & Constants.PAGE_MASK] == 0) {
+            return false;
+        }
+        for (int i = compiled.size() - 1; i >= 0; i--) {
+            Block block = compiled.get(i);
+            if (block.start() <= addr && addr < block.start() + block.length()) {
+                discard(block);
+                compiled.remove(i);
+            }
+        }
+        return true;
+    }
+
+    private void discard(Block block) {
+        int start = block.start();
+        blocks[start >> Constants.PAGE_WIDTH][start & Constants.PAGE_MASK] = null;
+        for (int i = 0; i < block.length(); i++) {
+            pageOf(coverage, start + i)[(start + i) & Constants.PAGE_MASK]--;
+        }
+        deoptimizationCount++;
+        int[] deopts = pageOf(deoptimizations, start);
+        int[] counts = pageOf(entryCounts, start);
+        if (++deopts[start & Constants.PAGE_MASK] >= MAX_DEOPTIMIZATIONS) {
+            counts[start & Constants.PAGE_MASK] = NEVER;
+        } else {
+            counts[start & Constants.PAGE_MASK] = 0;
+        }
+    }
+
+    private static int[] pageOf(int[][] table, int addr) {
+        int[] page = table[addr >> Constants.PAGE_WIDTH];
+        if (page == null) {
+            page = new int[Constants.PAGE_SIZE];
+            table[addr >> Constants.PAGE_WIDTH] = page;
+        }
+        return page;
+    }
+
+    private Block compile(int start) {
+        int[] instructions = new int[MAX_BLOCK_LENGTH];
+        int length = 0;
+        while (length < MAX_BLOCK_LENGTH && start + length < Constants.ADDRESS_RANGE) {
+            int decoded = InstructionCache.decode(state.get(start + length));
+            int handler = InstructionCache.handler(decoded);
+            if (handler == InstructionCache.HALT || handler == InstructionCache.ILLEGAL) {
+                break;
+            }
+            instructions[length++] = decoded;
+            if (isJump(handler)) {
+                break;
+            }
+        }
+        if (length == 0) {
+            return null;
+        }
+
+        byte[] bytes = generate(start, instructions, length);
+        try {
+            Lookup hidden = lookup.defineHiddenClass(bytes, true);
+            CompiledBlock code = (CompiledBlock) hidden.findConstructor(hidden.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+            compilations++;
+            return new Block(start, length, code);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot compile block at " + start, e);
+        }
+    }
+
+    private static boolean isJump(int handler) {
+        return handler == InstructionCache.JMP || handler == InstructionCache.JMN ||
+                handler == InstructionCache.JMS || handler == InstructionCache.JIND;
+    }
+
+    /*
+     * Generates
+     *   public void run(BlockFrame f) {
+     *       int accu = f.accu;
+     *       ... one section per instruction ...
+     *       f.accu = accu; f.iar = ...; f.steps += length;
+     *   }
+     * Writes leave the method early if BlockFrame.store reports that code
+     * has been modified.
+     */
+    private static byte[] generate(int start, int[] instructions, int length) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V17, Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, PACKAGE_PREFIX + start, null,
+                "java/lang/Object", new String[] { Type.getInternalName(CompiledBlock.class) });
+
+        MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "run", "(L" + FRAME + ";)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitFieldInsn(Opcodes.GETFIELD, FRAME, "accu", "I");
+        mv.visitVarInsn(Opcodes.ISTORE, 2);
+
+        boolean jumped = false;
+        for (int i = 0; i < length; i++) {
+            int address = start + i;
+            int next = (address + 1) & Constants.ADDRESS_MASK;
+            int arg = InstructionCache.operand(instructions[i]);
+            switch (InstructionCache.handler(instructions[i])) {
+                case InstructionCache.LDC -> {
+                    mv.visitLdcInsn(arg);
+                    mv.visitVarInsn(Opcodes.ISTORE, 2);
+                }
+                case InstructionCache.LDV -> {
+                    load(mv, arg);
+                    mv.visitVarInsn(Opcodes.ISTORE, 2);
+                }
+                case InstructionCache.STV -> {
+                    mv.visitVarInsn(Opcodes.ALOAD, 1);
+                    mv.visitLdcInsn(arg);
+                    storeAccu(mv, next, i + 1);
+                }
+                case InstructionCache.ADD -> binary(mv, arg, Opcodes.IADD);
+                case InstructionCache.AND -> binary(mv, arg, Opcodes.IAND);
+                case InstructionCache.OR -> binary(mv, arg, Opcodes.IOR);
+                case InstructionCache.XOR -> binary(mv, arg, Opcodes.IXOR);
+                case InstructionCache.EQL -> {
+                    // accu = (accu == mem[arg] ? -1 : 0) & VALUE_MASK
+                    Label equal = new Label();
+                    Label done = new Label();
+                    mv.visitVarInsn(Opcodes.ILOAD, 2);
+                    load(mv, arg);
+                    mv.visitJumpInsn(Opcodes.IF_ICMPEQ, equal);
+                    mv.visitInsn(Opcodes.ICONST_0);
+                    mv.visitVarInsn(Opcodes.ISTORE, 2);
+                    mv.visitJumpInsn(Opcodes.GOTO, done);
+                    mv.visitLabel(equal);
+                    mv.visitLdcInsn(Constants.VALUE_MASK);
+                    mv.visitVarInsn(Opcodes.ISTORE, 2);
+                    mv.visitLabel(done);
+                }
+                case InstructionCache.LDIV -> {
+                    mv.visitVarInsn(Opcodes.ALOAD, 1);
+                    load(mv, arg);
+                    mv.visitLdcInsn(Constants.ADDRESS_MASK);
+                    mv.visitInsn(Opcodes.IAND);
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME, "load", "(I)I", false);
+                    mv.visitVarInsn(Opcodes.ISTORE, 2);
+                }
+                case InstructionCache.STIV -> {
+                    mv.visitVarInsn(Opcodes.ALOAD, 1);
+                    load(mv, arg);
+                    mv.visitLdcInsn(Constants.ADDRESS_MASK);
+                    mv.visitInsn(Opcodes.IAND);
+                    storeAccu(mv, next, i + 1);
+                }
+                case InstructionCache.NOT -> {
+                    mv.visitVarInsn(Opcodes.ILOAD, 2);
+                    mv.visitInsn(Opcodes.ICONST_M1);
+                    mv.visitInsn(Opcodes.IXOR);
+                    mv.visitLdcInsn(Constants.VALUE_MASK);
+                    mv.visitInsn(Opcodes.IAND);
+                    mv.visitVarInsn(Opcodes.ISTORE, 2);
+                }
+                case InstructionCache.RAR -> {
+                    // accu = (accu >> 1) | ((accu & 1) << (VALUE_WIDTH - 1))
+                    mv.visitVarInsn(Opcodes.ILOAD, 2);
+                    mv.visitInsn(Opcodes.ICONST_1);
+                    mv.visitInsn(Opcodes.ISHR);
+                    mv.visitVarInsn(Opcodes.ILOAD, 2);
+                    mv.visitInsn(Opcodes.ICONST_1);
+                    mv.visitInsn(Opcodes.IAND);
+                    mv.visitLdcInsn(Constants.VALUE_WIDTH - 1);
+                    mv.visitInsn(Opcodes.ISHL);
+                    mv.visitInsn(Opcodes.IOR);
+                    mv.visitVarInsn(Opcodes.ISTORE, 2);
+                }
+                case InstructionCache.JMP -> {
+                    exit(mv, arg, i + 1);
+                    jumped = true;
+                }
+                case InstructionCache.JMN -> {
+                    Label notTaken = new Label();
+                    mv.visitVarInsn(Opcodes.ILOAD, 2);
+                    mv.visitLdcInsn(Constants.SIGNBIT);
+                    mv.visitInsn(Opcodes.IAND);
+                    mv.visitJumpInsn(Opcodes.IFEQ, notTaken);
+                    exit(mv, arg, i + 1);
+                    mv.visitLabel(notTaken);
+                    exit(mv, next, i + 1);
+                    jumped = true;
+                }
+                case InstructionCache.JMS -> {
+                    mv.visitVarInsn(Opcodes.ALOAD, 1);
+                    mv.visitLdcInsn(arg);
+                    mv.visitLdcInsn(address + 1);
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME, "store", "(II)Z", false);
+                    mv.visitInsn(Opcodes.POP);
+                    exit(mv, (arg + 1) & Constants.ADDRESS_MASK, i + 1);
+                    jumped = true;
+                }
+                case InstructionCache.JIND -> {
+                    // the target is computed, hence written to f.iar directly
+                    mv.visitVarInsn(Opcodes.ALOAD, 1);
+                    load(mv, arg);
+                    mv.visitLdcInsn(Constants.ADDRESS_MASK);
+                    mv.visitInsn(Opcodes.IAND);
+                    mv.visitFieldInsn(Opcodes.PUTFIELD, FRAME, "iar", "I");
+                    writeBack(mv, i + 1);
+                    mv.visitInsn(Opcodes.RETURN);
+                    jumped = true;
+                }
+                default -> throw new IllegalArgumentException("Cannot compile " + instructions[i]);
+            }
+        }
+        if (!jumped) {
+            exit(mv, (start + length) & Constants.ADDRESS_MASK, length);
+        }
+
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    // pushes f.load(addr)
+    private static void load(MethodVisitor mv, int addr) {
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitLdcInsn(addr);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME, "load", "(I)I", false);
+    }
+
+    // accu = (accu op f.load(addr)) & VALUE_MASK
+    private static void binary(MethodVisitor mv, int addr, int opcode) {
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        load(mv, addr);
+        mv.visitInsn(opcode);
+        mv.visitLdcInsn(Constants.VALUE_MASK);
+        mv.visitInsn(Opcodes.IAND);
+        mv.visitVarInsn(Opcodes.ISTORE, 2);
+    }
+
+    // expects frame and address on the stack, leaves if code has been modified
+    private static void storeAccu(MethodVisitor mv, int next, int steps) {
+        Label cont = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME, "store", "(II)Z", false);
+        mv.visitJumpInsn(Opcodes.IFEQ, cont);
+        exit(mv, next, steps);
+        mv.visitLabel(cont);
+    }
+
+    private static void exit(MethodVisitor mv, int iar, int steps) {
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitLdcInsn(iar);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, FRAME, "iar", "I");
+        writeBack(mv, steps);
+        mv.visitInsn(Opcodes.RETURN);
+    }
+
+    private static void writeBack(MethodVisitor mv, int steps) {
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, FRAME, "accu", "I");
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitFieldInsn(Opcodes.GETFIELD, FRAME, "steps", "J");
+        mv.visitLdcInsn((long) steps);
+        mv.visitInsn(Opcodes.LADD);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, FRAME, "steps", "J");
+    }
+
+    long getCompilations() {
+        return compilations;
+    }
+
+    long getDeoptimizations() {
+        return deoptimizationCount;
+    }
+}
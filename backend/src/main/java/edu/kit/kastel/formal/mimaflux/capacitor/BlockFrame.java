@@ -0,0 +1,72 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.Arrays;
+
+/**
+ * The registers passed into and out of a {@link CompiledBlock}, together
+ * with the memory accessors the generated code calls.
+ */
+class BlockFrame {
+
+    int accu;
+    int iar;
+    long steps;
+
+    private final State state;
+    private final InstructionCache cache;
+    private final BlockCompiler compiler;
+
+    // addresses written by the last block, only recorded for cross checks
+    private final boolean recordWrites;
+    private int[] written = new int[16];
+    private int writtenCount;
+
+    BlockFrame(State state, InstructionCache cache, BlockCompiler compiler, boolean recordWrites) {
+        this.state = state;
+        this.cache = cache;
+        this.compiler = compiler;
+        this.recordWrites = recordWrites;
+    }
+
+    int load(int addr) {
+        return state.get(addr);
+    }
+
+    /**
+     * @return true iff the write went into compiled code and the running
+     * block must be left
+     */
+    boolean store(int addr, int value) {
+        state.set(addr, value);
+        cache.invalidate(addr);
+        if (recordWrites) {
+            if (writtenCount == written.length) {
+                written = Arrays.copyOf(written, writtenCount * 2);
+            }
+            written[writtenCount++] = addr;
+        }
+        return compiler.invalidate(addr);
+    }
+
+    int[] getWritten() {
+        return Arrays.copyOf(written, writtenCount);
+    }
+
+    void clearWritten() {
+        writtenCount = 0;
+    }
+}
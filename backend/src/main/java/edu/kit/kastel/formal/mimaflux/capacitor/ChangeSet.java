@@ -0,0 +1,74 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+/**
+ * The changes of a timeline caused by a change of its position, see
+ * {@link TimelineListener}.
+ *
+ * It holds the memory addresses whose value has changed, each with its
+ * final value, and the new values of ACCU, IAR and the position. A change
+ * set is reused for the next change and must not be kept.
+ */
+public final class ChangeSet {
+
+    private final State state;
+    private int[] addresses;
+    private int size;
+    private long position;
+
+    ChangeSet(State state) {
+        this.state = state;
+    }
+
+    void reset(int[] addresses, int size, long position) {
+        this.addresses = addresses;
+        this.size = size;
+        this.position = position;
+    }
+
+    /**
+     * @return the number of changed memory addresses
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the i-th changed memory address
+     */
+    public int getAddress(int i) {
+        return addresses[i];
+    }
+
+    /**
+     * @return the value of the i-th changed memory address
+     */
+    public int getValue(int i) {
+        return state.get(addresses[i]);
+    }
+
+    public int getAccu() {
+        return state.get(State.ACCU);
+    }
+
+    public int getIAR() {
+        return state.get(State.IAR);
+    }
+
+    public long getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.Arrays;
+
+/**
+ * Periodic snapshots of the machine state taken while a timeline is recorded.
+ *
+ * Memory is snapshotted page-wise. Pages that have not been written since the
+ * previous checkpoint are shared with it, all-zero pages share one common
+ * page. Checkpoints are taken every {@link #getInterval()} steps. If there
+ * are too many of them or they exceed the memory budget, every second
+ * checkpoint is dropped and the interval is doubled.
+ */
+public class Checkpoints {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private static final int INITIAL_INTERVAL = 256;
+    private static final int MAX_CHECKPOINTS = 1024;
+    private static final int[] ZERO_PAGE = State.ZERO_PAGE;
+    private static final long PAGE_BYTES = 4L * Constants.PAGE_SIZE;
+    private static final long TABLE_BYTES = 4L * Constants.PAGE_COUNT + 32;
+
+    record Checkpoint(long step, int iar, int accu, int[][] pages, int freshPages) {
+        long byteSize() {
+            return TABLE_BYTES + freshPages * PAGE_BYTES;
+        }
+    }
+
+    private final long memoryBudget;
+    private int interval = INITIAL_INTERVAL;
+    private Checkpoint[] checkpoints = new Checkpoint[16];
+    private int count;
+    private long usedBytes;
+
+    // pages of the most recent capture, even if it has been thinned out since
+    private int[][] lastPages;
+
+    public Checkpoints(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public boolean isDue(long step) {
+        return step % interval == 0;
+    }
+
+    /**
+     * Take a snapshot of the state after the given step.
+     *
+     * @param dirtyPages bitset of the pages written since the last snapshot,
+     *                   all pages are taken into account for the first one.
+     */
+    public void capture(long step, State state, long[] dirtyPages) {
+        int[][] previous = lastPages;
+        int[][] pages = new int[Constants.PAGE_COUNT][];
+        for (int p = 0; p < Constants.PAGE_COUNT; p++) {
+            if (previous != null && (dirtyPages[p >> 6] & (1L << p)) == 0) {
+                pages[p] = previous[p];
+                continue;
+            }
+            int[] page = state.peekPage(p);
+            if (previous != null && (page == previous[p] || Arrays.equals(page, previous[p]))) {
+                pages[p] = previous[p];
+            } else if (page == ZERO_PAGE || Arrays.equals(page, ZERO_PAGE)) {
+                pages[p] = ZERO_PAGE;
+            } else {
+                // the state copies the page before writing to it again
+                pages[p] = state.sharePage(p);
+            }
+        }
+        int fresh = countFreshPages(pages, count == 0 ? null : checkpoints[count - 1].pages());
+
+        lastPages = pages;
+        if (count == checkpoints.length) {
+            checkpoints = Arrays.copyOf(checkpoints, count * 2);
+        }
+        Checkpoint checkpoint = new Checkpoint(step, state.get(State.IAR), state.get(State.ACCU), pages, fresh);
+        checkpoints[count++] = checkpoint;
+        usedBytes += checkpoint.byteSize();
+
+        while (count > 1 && (count > MAX_CHECKPOINTS || usedBytes > memoryBudget)) {
+            thinOut();
+        }
+    }
+
+    private void thinOut() {
+        int kept = 1;
+        usedBytes = checkpoints[0].byteSize();
+        for (int i = 2; i < count; i += 2) {
+            Checkpoint cp = checkpoints[i];
+            int fresh = countFreshPages(cp.pages(), checkpoints[kept - 1].pages());
+            cp = new Checkpoint(cp.step(), cp.iar(), cp.accu(), cp.pages(), fresh);
+            checkpoints[kept++] = cp;
+            usedBytes += cp.byteSize();
+        }
+        Arrays.fill(checkpoints, kept, count, null);
+        count = kept;
+        interval *= 2;
+    }
+
+    // pages not shared with the preceding checkpoint
+    private static int countFreshPages(int[][] pages, int[][] previous) {
+        int fresh = 0;
+        for (int p = 0; p < Constants.PAGE_COUNT; p++) {
+            if (pages[p] != ZERO_PAGE && (previous == null || pages[p] != previous[p])) {
+                fresh++;
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * @return the latest checkpoint at or before the given step
+     */
+    Checkpoint floor(long step) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (checkpoints[mid].step() <= step) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return checkpoints[lo];
+    }
+
+    /**
+     * @return the step of the latest checkpoint
+     */
+    public long lastStep() {
+        return checkpoints[count - 1].step();
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+}
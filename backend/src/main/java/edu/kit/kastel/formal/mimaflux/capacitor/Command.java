@@ -15,25 +15,54 @@
 package edu.kit.kastel.formal.mimaflux.capacitor;
 
 import edu.kit.kastel.formal.mimaflux.capacitor.generated.MimaAsmParser.CommandContext;
+import org.antlr.v4.runtime.CommonToken;
 import org.antlr.v4.runtime.Token;
 
+/**
+ * A command of the assembled program.
+ *
+ * The parse context is null for label definitions and for commands loaded
+ * from a saved trace ({@link TraceFile}) or the {@link ProgramCache}, the
+ * line of the mnemonic is therefore stored separately.
+ */
 public record Command(int address, String label, String instruction,
                       String labelArg, int valueArg,
-                      CommandContext ctx) {
-    public Command updateArg(int val) {
-        return new Command(address, label, instruction, labelArg, val, ctx);
+                      CommandContext ctx, int mnemonicLine) {
+
+    public Command(int address, String label, String instruction,
+                   String labelArg, int valueArg, CommandContext ctx) {
+        this(address, label, instruction, labelArg, valueArg, ctx, mnemonicLine(ctx));
     }
 
-    public int getMnemonicLine() {
-        if(ctx.mnemomicWith() == null) {
+    private static int mnemonicLine(CommandContext ctx) {
+        if (ctx == null) {
+            return 0;
+        } else if(ctx.mnemomicWith() == null) {
             return ctx.mnemomicWithout().getStart().getLine();
         } else {
             return ctx.mnemomicWith().getStart().getLine();
         }
     }
 
+    public Command updateArg(int val) {
+        return new Command(address, label, instruction, labelArg, val, ctx, mnemonicLine);
+    }
+
+    public int getMnemonicLine() {
+        return mnemonicLine;
+    }
+
+    /**
+     * @return the token of the mnemonic. Without a parse context, i.e. for
+     * commands read from a cache or trace file, a token of the mnemonic line
+     * that has no position within the line.
+     */
     public Token getMnemonic() {
-        if (ctx.mnemomicWith() != null) {
+        if (ctx == null) {
+            CommonToken token = new CommonToken(Token.INVALID_TYPE, instruction);
+            token.setLine(mnemonicLine);
+            return token;
+        } else if (ctx.mnemomicWith() != null) {
             return ctx.mnemomicWith().getStart();
         } else {
             return ctx.mnemomicWithout().getStart();
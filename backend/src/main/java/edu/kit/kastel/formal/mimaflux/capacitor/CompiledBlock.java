@@ -14,7 +14,13 @@
  */
 package edu.kit.kastel.formal.mimaflux.capacitor;
 
-@FunctionalInterface
-public interface BinaryIntFunction {
-    int apply(int operand1, int operand2);
+/**
+ * A basic block that has been compiled into a JVM method by
+ * {@link BlockCompiler}.
+ *
+ * Running the block reads ACCU from the frame and writes back ACCU, IAR and
+ * the increased step count.
+ */
+interface CompiledBlock {
+    void run(BlockFrame frame);
 }
@@ -27,6 +27,11 @@ public class Constants {
     public static final int ADDRESS_RANGE = 1 << ADDRESS_WIDTH;
     public static final int ADDRESS_MASK = ADDRESS_RANGE - 1;
 
+    public static final int PAGE_WIDTH = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_WIDTH;
+    public static final int PAGE_MASK = PAGE_SIZE - 1;
+    public static final int PAGE_COUNT = ADDRESS_RANGE >> PAGE_WIDTH;
+
     /**
      * A value is ok between -2^23 and 2^24-1.
      * values can be specified as unsigned or as signed constants ...
@@ -0,0 +1,38 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+/**
+ * Proof that a program never halts: the state at position to is the same as
+ * at the earlier position from, so the steps in between repeat forever.
+ *
+ * @param from the earlier position
+ * @param to   the later position
+ */
+public record Cycle(long from, long to) {
+
+    /**
+     * @return the number of steps after which the state repeats
+     */
+    public long length() {
+        return to - from;
+    }
+
+    @Override
+    public String toString() {
+        return "after step " + to + ", the program cycles back to step " + from +
+                " (a cycle of " + length() + (length() == 1 ? " step)" : " steps)");
+    }
+}
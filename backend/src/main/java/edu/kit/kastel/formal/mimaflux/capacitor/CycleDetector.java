@@ -0,0 +1,200 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.Arrays;
+
+/**
+ * Finds positions at which an execution returns to an earlier state.
+ *
+ * The memory is hashed Zobrist-style: the hash is the xor of a random key
+ * for every address and its value (0 for the value 0), so that a write
+ * updates it in constant time, see {@link #write(int, int, int)}. ACCU and
+ * IAR are added when the state is probed.
+ *
+ * Only the states after steps that do not increase the IAR are probed:
+ * going once around a cycle, the IAR has to decrease (or stay the same) at
+ * least once, be it by a jump or by wrapping around. Probed hashes are kept
+ * with their positions in an open-addressing table of fixed capacity, which
+ * is cleared when it is full. Every time it is cleared, only half as many
+ * of these states are probed afterwards, see {@link #isDue()}, so that long
+ * runs without a cycle do not pay for a probe at every jump. As the probed
+ * states still recur with the period of the cycle, a cycle is found if it
+ * passes fewer states than the capacity. Equal hashes only make a cycle
+ * likely, the caller has to compare the states.
+ */
+class CycleDetector {
+
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final long[] hashes;
+    private final long[] positions;
+    private final int mask;
+    private int size;
+    // only every interval-th state is probed
+    private int interval = 1;
+    private int countdown = 1;
+
+    private long memoryHash;
+
+    CycleDetector(int capacity) {
+        this.hashes = new long[2 * capacity];
+        this.positions = new long[2 * capacity];
+        this.mask = 2 * capacity - 1;
+        Arrays.fill(positions, -1);
+    }
+
+    /**
+     * Hash the memory of the state from scratch and forget all probes.
+     */
+    void reset(State state) {
+        long hash = 0;
+        for (int p = 0; p < Constants.PAGE_COUNT; p++) {
+            int[] page = state.peekPage(p);
+            if (page == State.ZERO_PAGE) {
+                continue;
+            }
+            for (int i = 0; i < Constants.PAGE_SIZE; i++) {
+                hash ^= key((p << Constants.PAGE_WIDTH) | i, page[i]);
+            }
+        }
+        memoryHash = hash;
+        clear();
+        interval = 1;
+        countdown = 1;
+    }
+
+    /**
+     * @return whether the next state that may be probed is to be probed
+     */
+    boolean isDue() {
+        if (--countdown > 0) {
+            return false;
+        }
+        countdown = interval;
+        return true;
+    }
+
+    static long key(int addr, int value) {
+        if (value == 0) {
+            return 0;
+        }
+        // the finalizer of splitmix64, a bijection
+        long z = ((long) addr << 32) ^ (value & 0xffff_ffffL);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Report a write to a memory address.
+     */
+    void write(int addr, int oldValue, int newValue) {
+        memoryHash ^= key(addr, oldValue) ^ key(addr, newValue);
+    }
+
+    /**
+     * @return the hash of the memory and the given registers
+     */
+    long hash(int accu, int iar) {
+        return memoryHash ^ key(State.ACCU, accu) ^ key(State.IAR, iar);
+    }
+
+    /**
+     * Look up the hash of the state at the given position and remember it.
+     *
+     * @return an earlier position whose state has the same hash, -1 if
+     * there is none
+     */
+    long probe(long hash, long position) {
+        int i = (int) (hash ^ (hash >>> 32)) & mask;
+        while (positions[i] >= 0) {
+            if (hashes[i] == hash) {
+                return positions[i];
+            }
+            i = (i + 1) & mask;
+        }
+        if (2 * (size + 1) > hashes.length) {
+            clear();
+            interval *= 2;
+            return probe(hash, position);
+        }
+        hashes[i] = hash;
+        positions[i] = position;
+        size++;
+        return -1;
+    }
+
+    private void clear() {
+        Arrays.fill(positions, -1);
+        size = 0;
+    }
+
+    /**
+     * Compare the current state with the state at an earlier position of
+     * the log.
+     *
+     * @return whether the steps since the position have restored every
+     * address they wrote
+     */
+    static boolean sameState(UpdateLog updates, long position, State current) {
+        long[] seen = new long[Constants.ADDRESS_RANGE / 64];
+        boolean accuSeen = false;
+        boolean iarSeen = false;
+        long size = updates.size();
+        for (long step = position; step < size; step++) {
+            long end = updates.stepEnd(step);
+            for (long i = updates.stepStart(step); i < end; i++) {
+                int addr = updates.getAddress(i);
+                if (addr == State.ACCU) {
+                    if (accuSeen) {
+                        continue;
+                    }
+                    accuSeen = true;
+                } else if (addr == State.IAR) {
+                    if (iarSeen) {
+                        continue;
+                    }
+                    iarSeen = true;
+                } else {
+                    if ((seen[addr >> 6] & (1L << addr)) != 0) {
+                        continue;
+                    }
+                    seen[addr >> 6] |= 1L << addr;
+                }
+                // the first write since the position knows the value at the position
+                if (updates.getOldValue(i) != current.get(addr)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare two states page by page.
+     */
+    static boolean sameState(State a, State b) {
+        if (a.get(State.ACCU) != b.get(State.ACCU) || a.get(State.IAR) != b.get(State.IAR)) {
+            return false;
+        }
+        for (int p = 0; p < Constants.PAGE_COUNT; p++) {
+            if (!Arrays.equals(a.peekPage(p), b.peekPage(p))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
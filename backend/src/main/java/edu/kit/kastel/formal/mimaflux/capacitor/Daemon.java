@@ -0,0 +1,369 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A server that runs programs on request, so that many runs share one
+ * warmed-up process: the JIT-compiled parsers and executors, the program
+ * and spec caches and the worker threads.
+ *
+ * The daemon listens on a TCP port of the loopback interface or on a Unix
+ * domain socket. A connection carries any number of requests, one JSON
+ * object per line, each answered by one line. A request is an entry as in
+ * a JSON lines manifest of {@link BatchManifest}, relative file names are
+ * resolved against the working directory of the daemon. The optional
+ * members "maxSteps" and "timeout" (in milliseconds) lower the budgets of
+ * the daemon for this request, larger values are cut down to the budgets
+ * of the daemon. The answer is the {@link BatchResult} of
+ * the entry. {"command": "shutdown"} stops the daemon once the requests
+ * being run are answered, requests still arriving on open connections
+ * meanwhile are answered with an error.
+ *
+ * Connections are served concurrently, the requests are run by a fixed
+ * number of worker threads.
+ */
+public class Daemon implements Closeable {
+
+    // the number of times the parsers and the executor are run before serving
+    private static final int WARM_UP_RUNS = 200;
+
+    private static final String WARM_UP_PROGRAM = """
+            count: DS %d
+            minus: DS -1
+            sum: DS 0
+            START: LDV count
+              ADD minus
+              STV count
+              JMN end
+              LDV sum
+              ADD count
+              STV sum
+              JMP START
+            end: HALT
+            """;
+
+    private static final String WARM_UP_SPEC = """
+            test%d:
+              count = 10
+              ==> sum = 45
+            """;
+
+    private final ServerSocketChannel server;
+    // the file of the Unix domain socket, null for TCP
+    private final Path socketFile;
+    private final long maxSteps;
+    private final Executor.Engine engine;
+    private final ExecutorService workers;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "mimaflux-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean cycleDetection;
+    private long timeoutMillis;
+    // set by close(), guarded by this
+    private boolean closed;
+    // the number of requests being answered, guarded by this
+    private int answering;
+
+    /**
+     * Listen on the address, see {@link #address(String)}. A stale socket
+     * file left behind by an earlier daemon is replaced.
+     *
+     * @param maxSteps the step budget of requests, which they may lower
+     * @param threads  the number of requests run concurrently, 0 for the
+     *                 number of available processors
+     */
+    public Daemon(String address, long maxSteps, Executor.Engine engine, int threads) throws IOException {
+        SocketAddress socketAddress = address(address);
+        if (socketAddress instanceof UnixDomainSocketAddress unixAddress) {
+            socketFile = unixAddress.getPath();
+            if (Files.exists(socketFile, LinkOption.NOFOLLOW_LINKS) && Files.readAttributes(socketFile,
+                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+                Files.delete(socketFile);
+            }
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            socketFile = null;
+            server = ServerSocketChannel.open();
+        }
+        server.bind(socketAddress);
+        this.maxSteps = maxSteps;
+        this.engine = engine;
+        this.workers = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param address a port number for the loopback interface, otherwise the
+     *                file name of a Unix domain socket
+     */
+    public static SocketAddress address(String address) {
+        if (address.matches("\\d+")) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        }
+        return UnixDomainSocketAddress.of(address);
+    }
+
+    /**
+     * See {@link MimaVerification#setCycleDetection(boolean)}.
+     */
+    public void setCycleDetection(boolean cycleDetection) {
+        this.cycleDetection = cycleDetection;
+    }
+
+    /**
+     * @param timeoutMillis the time budget of requests, which they may
+     *                      lower, 0 for no limit
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Serve connections until the daemon is shut down by a request or
+     * closed. Returns once the requests being answered are run and their
+     * answers are sent, connections still open are left to the caller to
+     * drop.
+     */
+    public void serve() throws IOException {
+        warmUp();
+        try {
+            while (true) {
+                SocketChannel channel = server.accept();
+                try {
+                    connections.submit(() -> handle(channel));
+                } catch (RejectedExecutionException e) {
+                    // shut down meanwhile
+                    channel.close();
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // shut down
+        } finally {
+            close();
+            awaitAnswers();
+        }
+    }
+
+    /*
+     * Assemble and run a small program and parse a spec a number of times, so
+     * that the first requests do not wait for class loading and the JIT. The
+     * caches are bypassed, they are left to the requests.
+     */
+    private void warmUp() {
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            Interpreter interpreter = new Interpreter(Program.parseString(WARM_UP_PROGRAM.formatted(i)));
+            interpreter.run(BatchRunner.SILENT, maxSteps, engine);
+            MimaVerification.parseSpec(WARM_UP_SPEC.formatted(i), "warm-up");
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel;
+             BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+             Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                number++;
+                if (!startAnswer()) {
+                    writer.write(BatchResult.error(Integer.toString(number), shutDown()).toJson() + "\n");
+                    writer.flush();
+                    continue;
+                }
+                try {
+                    writer.write(respond(line, Integer.toString(number)) + "\n");
+                    writer.flush();
+                } finally {
+                    endAnswer();
+                }
+            }
+        } catch (IOException e) {
+            // the client has gone
+        }
+    }
+
+    private synchronized boolean startAnswer() {
+        if (closed) {
+            return false;
+        }
+        answering++;
+        return true;
+    }
+
+    private synchronized void endAnswer() {
+        answering--;
+        if (answering == 0) {
+            notifyAll();
+        }
+    }
+
+    /*
+     * Wait until the answers being prepared are sent, including the answer to
+     * the shutdown request.
+     */
+    private synchronized void awaitAnswers() throws IOException {
+        try {
+            while (answering > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private static IllegalStateException shutDown() {
+        return new IllegalStateException("The daemon has been shut down");
+    }
+
+    /*
+     * Answer a request, defaultId is the number of the request on its
+     * connection.
+     */
+    private String respond(String line, String defaultId) throws IOException {
+        BatchEntry entry;
+        BatchRunner runner;
+        try {
+            if (!(Json.parse(line) instanceof Map<?, ?> request)) {
+                throw new IllegalArgumentException("JSON object expected");
+            }
+            Object command = request.get("command");
+            if ("shutdown".equals(command)) {
+                close();
+                return Json.write(Map.of("status", "STOPPED"));
+            } else if (command != null && !"run".equals(command)) {
+                throw new IllegalArgumentException("Unknown command " + command);
+            }
+            entry = BatchManifest.entry(request, defaultId, Paths.get("").toAbsolutePath());
+            runner = new BatchRunner(Math.min(number(request, "maxSteps", maxSteps), maxSteps), engine, 1);
+            runner.setCycleDetection(cycleDetection);
+            runner.setTimeout(timeout(request));
+        } catch (IllegalArgumentException e) {
+            return BatchResult.error(defaultId, e).toJson();
+        }
+
+        Future<BatchResult> result;
+        try {
+            result = workers.submit(() -> runner.run(entry));
+        } catch (RejectedExecutionException e) {
+            // shut down by another request meanwhile
+            return BatchResult.error(entry.id(), shutDown()).toJson();
+        }
+        try {
+            return result.get().toJson();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            // BatchRunner.run(BatchEntry) catches all exceptions
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /*
+     * The time budget of a request, which is 0 for no limit and therefore
+     * rejected if the daemon has a limit.
+     */
+    private long timeout(Map<?, ?> request) {
+        long timeout = number(request, "timeout", timeoutMillis);
+        if (timeoutMillis == 0) {
+            return timeout;
+        }
+        if (timeout == 0) {
+            throw new IllegalArgumentException("Member timeout must be positive, the daemon has a limit of " +
+                    timeoutMillis + " ms");
+        }
+        return Math.min(timeout, timeoutMillis);
+    }
+
+    private static long number(Map<?, ?> request, String name, long defaultValue) {
+        Object value = request.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!(value instanceof Long number) || number < 0) {
+            throw new IllegalArgumentException("Member " + name + " must be a non-negative integer");
+        }
+        return number;
+    }
+
+    /**
+     * Stop accepting connections and requests. Requests being run are
+     * finished, {@link #serve()} waits for their answers.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        server.close();
+        workers.shutdown();
+        connections.shutdown();
+        if (socketFile != null) {
+            Files.deleteIfExists(socketFile);
+        }
+    }
+
+    /**
+     * Send a request to a daemon and wait for the answer.
+     *
+     * @param address  see {@link #address(String)}
+     * @param request  the request as JSON object on a single line
+     * @return the answer as JSON object on a single line
+     */
+    public static String request(String address, String request) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address(address));
+             BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+             Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8)) {
+            writer.write(request + "\n");
+            writer.flush();
+            String answer = reader.readLine();
+            if (answer == null) {
+                throw new IOException("The daemon at " + address + " closed the connection");
+            }
+            return answer;
+        }
+    }
+}
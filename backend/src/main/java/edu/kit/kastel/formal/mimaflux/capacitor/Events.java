@@ -0,0 +1,123 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JDK Flight Recorder events of MimaFlux. They are only recorded while
+ * a recording is running. Any recording includes {@link Parse} and
+ * {@link Test}. {@link Record} and {@link Seek} can occur thousands of times
+ * per second when stepping through a timeline, they are disabled unless the
+ * settings of a recording enable them, see the README.
+ *
+ * Events are only created per parsed program, per batch of recorded steps,
+ * per seek and per test case, never per step. A disabled event costs no
+ * more than the check of {@link Event#shouldCommit()}, the JIT compiler
+ * removes its allocation.
+ */
+final class Events {
+
+    private static final String CATEGORY = "MimaFlux";
+
+    private Events() {
+    }
+
+    @Name("edu.kit.kastel.formal.mimaflux.Parse")
+    @Label("Program Assembly")
+    @Description("A program has been parsed and assembled")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Parse extends Event {
+        @Label("Source Length")
+        @Description("The number of characters of the program text")
+        int sourceLength;
+
+        @Label("Commands")
+        int commands;
+
+        @Label("Labels")
+        int labels;
+    }
+
+    @Name("edu.kit.kastel.formal.mimaflux.Record")
+    @Label("Timeline Recording")
+    @Description("A batch of steps has been recorded into a timeline")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Enabled(false)
+    static final class Record extends Event {
+        @Label("Steps")
+        @Description("The number of steps recorded in this batch")
+        long steps;
+
+        @Label("Updates")
+        @Description("The number of updates recorded in this batch")
+        long updates;
+
+        @Label("Log Size")
+        @Description("The size of the update log after this batch")
+        @DataAmount
+        long bytes;
+
+        @Label("Complete")
+        @Description("Whether the recording has ended with this batch")
+        boolean complete;
+    }
+
+    @Name("edu.kit.kastel.formal.mimaflux.Seek")
+    @Label("Timeline Seek")
+    @Description("The position of a timeline has been set")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Enabled(false)
+    static final class Seek extends Event {
+        @Label("From")
+        long from;
+
+        @Label("To")
+        long to;
+
+        @Label("Distance")
+        @Description("The number of steps between the positions")
+        long distance;
+    }
+
+    @Name("edu.kit.kastel.formal.mimaflux.Test")
+    @Label("Test Case")
+    @Description("A test case of a spec file has been verified")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Test extends Event {
+        @Label("Name")
+        String name;
+
+        @Label("Passed")
+        boolean passed;
+
+        @Label("Steps")
+        long steps;
+
+        @Label("Halt Reason")
+        String haltReason;
+    }
+}
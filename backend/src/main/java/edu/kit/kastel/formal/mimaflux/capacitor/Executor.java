@@ -0,0 +1,554 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import edu.kit.kastel.formal.mimaflux.capacitor.RunResult.HaltReason;
+
+/**
+ * Executes a program directly on a {@link State} without recording anything.
+ *
+ * This is used when only the final state is of interest (-run and -verify).
+ * The semantics are the same as in {@link Interpreter#makeTimeline}: After n
+ * steps, the state is the same as the state at position n of the recorded
+ * timeline.
+ */
+public class Executor {
+
+    /**
+     * The number of steps executed between checks of the deadline.
+     */
+    public static final int TIME_CHECK_STEPS = 1 << 16;
+
+    public enum Engine {
+        /** Interpret every instruction. */
+        INTERPRETER,
+        /** Compile hot basic blocks into JVM code, see {@link BlockCompiler}. */
+        COMPILER,
+        /** Use the compiler and compare against the interpreter after every compiled block. */
+        CROSS_CHECK
+    }
+
+    private final State state;
+    private final InstructionCache cache;
+    private final BlockCompiler compiler;
+    private final BlockFrame frame;
+    private final CrossCheck crossCheck;
+    private Watchpoints watchpoints = Watchpoints.NONE;
+    // null unless cycles are detected
+    private CycleDetector cycles;
+    // the state before the first step, for verifying cycles
+    private State initialState;
+    private Cycle cycle;
+    // null unless the execution is profiled
+    private Profile profile;
+
+    private long steps;
+    // the value of System.nanoTime() at which run stops, if timed
+    private long deadline;
+    private boolean timed;
+    // the first watchpoint hit by the current step
+    private Watchpoint hit;
+
+    public Executor(State state) {
+        this(state, Engine.INTERPRETER);
+    }
+
+    /**
+     * For {@link Engine#CROSS_CHECK}, a second interpreting executor runs on a
+     * copy of the state. The states are compared after every compiled block
+     * and at the end, an {@link IllegalStateException} is thrown if they
+     * differ.
+     */
+    public Executor(State state, Engine engine) {
+        this(state, engine, true);
+    }
+
+    /**
+     * @param fusion whether the instruction cache fuses instruction
+     *               sequences, see {@link InstructionCache}
+     */
+    public Executor(State state, Engine engine, boolean fusion) {
+        this.state = state;
+        this.cache = new InstructionCache(state, fusion);
+        if (engine == Engine.INTERPRETER) {
+            this.compiler = null;
+            this.frame = null;
+            this.crossCheck = null;
+        } else {
+            this.compiler = new BlockCompiler(state);
+            this.frame = new BlockFrame(state, cache, compiler, engine == Engine.CROSS_CHECK);
+            this.crossCheck = engine == Engine.CROSS_CHECK ? new CrossCheck(this) : null;
+        }
+    }
+
+    /**
+     * Stop execution after the first step that hits one of the watchpoints.
+     * While there are watchpoints, steps are executed one at a time by the
+     * interpreter: fused instructions and compiled blocks are not used.
+     */
+    public void setWatchpoints(Watchpoints watchpoints) {
+        this.watchpoints = watchpoints;
+        if (crossCheck != null) {
+            crossCheck.reference.setWatchpoints(watchpoints);
+        }
+    }
+
+    /**
+     * Skip the remaining steps once the execution has returned to an earlier
+     * state: they only repeat the cycle up to the step limit, the final
+     * state is the same. This has to be enabled before the first step.
+     * While cycles are detected, compiled blocks are not used. Watchpoints
+     * and profiling turn the detection off.
+     */
+    public void setCycleDetection(boolean enabled) {
+        if (steps > 0) {
+            throw new IllegalStateException("Cycle detection has to be enabled before the first step");
+        }
+        if (enabled) {
+            cycles = new CycleDetector(CycleDetector.DEFAULT_CAPACITY);
+            cycles.reset(state);
+            initialState = state.copy();
+        } else {
+            cycles = null;
+            initialState = null;
+        }
+    }
+
+    /**
+     * Count the executed instructions, jumps and calls into the profile.
+     * While profiling, compiled blocks are not used and cycles are not
+     * detected, as they would skip steps.
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Stop {@link #run} with {@link HaltReason#TIMEOUT} once
+     * {@link System#nanoTime()} has passed the deadline. The time is checked
+     * every {@link #TIME_CHECK_STEPS} steps.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+        this.timed = true;
+    }
+
+    /**
+     * Continue execution until the program halts, a watchpoint is hit, the
+     * deadline has passed or the total number of executed steps reaches
+     * maxSteps.
+     */
+    public RunResult run(long maxSteps) {
+        hit = null;
+        HaltReason reason = timed ? executeTimed(maxSteps) : executeUntimed(maxSteps);
+        RunResult result = new RunResult(state, steps, reason, hit, cycle);
+        if (crossCheck != null) {
+            crossCheck.finished(result);
+        }
+        return result;
+    }
+
+    private HaltReason executeUntimed(long maxSteps) {
+        if (!watchpoints.isEmpty()) {
+            return executeWatched(maxSteps);
+        } else if (cycles != null && profile == null) {
+            return executeCycles(maxSteps);
+        } else {
+            return execute(maxSteps);
+        }
+    }
+
+    /*
+     * Execute at most TIME_CHECK_STEPS steps at a time and stop once the
+     * deadline has passed.
+     */
+    private HaltReason executeTimed(long maxSteps) {
+        while (true) {
+            if (cycle != null) {
+                // skipping the remaining steps takes no time
+                return executeUntimed(maxSteps);
+            }
+            HaltReason reason = executeUntimed(Math.min(maxSteps, steps + TIME_CHECK_STEPS));
+            if (reason != HaltReason.STEP_LIMIT || steps >= maxSteps) {
+                return reason;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return HaltReason.TIMEOUT;
+            }
+        }
+    }
+
+    /*
+     * Execute single steps and check the registers after each of them, the
+     * memory writes are checked in store.
+     */
+    private HaltReason executeWatched(long maxSteps) {
+        while (steps < maxSteps) {
+            int iar = state.get(State.IAR);
+            int accu = state.get(State.ACCU);
+            int handler = InstructionCache.handler(cache.fetchSingle(iar));
+            HaltReason reason = execute(steps + 1);
+            if (reason != HaltReason.STEP_LIMIT) {
+                return reason;
+            }
+            if (writesAccu(handler)) {
+                check(State.ACCU, accu, state.get(State.ACCU));
+            }
+            check(State.IAR, iar, state.get(State.IAR));
+            if (hit != null) {
+                return HaltReason.WATCHPOINT;
+            }
+        }
+        return HaltReason.STEP_LIMIT;
+    }
+
+    /*
+     * Execute at most ADDRESS_RANGE steps at a time, so that cycles without
+     * jumps, which wrap the IAR around, are probed as well.
+     */
+    private HaltReason executeCycles(long maxSteps) {
+        while (steps < maxSteps && cycle == null) {
+            HaltReason reason = execute(Math.min(maxSteps, steps + Constants.ADDRESS_RANGE));
+            if (reason != HaltReason.STEP_LIMIT) {
+                return reason;
+            }
+        }
+        if (cycle != null && steps < maxSteps) {
+            // the remaining steps only repeat the cycle
+            steps += (maxSteps - steps) / cycle.length() * cycle.length();
+            return execute(maxSteps);
+        }
+        return HaltReason.STEP_LIMIT;
+    }
+
+    // whether the state is the same as at the earlier position
+    private boolean verifyCycle(long position) {
+        Executor replay = new Executor(initialState.copy());
+        replay.run(position);
+        return CycleDetector.sameState(replay.state, state);
+    }
+
+    private static boolean writesAccu(int handler) {
+        return switch (handler) {
+            case InstructionCache.STV, InstructionCache.STIV, InstructionCache.JMP, InstructionCache.JMN,
+                    InstructionCache.JMS, InstructionCache.JIND -> false;
+            default -> true;
+        };
+    }
+
+    private void check(int addr, int oldValue, int newValue) {
+        if (hit == null && watchpoints.watches(addr)) {
+            hit = watchpoints.test(addr, oldValue, newValue);
+        }
+    }
+
+    private HaltReason execute(long maxSteps) {
+        int iar = state.get(State.IAR);
+        int accu = state.get(State.ACCU);
+        long steps = this.steps;
+        HaltReason reason = HaltReason.STEP_LIMIT;
+        boolean blockEntry = true;
+        // compiled blocks do not report their writes to store
+        BlockCompiler compiler = watchpoints.isEmpty() && this.cycles == null && profile == null ? this.compiler : null;
+        CycleDetector cycles = watchpoints.isEmpty() && cycle == null && profile == null ? this.cycles : null;
+        Profile profile = this.profile;
+        // the IAR at the last block entry, -1 before the first one
+        int lastEntry = -1;
+
+        loop:
+        while (steps < maxSteps) {
+            if (blockEntry && cycles != null) {
+                blockEntry = false;
+                // the first state and states after jumps that do not increase the IAR
+                boolean probe = lastEntry == -1 || iar <= lastEntry && cycles.isDue();
+                lastEntry = iar;
+                long earlier = probe ? cycles.probe(cycles.hash(accu, iar), steps) : -1;
+                if (earlier >= 0) {
+                    state.set(State.IAR, iar);
+                    state.set(State.ACCU, accu);
+                    this.steps = steps;
+                    if (verifyCycle(earlier)) {
+                        cycle = new Cycle(earlier, steps);
+                        break;
+                    }
+                }
+            }
+            if (blockEntry && compiler != null) {
+                BlockCompiler.Block block = compiler.enter(iar);
+                if (block != null && steps + block.length() <= maxSteps) {
+                    frame.accu = accu;
+                    frame.steps = steps;
+                    block.code().run(frame);
+                    accu = frame.accu;
+                    iar = frame.iar;
+                    steps = frame.steps;
+                    if (crossCheck != null) {
+                        state.set(State.IAR, iar);
+                        state.set(State.ACCU, accu);
+                        this.steps = steps;
+                        crossCheck.blockExecuted(frame.getWritten());
+                        frame.clearWritten();
+                    }
+                    continue;
+                }
+                blockEntry = false;
+            }
+
+            int decoded = cache.fetch(iar);
+            if (maxSteps - steps < InstructionCache.MAX_FUSED_LENGTH) {
+                decoded = cache.fetchSingle(iar);
+            }
+            int arg = InstructionCache.operand(decoded);
+            int handler = InstructionCache.handler(decoded);
+            int tmp;
+            steps++;
+            if (profile != null) {
+                profile.count(iar, handler);
+            }
+            switch (handler) {
+                case InstructionCache.LDC -> {
+                    accu = arg;
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.LDV -> {
+                    accu = state.get(arg);
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.STV -> {
+                    store(arg, accu);
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.ADD -> {
+                    accu = (accu + state.get(arg)) & Constants.VALUE_MASK;
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.AND -> {
+                    accu = (accu & state.get(arg)) & Constants.VALUE_MASK;
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.OR -> {
+                    accu = (accu | state.get(arg)) & Constants.VALUE_MASK;
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.XOR -> {
+                    accu = (accu ^ state.get(arg)) & Constants.VALUE_MASK;
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.EQL -> {
+                    accu = (accu == state.get(arg) ? -1 : 0) & Constants.VALUE_MASK;
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.JMP -> {
+                    iar = arg;
+                    blockEntry = true;
+                }
+                case InstructionCache.JMN -> {
+                    if (profile != null) {
+                        profile.branch(iar, (accu & Constants.SIGNBIT) != 0);
+                    }
+                    if ((accu & Constants.SIGNBIT) != 0) {
+                        iar = arg;
+                    } else {
+                        iar = (iar + 1) & Constants.ADDRESS_MASK;
+                    }
+                    blockEntry = true;
+                }
+                case InstructionCache.LDIV -> {
+                    tmp = state.get(arg);
+                    // throw away bits above address range ...
+                    accu = state.get(tmp & Constants.ADDRESS_MASK);
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.STIV -> {
+                    tmp = state.get(arg) & Constants.ADDRESS_MASK;
+                    store(tmp, accu);
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.JMS -> {
+                    if (profile != null) {
+                        profile.call(iar, arg, steps);
+                    }
+                    store(arg, iar + 1);
+                    iar = (arg + 1) & Constants.ADDRESS_MASK;
+                    blockEntry = true;
+                }
+                case InstructionCache.JIND -> {
+                    iar = state.get(arg) & Constants.ADDRESS_MASK;
+                    if (profile != null) {
+                        profile.jumpIndirect(iar, steps);
+                    }
+                    blockEntry = true;
+                }
+                case InstructionCache.NOT -> {
+                    accu = (~accu) & Constants.VALUE_MASK;
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.RAR -> {
+                    accu = (accu >> 1) | ((accu & 1) << (Constants.VALUE_WIDTH - 1));
+                    iar = (iar + 1) & Constants.ADDRESS_MASK;
+                }
+                case InstructionCache.LDV_ADD_STV -> {
+                    accu = (state.get(arg) + state.get(cache.operandAt(iar + 1))) & Constants.VALUE_MASK;
+                    store(cache.operandAt(iar + 2), accu);
+                    iar = (iar + 3) & Constants.ADDRESS_MASK;
+                    steps += 2;
+                }
+                case InstructionCache.LDC_ADD_STV -> {
+                    accu = (arg + state.get(cache.operandAt(iar + 1))) & Constants.VALUE_MASK;
+                    store(cache.operandAt(iar + 2), accu);
+                    iar = (iar + 3) & Constants.ADDRESS_MASK;
+                    steps += 2;
+                }
+                case InstructionCache.ADD_JMN -> {
+                    accu = (accu + state.get(arg)) & Constants.VALUE_MASK;
+                    if (profile != null) {
+                        profile.branch(iar + 1, (accu & Constants.SIGNBIT) != 0);
+                    }
+                    if ((accu & Constants.SIGNBIT) != 0) {
+                        iar = cache.operandAt(iar + 1);
+                    } else {
+                        iar = (iar + 2) & Constants.ADDRESS_MASK;
+                    }
+                    steps++;
+                    blockEntry = true;
+                }
+                case InstructionCache.EQL_JMN -> {
+                    accu = (accu == state.get(arg) ? -1 : 0) & Constants.VALUE_MASK;
+                    if (profile != null) {
+                        profile.branch(iar + 1, (accu & Constants.SIGNBIT) != 0);
+                    }
+                    if ((accu & Constants.SIGNBIT) != 0) {
+                        iar = cache.operandAt(iar + 1);
+                    } else {
+                        iar = (iar + 2) & Constants.ADDRESS_MASK;
+                    }
+                    steps++;
+                    blockEntry = true;
+                }
+                case InstructionCache.HALT -> {
+                    reason = HaltReason.HALT;
+                    break loop;
+                }
+                default -> {
+                    reason = HaltReason.ILLEGAL_INSTRUCTION;
+                    break loop;
+                }
+            }
+        }
+
+        state.set(State.IAR, iar);
+        state.set(State.ACCU, accu);
+        this.steps = steps;
+        if (profile != null) {
+            profile.finish(steps);
+        }
+        return reason;
+    }
+
+    private void store(int addr, int value) {
+        if (watchpoints.watches(addr)) {
+            check(addr, state.get(addr), value);
+        }
+        if (cycles != null) {
+            cycles.write(addr, state.get(addr), value);
+        }
+        state.set(addr, value);
+        cache.invalidate(addr);
+        if (compiler != null) {
+            compiler.invalidate(addr);
+        }
+    }
+
+    public InstructionCache getInstructionCache() {
+        return cache;
+    }
+
+    /**
+     * @return the executed steps and the counters of the instruction cache
+     * and the compiler
+     */
+    public Statistics getStatistics() {
+        Statistics statistics = new Statistics().put("steps", steps).putAll(cache.getStatistics());
+        if (compiler != null) {
+            statistics.put("compilations", compiler.getCompilations())
+                    .put("deoptimizations", compiler.getDeoptimizations());
+        }
+        return statistics;
+    }
+
+    @Override
+    public String toString() {
+        String result = cache.toString();
+        if (compiler != null) {
+            result += "; compiler: " + compiler.getCompilations() + " blocks compiled, " +
+                    compiler.getDeoptimizations() + " deoptimized";
+        }
+        return result;
+    }
+
+    /*
+     * Runs an interpreting reference executor in lockstep with the compiling
+     * one: whenever the latter has finished a compiled block, the reference
+     * catches up and IAR, ACCU and the written addresses are compared.
+     */
+    private static class CrossCheck {
+        private final Executor compiling;
+        private final Executor reference;
+
+        CrossCheck(Executor compiling) {
+            this.compiling = compiling;
+            this.reference = new Executor(compiling.state.copy());
+        }
+
+        void blockExecuted(int[] writtenAddresses) {
+            long steps = compiling.steps;
+            reference.run(steps);
+            if (reference.steps != steps) {
+                throw new IllegalStateException("Cross check failed: interpreter stopped after " +
+                        reference.steps + " steps, compiler continued to step " + steps);
+            }
+            compare(State.IAR, steps);
+            compare(State.ACCU, steps);
+            for (int addr : writtenAddresses) {
+                compare(addr, steps);
+            }
+        }
+
+        void finished(RunResult result) {
+            RunResult expected = reference.run(result.steps());
+            // the reference is not timed
+            HaltReason reason = result.haltReason() == HaltReason.TIMEOUT ? HaltReason.STEP_LIMIT
+                    : result.haltReason();
+            if (result.steps() != expected.steps() || reason != expected.haltReason()) {
+                throw new IllegalStateException("Cross check failed: compiler stopped after " + result.steps() +
+                        " steps (" + result.haltReason() + "), interpreter after " + expected.steps() +
+                        " steps (" + expected.haltReason() + ")");
+            }
+            for (int addr = State.ACCU; addr < Constants.ADDRESS_RANGE; addr++) {
+                compare(addr, result.steps());
+            }
+        }
+
+        private void compare(int addr, long steps) {
+            int expected = reference.state.get(addr);
+            int observed = compiling.state.get(addr);
+            if (expected != observed) {
+                throw new IllegalStateException(String.format(
+                        "Cross check failed after step %d at address %d: interpreter 0x%x, compiler 0x%x",
+                        steps, addr, expected, observed));
+            }
+        }
+    }
+}
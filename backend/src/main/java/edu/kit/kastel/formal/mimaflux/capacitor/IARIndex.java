@@ -0,0 +1,92 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+/**
+ * For every address, the sorted positions of a timeline at which the IAR
+ * holds the address, kept in a {@link StepIndex}.
+ *
+ * The index is built from an update log and extended when further steps
+ * have been recorded, see {@link #extend(UpdateLog, int)}.
+ */
+class IARIndex {
+
+    static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private final StepIndex positions;
+    // the IAR at the last covered position
+    private int lastIAR;
+
+    IARIndex(long memoryBudget) {
+        this.positions = new StepIndex(memoryBudget, false);
+    }
+
+    /**
+     * Index the positions of the log that have not been indexed yet, as far
+     * as the memory budget allows.
+     *
+     * @param initialIAR the IAR at position 0
+     */
+    void extend(UpdateLog updates, int initialIAR) {
+        if (positions.coveredSteps() == 0) {
+            if (!positions.add(initialIAR, 0)) {
+                return;
+            }
+            lastIAR = initialIAR;
+            positions.cover(1);
+        }
+        long size = updates.size();
+        for (long step = positions.coveredSteps() - 1; step < size && !positions.isFull(); step++) {
+            int iar = lastIAR;
+            long end = updates.stepEnd(step);
+            for (long i = updates.stepStart(step); i < end; i++) {
+                if (updates.getAddress(i) == State.IAR) {
+                    iar = updates.getNewValue(i);
+                }
+            }
+            if (positions.add(iar, step + 1)) {
+                lastIAR = iar;
+                positions.cover(step + 2);
+            }
+        }
+    }
+
+    /**
+     * @return the number of positions from the beginning that are indexed
+     */
+    long coveredPositions() {
+        return positions.coveredSteps();
+    }
+
+    /**
+     * @return the latest indexed position at or before the given one at
+     * which the IAR holds the address, -1 if there is none
+     */
+    long floor(int addr, long position) {
+        return positions.floor(addr, position, null);
+    }
+
+    /**
+     * @return the earliest indexed position at or after the given one at
+     * which the IAR holds the address, -1 if there is none
+     */
+    long ceiling(int addr, long position) {
+        return positions.ceiling(addr, position, null);
+    }
+
+    long getUsedBytes() {
+        return positions.getUsedBytes();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+/**
+ * Cache of decoded instructions, indexed by address.
+ *
+ * A decoded entry holds a handler id (one of the constants below) in the
+ * bits above {@link Constants#ADDRESS_WIDTH} and the operand in the lower
+ * bits. 0 marks an empty entry. Entries are allocated page-wise on first
+ * use.
+ *
+ * Frequent instruction sequences are fused into superinstructions whose
+ * entry is stored at the address of the first instruction. The operand of
+ * a fused entry is that of the first instruction, the operands of the
+ * following instructions are found in their own entries
+ * ({@link #operandAt(int)}). A fused handler executes several steps at
+ * once, the caller must fall back to {@link #fetchSingle(int)} if less
+ * than {@link #MAX_FUSED_LENGTH} steps are left.
+ *
+ * Fusion can be switched off, to measure its effect.
+ *
+ * Mima programs may modify their own code, hence every write to memory
+ * must be reported using {@link #invalidate(int)}. This also discards
+ * fused entries that cover the address.
+ */
+public class InstructionCache {
+
+    public static final int LDC = 1;
+    public static final int LDV = 2;
+    public static final int STV = 3;
+    public static final int ADD = 4;
+    public static final int AND = 5;
+    public static final int OR = 6;
+    public static final int XOR = 7;
+    public static final int EQL = 8;
+    public static final int JMP = 9;
+    public static final int JMN = 10;
+    public static final int LDIV = 11;
+    public static final int STIV = 12;
+    public static final int JMS = 13;
+    public static final int JIND = 14;
+    public static final int HALT = 15;
+    public static final int NOT = 16;
+    public static final int RAR = 17;
+    public static final int ILLEGAL = 18;
+
+    /** LDV x; ADD y; STV z */
+    public static final int LDV_ADD_STV = 19;
+    /** LDC c; ADD y; STV z */
+    public static final int LDC_ADD_STV = 20;
+    /** ADD y; JMN t */
+    public static final int ADD_JMN = 21;
+    /** EQL y; JMN t */
+    public static final int EQL_JMN = 22;
+
+    /** The number of steps executed by the longest fused sequence */
+    public static final int MAX_FUSED_LENGTH = 3;
+
+    private final State state;
+    private final boolean fusion;
+    private final int[][] pages = new int[Constants.PAGE_COUNT][];
+
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long fusions;
+
+    public InstructionCache(State state) {
+        this(state, true);
+    }
+
+    /**
+     * @param fusion whether instruction sequences are fused
+     */
+    public InstructionCache(State state, boolean fusion) {
+        this.state = state;
+        this.fusion = fusion;
+    }
+
+    /**
+     * Get the decoded instruction at an address.
+     *
+     * @return the handler id in the upper bits, the operand in the lower
+     * {@link Constants#ADDRESS_WIDTH} bits.
+     */
+    public int fetch(int addr) {
+        int[] page = pages[addr >> Constants.PAGE_WIDTH];
+        if (page == null) {
+            page = new int[Constants.PAGE_SIZE];
+            pages[addr >> Constants.PAGE_WIDTH] = page;
+        }
+        int entry = page[addr & Constants.PAGE_MASK];
+        if (entry != 0) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        entry = decode(state.get(addr));
+        if (fusion) {
+            entry = fuse(addr, entry);
+        }
+        page[addr & Constants.PAGE_MASK] = entry;
+        return entry;
+    }
+
+    /**
+     * Get the decoded instruction at an address without fusion.
+     */
+    public int fetchSingle(int addr) {
+        int entry = fetch(addr);
+        if (handler(entry) >= LDV_ADD_STV) {
+            return decode(state.get(addr));
+        }
+        return entry;
+    }
+
+    /**
+     * Get the operand of the instruction at an address. Used by fused
+     * handlers to access the operands of the following instructions.
+     */
+    public int operandAt(int addr) {
+        return state.get(addr & Constants.ADDRESS_MASK) & Constants.ADDRESS_MASK;
+    }
+
+    public void invalidate(int addr) {
+        for (int i = 0; i < MAX_FUSED_LENGTH; i++) {
+            int a = (addr - i) & Constants.ADDRESS_MASK;
+            int[] page = pages[a >> Constants.PAGE_WIDTH];
+            if (page != null && page[a & Constants.PAGE_MASK] != 0) {
+                page[a & Constants.PAGE_MASK] = 0;
+                invalidations++;
+            }
+        }
+    }
+
+    private int fuse(int addr, int entry) {
+        int fused = switch (handler(entry)) {
+            case LDV -> followedBy(addr, ADD, STV) ? LDV_ADD_STV : 0;
+            case LDC -> followedBy(addr, ADD, STV) ? LDC_ADD_STV : 0;
+            case ADD -> followedBy(addr, JMN) ? ADD_JMN : 0;
+            case EQL -> followedBy(addr, JMN) ? EQL_JMN : 0;
+            default -> 0;
+        };
+        if (fused == 0) {
+            return entry;
+        }
+        fusions++;
+        return (fused << Constants.ADDRESS_WIDTH) | operand(entry);
+    }
+
+    private boolean followedBy(int addr, int... handlers) {
+        for (int i = 0; i < handlers.length; i++) {
+            int ir = state.get((addr + i + 1) & Constants.ADDRESS_MASK);
+            if (handler(decode(ir)) != handlers[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static int handler(int entry) {
+        return entry >>> Constants.ADDRESS_WIDTH;
+    }
+
+    public static int operand(int entry) {
+        return entry & Constants.ADDRESS_MASK;
+    }
+
+    static int decode(int ir) {
+        int opcode = ir >> 20;
+        int arg = ir & Constants.ADDRESS_MASK;
+        int handler;
+        if (opcode >= 0x0 && opcode <= 0xd) {
+            handler = opcode + 1;
+        } else if (opcode == 0xf) {
+            handler = switch (arg) {
+                case 0x00000 -> HALT;
+                case 0x10000 -> NOT;
+                case 0x20000 -> RAR;
+                default -> ILLEGAL;
+            };
+        } else {
+            handler = ILLEGAL;
+        }
+        return (handler << Constants.ADDRESS_WIDTH) | arg;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    public long getFusions() {
+        return fusions;
+    }
+
+    public Statistics getStatistics() {
+        return new Statistics()
+                .put("cacheHits", hits)
+                .put("cacheMisses", misses)
+                .put("cacheInvalidations", invalidations)
+                .put("fusions", fusions);
+    }
+
+    @Override
+    public String toString() {
+        return "instruction cache: " + hits + " hits, " + misses + " misses, " +
+                invalidations + " invalidations, " + fusions + " fusions";
+    }
+}
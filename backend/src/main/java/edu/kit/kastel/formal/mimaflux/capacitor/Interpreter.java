@@ -14,181 +14,365 @@
  */
 package edu.kit.kastel.formal.mimaflux.capacitor;
 
-import edu.kit.kastel.formal.mimaflux.capacitor.generated.MimaAsmParser.FileContext;
-import edu.kit.kastel.formal.mimaflux.capacitor.generated.MimaAsmParser;
-import edu.kit.kastel.formal.mimaflux.capacitor.generated.MimaAsmLexer;
-import org.antlr.v4.runtime.BaseErrorListener;
-import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.RecognitionException;
-import org.antlr.v4.runtime.Recognizer;
-
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class Interpreter {
-    private String fileContent;
+    private Program program;
     private Map<String, Integer> labelMap;
-    private List<Command> commands;
 
     private final Map<Integer, Integer> initialValues = new HashMap<>();
 
+    private InstructionCache instructionCache;
+    // the executor of the last run, null if a timeline has been made since
+    private Executor executor;
+    private long runNanos;
+    private long parseNanos;
+    private boolean cycleDetection;
+    private Profile profile;
+    private boolean fusion = true;
+    // the deadline of run, if timed
+    private long deadline;
+    private boolean timed;
+
+    public Interpreter() {
+    }
+
+    /**
+     * Create an interpreter for an already assembled program. Label and
+     * preset values are private to this interpreter.
+     */
+    public Interpreter(Program program) {
+        setProgram(program);
+    }
+
     public void parseFile(String fileName) throws IOException {
-        String fileContent = Files.readString(Paths.get(fileName));
-        parseString(fileContent);
+        long start = System.nanoTime();
+        setProgram(ProgramCache.getDefault().parseFile(fileName));
+        parseNanos = System.nanoTime() - start;
     }
 
+    /**
+     * Load a program. Programs are taken from {@link ProgramCache#getDefault()}
+     * if they have been assembled before.
+     */
     public void parseString(String fileContent) {
+        long start = System.nanoTime();
+        setProgram(ProgramCache.getDefault().parseString(fileContent));
+        parseNanos = System.nanoTime() - start;
+    }
 
-        this.fileContent = fileContent;
-
-        CharStream input = CharStreams.fromString(fileContent);
-        MimaAsmLexer lexer = new MimaAsmLexer(input);
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        MimaAsmParser parser = new MimaAsmParser(tokens);
-        parser.addErrorListener(new BaseErrorListener() {
-            @Override
-            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
-                throw new RuntimeException("line " + line + ":" +
-                        charPositionInLine + ": " + msg);
-            }
-        });
-        FileContext content = parser.file();
-        ProgramVisitor pv = new ProgramVisitor();
-        content.accept(pv);
-
-        this.commands = pv.getCommands();
-        LabelResolver lr = new LabelResolver();
-        lr.resolve(commands);
-        labelMap = lr.getLabelMap();
+    private void setProgram(Program program) {
+        this.program = program;
+        this.labelMap = new HashMap<>(program.getLabelMap());
+    }
 
+    public Timeline makeTimeline(Logger logger, long maxSteps, List<AddressRange> printRanges) {
+        Timeline timeline = makeLazyTimeline(logger, maxSteps, printRanges);
+        timeline.recordAll(null);
+        return timeline;
     }
 
-    public Timeline makeTimeline(Logger logger, int maxSteps, List<AddressRange> printRanges) {
+    /**
+     * Create a timeline that is recorded on demand. Steps are recorded when
+     * the timeline is moved past the steps recorded so far, see
+     * {@link Timeline#extendTo(long)}, up to maxSteps steps.
+     */
+    public Timeline makeLazyTimeline(Logger logger, long maxSteps, List<AddressRange> printRanges) {
 
-        TimelineBuilder builder = new TimelineBuilder(fileContent, labelMap, commands, initialValues, logger);
+        TimelineBuilder builder = new TimelineBuilder(AppendableUpdateLog.create(maxSteps), program.getFileContent(), labelMap,
+                program.getCommands(), initialValues, logger);
         State state = builder.exposeState();
 
         logger.debug(" ---- initial state");
         logger.debug(() -> state.stringRepresentation(labelMap, printRanges));
 
-        loop:
-        while (builder.size() < maxSteps) {
-            int ir = state.get(state.get(State.IAR));
-            int arg = ir & Constants.ADDRESS_MASK;
-            int opcode = ir >> 20;
+        InstructionCache cache = new InstructionCache(state, fusion);
+        this.instructionCache = cache;
+        this.executor = null;
+
+        Timeline timeline = builder.build();
+        timeline.setRecorder(steps -> {
+            if (record(builder, cache, Math.min(steps, maxSteps), logger, printRanges) && builder.size() < maxSteps) {
+                return true;
+            }
+            if (builder.getCycle() != null) {
+                logger.debug(" ---- Stopped: " + builder.getCycle());
+                timeline.setCycle(builder.getCycle());
+            }
+            logger.debug(" ---- Finished interpretation");
+            logger.debug(cache.toString());
+            return false;
+        });
+        return timeline;
+    }
+
+    /*
+     * Record steps until the limit is reached.
+     *
+     * Returns false if the program has halted or a cycle has been found.
+     */
+    private boolean record(TimelineBuilder builder, InstructionCache cache, long limit,
+                           Logger logger, List<AddressRange> printRanges) {
+        State state = builder.exposeState();
+        while (builder.size() < limit) {
+            if (builder.getCycle() != null) {
+                return false;
+            }
+            int iar = state.get(State.IAR);
+            int decoded = cache.fetch(iar);
+            if (limit - builder.size() < InstructionCache.MAX_FUSED_LENGTH) {
+                decoded = cache.fetchSingle(iar);
+            }
+            int arg = InstructionCache.operand(decoded);
             int tmp;
-            switch (opcode) {
-                case 0x0:
-                    builder.set(State.ACCU, ir);
+            switch (InstructionCache.handler(decoded)) {
+                case InstructionCache.LDC:
+                    builder.set(State.ACCU, arg);
                     builder.incIAR();
                     break;
-                case 0x1:
+                case InstructionCache.LDV:
                     builder.set(State.ACCU, state.get(arg));
                     builder.incIAR();
                     break;
-                case 0x2:
+                case InstructionCache.STV:
                     builder.set(arg, state.get(State.ACCU));
+                    cache.invalidate(arg);
                     builder.incIAR();
                     break;
-                case 0x3:
-                    op(builder, arg, Integer::sum);
+                case InstructionCache.ADD:
+                    op(builder, state.get(State.ACCU) + state.get(arg));
                     break;
-                case 0x4:
-                    op(builder, arg, (x, y) -> x & y);
+                case InstructionCache.AND:
+                    op(builder, state.get(State.ACCU) & state.get(arg));
                     break;
-                case 0x5:
-                    op(builder, arg, (x, y) -> x | y);
+                case InstructionCache.OR:
+                    op(builder, state.get(State.ACCU) | state.get(arg));
                     break;
-                case 0x6:
-                    op(builder, arg, (x, y) -> x ^ y);
+                case InstructionCache.XOR:
+                    op(builder, state.get(State.ACCU) ^ state.get(arg));
                     break;
-                case 0x7:
-                    op(builder, arg, (x, y) -> x == y ? -1 : 0);
+                case InstructionCache.EQL:
+                    op(builder, state.get(State.ACCU) == state.get(arg) ? -1 : 0);
                     break;
-                case 0x8:
+                case InstructionCache.JMP:
                     builder.set(State.IAR, arg);
                     break;
-                case 0x9:
+                case InstructionCache.JMN:
                     if ((state.get(State.ACCU) & Constants.SIGNBIT) != 0) {
                         builder.set(State.IAR, arg);
                     } else {
                         builder.incIAR();
                     }
                     break;
-                case 0xa:
+                case InstructionCache.LDIV:
                     tmp = state.get(arg);
                     // throw away bits above address range ...
                     tmp = state.get(tmp & Constants.ADDRESS_MASK);
                     builder.set(State.ACCU, tmp);
                     builder.incIAR();
                     break;
-                case 0xb:
-                    tmp = state.get(arg);
-                    builder.set(tmp & Constants.ADDRESS_MASK, state.get(State.ACCU));
+                case InstructionCache.STIV:
+                    tmp = state.get(arg) & Constants.ADDRESS_MASK;
+                    builder.set(tmp, state.get(State.ACCU));
+                    cache.invalidate(tmp);
                     builder.incIAR();
                     break;
-                case 0xc:
+                case InstructionCache.JMS:
                     builder.set(arg, state.get(State.IAR) + 1);
+                    cache.invalidate(arg);
                     builder.set(State.IAR, (arg + 1) & Constants.ADDRESS_MASK);
                     break;
-                case 0xd:
+                case InstructionCache.JIND:
                     builder.set(State.IAR, state.get(arg) & Constants.ADDRESS_MASK);
                     break;
-
-                case 0xf:
-                    switch (arg) {
-                        case 0x00000:
-                            builder.commit();
-                            break loop;
-                        case 0x10000:
-                            builder.set(State.ACCU, (~state.get(State.ACCU)) & Constants.VALUE_MASK);
-                            builder.incIAR();
-                            break;
-                        case 0x20000:
-                            tmp = state.get(State.ACCU);
-                            tmp = (tmp >> 1) | ((tmp & 1) << (Constants.VALUE_WIDTH - 1));
-                            builder.set(State.ACCU, tmp);
-                            builder.incIAR();
-                            break;
-                        default:
-                            builder.commit();
-                            break loop;
+                case InstructionCache.NOT:
+                    builder.set(State.ACCU, (~state.get(State.ACCU)) & Constants.VALUE_MASK);
+                    builder.incIAR();
+                    break;
+                case InstructionCache.RAR:
+                    tmp = state.get(State.ACCU);
+                    tmp = (tmp >> 1) | ((tmp & 1) << (Constants.VALUE_WIDTH - 1));
+                    builder.set(State.ACCU, tmp);
+                    builder.incIAR();
+                    break;
+                // Fused instructions: every step is committed separately
+                case InstructionCache.LDV_ADD_STV:
+                case InstructionCache.LDC_ADD_STV:
+                    if (InstructionCache.handler(decoded) == InstructionCache.LDV_ADD_STV) {
+                        arg = state.get(arg);
+                    }
+                    builder.set(State.ACCU, arg);
+                    builder.incIAR();
+                    endStep(builder, logger, printRanges);
+                    op(builder, state.get(State.ACCU) + state.get(cache.operandAt(iar + 1)));
+                    endStep(builder, logger, printRanges);
+                    tmp = cache.operandAt(iar + 2);
+                    builder.set(tmp, state.get(State.ACCU));
+                    cache.invalidate(tmp);
+                    builder.incIAR();
+                    break;
+                case InstructionCache.ADD_JMN:
+                case InstructionCache.EQL_JMN:
+                    tmp = state.get(State.ACCU);
+                    if (InstructionCache.handler(decoded) == InstructionCache.ADD_JMN) {
+                        op(builder, tmp + state.get(arg));
+                    } else {
+                        op(builder, tmp == state.get(arg) ? -1 : 0);
+                    }
+                    endStep(builder, logger, printRanges);
+                    if ((state.get(State.ACCU) & Constants.SIGNBIT) != 0) {
+                        builder.set(State.IAR, cache.operandAt(iar + 1));
+                    } else {
+                        builder.incIAR();
                     }
                     break;
                 default:
+                    // HALT or illegal instruction
                     builder.commit();
-                    break loop;
+                    return false;
             }
-            builder.commit();
-
-            logger.debug(" ---- After step " + builder.size());
-            logger.debug(() -> state.stringRepresentation(labelMap, printRanges));
+            endStep(builder, logger, printRanges);
         }
+        return true;
+    }
 
-        logger.debug(" ---- Finished interpretation");
+    /**
+     * Run the program without recording a timeline.
+     *
+     * @return the final state, the number of executed steps and the reason
+     * why execution stopped
+     */
+    public RunResult run(Logger logger, long maxSteps) {
+        return run(logger, maxSteps, Executor.Engine.INTERPRETER);
+    }
 
-        return builder.build();
+    /**
+     * Run the program without recording a timeline using the given engine.
+     *
+     * @return the final state, the number of executed steps and the reason
+     * why execution stopped
+     */
+    public RunResult run(Logger logger, long maxSteps, Executor.Engine engine) {
+        return run(logger, maxSteps, engine, Watchpoints.NONE);
     }
 
-    private void op(TimelineBuilder builder, int arg, BinaryIntFunction fun) {
-        State state = builder.exposeState();
-        int op1 = state.get(State.ACCU);
-        int op2 = state.get(arg);
-        int res = fun.apply(op1, op2) & Constants.VALUE_MASK;
-        builder.set(State.ACCU, res);
+    /**
+     * Run the program without recording a timeline until it halts, the step
+     * limit is reached or a watchpoint is hit.
+     *
+     * @return the state after the last executed step, the number of steps
+     * and the reason why execution stopped
+     */
+    public RunResult run(Logger logger, long maxSteps, Executor.Engine engine, Watchpoints watchpoints) {
+        State state = program.createState(initialValues, logger);
+        state.set(State.IAR, labelMap.getOrDefault(Constants.START_LABEL, 0));
+        Executor executor = new Executor(state, engine, fusion);
+        executor.setWatchpoints(watchpoints);
+        executor.setCycleDetection(cycleDetection);
+        executor.setProfile(profile);
+        if (timed) {
+            executor.setDeadline(deadline);
+        }
+        this.instructionCache = executor.getInstructionCache();
+        this.executor = executor;
+        long start = System.nanoTime();
+        RunResult result = executor.run(maxSteps);
+        runNanos = System.nanoTime() - start;
+        logger.debug(executor.toString());
+        return result;
+    }
+
+    private void op(TimelineBuilder builder, int result) {
+        builder.set(State.ACCU, result & Constants.VALUE_MASK);
         builder.incIAR();
     }
 
+    private void endStep(TimelineBuilder builder, Logger logger, List<AddressRange> printRanges) {
+        builder.commit();
+
+        logger.debug(" ---- After step " + builder.size());
+        logger.debug(() -> builder.exposeState().stringRepresentation(labelMap, printRanges));
+    }
+
+    /**
+     * @return the instruction cache of the last execution, for statistics
+     */
+    public InstructionCache getInstructionCache() {
+        return instructionCache;
+    }
+
+    /**
+     * @return the time taken to load the program (0 if it has been passed
+     * to the constructor) and the counters of the last execution: for
+     * {@link #run} the executed steps, the time taken and the counters of
+     * the executor, for a timeline the counters of its instruction cache
+     * (the timeline has its own, see {@link Timeline#getStatistics()})
+     */
+    public Statistics getStatistics() {
+        Statistics statistics = new Statistics().put("parseNanos", parseNanos);
+        if (executor != null) {
+            statistics.putAll(executor.getStatistics()).put("runNanos", runNanos);
+        } else if (instructionCache != null) {
+            statistics.putAll(instructionCache.getStatistics());
+        }
+        return statistics;
+    }
+
+    public Program getProgram() {
+        return program;
+    }
+
     public Map<String, Integer> getLabelMap() {
         return labelMap;
     }
 
+    /**
+     * Let {@link #run} skip the remaining steps once the program has
+     * returned to an earlier state, see {@link Executor#setCycleDetection}.
+     * Timelines always stop recording at the first cycle found.
+     */
+    public void setCycleDetection(boolean cycleDetection) {
+        this.cycleDetection = cycleDetection;
+    }
+
+    /**
+     * Let {@link #run} count the executed instructions into the profile,
+     * null for no profiling. Timelines are not profiled.
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Switch the fusion of instruction sequences off or on, see
+     * {@link InstructionCache}. It is on by default.
+     */
+    public void setFusion(boolean fusion) {
+        this.fusion = fusion;
+    }
+
+    /**
+     * Let {@link #run} stop once {@link System#nanoTime()} has passed the
+     * deadline, see {@link Executor#setDeadline(long)}. Timelines are not
+     * timed.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+        this.timed = true;
+    }
+
+    /**
+     * @return the address of the label, or the number if it is not a label
+     * @throws NumberFormatException if it is neither
+     */
+    public int resolve(String addressOrLabel) {
+        Integer resolved = labelMap.get(addressOrLabel);
+        return resolved != null ? resolved : Integer.decode(addressOrLabel);
+    }
+
     public void addPresetValue(Integer addr, Integer val) {
         initialValues.put(addr, val);
     }
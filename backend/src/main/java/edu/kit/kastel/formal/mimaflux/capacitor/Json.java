@@ -0,0 +1,275 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reading and writing of JSON values, enough for the line-based formats of
+ * the batch mode and the statistics.
+ *
+ * Objects are represented as maps in the order of their members, arrays as
+ * lists, numbers as Long if they are integral and as Double otherwise.
+ */
+public final class Json {
+
+    private final String text;
+    private int pos;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text is not a single JSON value
+     */
+    public static Object parse(String text) {
+        Json json = new Json(text);
+        Object result = json.value();
+        json.skipWhitespace();
+        if (json.pos < text.length()) {
+            throw json.error("end of input expected");
+        }
+        return result;
+    }
+
+    /**
+     * @return the value as JSON on a single line
+     * @throws IllegalArgumentException if the value is not a map, list,
+     * string, number, boolean or null
+     */
+    public static String write(Object value) {
+        StringBuilder builder = new StringBuilder();
+        write(builder, value);
+        return builder.toString();
+    }
+
+    private static void write(StringBuilder builder, Object value) {
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else if (value instanceof String string) {
+            quote(builder, string);
+        } else if (value instanceof Map<?, ?> map) {
+            builder.append('{');
+            String separator = "";
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                builder.append(separator);
+                quote(builder, entry.getKey().toString());
+                builder.append(": ");
+                write(builder, entry.getValue());
+                separator = ", ";
+            }
+            builder.append('}');
+        } else if (value instanceof List<?> list) {
+            builder.append('[');
+            String separator = "";
+            for (Object element : list) {
+                builder.append(separator);
+                write(builder, element);
+                separator = ", ";
+            }
+            builder.append(']');
+        } else {
+            throw new IllegalArgumentException("No JSON value: " + value.getClass());
+        }
+    }
+
+    private static void quote(StringBuilder builder, String string) {
+        builder.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"' -> builder.append("\\\"");
+                case '\\' -> builder.append("\\\\");
+                case '\n' -> builder.append("\\n");
+                default -> {
+                    if (c < ' ') {
+                        builder.append("\\u%04x".formatted((int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                }
+            }
+        }
+        builder.append('"');
+    }
+
+    private Object value() {
+        skipWhitespace();
+        if (pos >= text.length()) {
+            throw error("value expected");
+        }
+        char c = text.charAt(pos);
+        return switch (c) {
+            case '{' -> object();
+            case '[' -> array();
+            case '"' -> string();
+            case 't' -> literal("true", Boolean.TRUE);
+            case 'f' -> literal("false", Boolean.FALSE);
+            case 'n' -> literal("null", null);
+            default -> {
+                if (c == '-' || c >= '0' && c <= '9') {
+                    yield number();
+                }
+                throw error("value expected");
+            }
+        };
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        pos++;
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return result;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("member name expected");
+            }
+            String name = string();
+            skipWhitespace();
+            expect(':');
+            result.put(name, value());
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return result;
+            }
+            expect(',');
+        }
+    }
+
+    private List<Object> array() {
+        List<Object> result = new ArrayList<>();
+        pos++;
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return result;
+        }
+        while (true) {
+            result.add(value());
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return result;
+            }
+            expect(',');
+        }
+    }
+
+    private String string() {
+        StringBuilder builder = new StringBuilder();
+        pos++;
+        while (true) {
+            if (pos >= text.length()) {
+                throw error("unterminated string");
+            }
+            char c = text.charAt(pos++);
+            if (c == '"') {
+                return builder.toString();
+            } else if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (pos >= text.length()) {
+                throw error("unterminated string");
+            }
+            c = text.charAt(pos++);
+            switch (c) {
+                case '"', '\\', '/' -> builder.append(c);
+                case 'b' -> builder.append('\b');
+                case 'f' -> builder.append('\f');
+                case 'n' -> builder.append('\n');
+                case 'r' -> builder.append('\r');
+                case 't' -> builder.append('\t');
+                case 'u' -> builder.append(unicodeEscape());
+                default -> {
+                    pos--;
+                    throw error("invalid escape");
+                }
+            }
+        }
+    }
+
+    // the four hex digits of a unicode escape
+    private char unicodeEscape() {
+        if (pos + 4 > text.length()) {
+            throw error("unterminated escape");
+        }
+        int value = 0;
+        for (int i = pos; i < pos + 4; i++) {
+            int digit = Character.digit(text.charAt(i), 16);
+            if (digit < 0) {
+                throw error("invalid escape");
+            }
+            value = value << 4 | digit;
+        }
+        pos += 4;
+        return (char) value;
+    }
+
+    private Object number() {
+        int start = pos;
+        while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+            pos++;
+        }
+        String number = text.substring(start, pos);
+        try {
+            if (number.matches("-?\\d+")) {
+                return Long.parseLong(number);
+            }
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("invalid number");
+        }
+    }
+
+    private Object literal(String literal, Object value) {
+        if (!text.startsWith(literal, pos)) {
+            throw error("value expected");
+        }
+        pos += literal.length();
+        return value;
+    }
+
+    private void expect(char expected) {
+        if (peek() != expected) {
+            throw error("'" + expected + "' expected");
+        }
+        pos++;
+    }
+
+    private char peek() {
+        return pos < text.length() ? text.charAt(pos) : 0;
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid JSON at position " + pos + ": " + message);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * {@link AppendableUpdateLog} in a memory-mapped file.
+ *
+ * The file is a sequence of 12 byte records (address, old value, new value).
+ * Every step is terminated by a marker record, so that step boundaries can
+ * be found by scanning. The file is mapped in segments of
+ * {@link #SEGMENT_RECORDS} records, a record never crosses a segment border.
+ *
+ * Only the position of every {@link #INDEX_INTERVAL}-th step is kept on the
+ * heap. The boundaries of the step accessed last are cached, so that moving
+ * to a neighbouring step does not need to scan more than that step.
+ *
+ * Closing the log unmaps the segments right away where the JVM allows it,
+ * otherwise their memory is released by the garbage collector. A
+ * temporary file is deleted by {@link #close()} only, a log that is not
+ * closed leaves it behind.
+ */
+public class MappedUpdateLog implements AppendableUpdateLog {
+
+    private static final int RECORD_BYTES = 12;
+    private static final int SEGMENT_BITS = 22;
+    static final int SEGMENT_RECORDS = 1 << SEGMENT_BITS;
+    private static final long SEGMENT_BYTES = (long) RECORD_BYTES * SEGMENT_RECORDS;
+
+    private static final int INDEX_BITS = 10;
+    static final int INDEX_INTERVAL = 1 << INDEX_BITS;
+
+    private static final int STEP_MARKER = Integer.MIN_VALUE;
+
+    // sun.misc.Unsafe.invokeCleaner(ByteBuffer), null if it is not accessible
+    private static final MethodHandle UNMAP = findUnmap();
+
+    private final Path file;
+    private final boolean temporary;
+    private final FileChannel channel;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[4];
+
+    // record number of the first record of every INDEX_INTERVAL-th step
+    private long[] index = new long[64];
+
+    private long recordCount;
+    private long stepCount;
+
+    // step boundaries last looked up
+    private long cachedStep = -1;
+    private long cachedStart;
+    private long cachedEnd = -1;
+
+    public MappedUpdateLog(Path file) throws IOException {
+        this(file, false);
+    }
+
+    private MappedUpdateLog(Path file, boolean temporary) throws IOException {
+        this.file = file;
+        this.temporary = temporary;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Create a log in a temporary file that is deleted when the log is
+     * closed.
+     */
+    public static MappedUpdateLog createTemporary() throws IOException {
+        return new MappedUpdateLog(Files.createTempFile("mimaflux-", ".trace"), true);
+    }
+
+    private static MethodHandle findUnmap() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void add(int addr, int oldValue, int newValue) {
+        append(addr, oldValue, newValue);
+    }
+
+    @Override
+    public void commit() {
+        append(STEP_MARKER, 0, 0);
+        stepCount++;
+        if ((stepCount & (INDEX_INTERVAL - 1)) == 0) {
+            int slot = (int) (stepCount >>> INDEX_BITS);
+            if (slot == index.length) {
+                index = Arrays.copyOf(index, slot * 2);
+            }
+            index[slot] = recordCount;
+        }
+    }
+
+    private void append(int addr, int oldValue, int newValue) {
+        int segment = (int) (recordCount >>> SEGMENT_BITS);
+        if (segment == segments.length) {
+            segments = Arrays.copyOf(segments, segment * 2);
+        }
+        MappedByteBuffer buffer = segments[segment];
+        if (buffer == null) {
+            try {
+                buffer = channel.map(MapMode.READ_WRITE, segment * SEGMENT_BYTES, SEGMENT_BYTES);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segments[segment] = buffer;
+        }
+        int pos = (int) (recordCount & (SEGMENT_RECORDS - 1)) * RECORD_BYTES;
+        buffer.putInt(pos, addr);
+        buffer.putInt(pos + 4, oldValue);
+        buffer.putInt(pos + 8, newValue);
+        recordCount++;
+    }
+
+    @Override
+    public long size() {
+        return stepCount;
+    }
+
+    @Override
+    public long countUpdates() {
+        return recordCount - stepCount;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return recordCount * RECORD_BYTES + (long) index.length * Long.BYTES;
+    }
+
+    @Override
+    public long stepStart(long step) {
+        locate(step);
+        return cachedStart;
+    }
+
+    @Override
+    public long stepEnd(long step) {
+        locate(step);
+        if (cachedEnd < 0) {
+            long end = cachedStart;
+            while (getAddress(end) != STEP_MARKER) {
+                end++;
+            }
+            cachedEnd = end;
+        }
+        return cachedEnd;
+    }
+
+    private void locate(long step) {
+        if (step == cachedStep) {
+            return;
+        }
+        long start;
+        long end = -1;
+        if (cachedStep >= 0 && step == cachedStep - 1) {
+            // scan backwards from the marker terminating the previous step
+            end = cachedStart - 1;
+            start = end;
+            while (start > 0 && getAddress(start - 1) != STEP_MARKER) {
+                start--;
+            }
+        } else {
+            long from;
+            if (cachedStep >= 0 && step > cachedStep && step - cachedStep < INDEX_INTERVAL) {
+                from = cachedStep;
+                start = cachedStart;
+            } else {
+                from = step & -INDEX_INTERVAL;
+                start = index[(int) (from >>> INDEX_BITS)];
+            }
+            for (; from < step; from++) {
+                while (getAddress(start) != STEP_MARKER) {
+                    start++;
+                }
+                start++;
+            }
+        }
+        cachedStep = step;
+        cachedStart = start;
+        cachedEnd = end;
+    }
+
+    @Override
+    public int getAddress(long offset) {
+        return read(offset, 0);
+    }
+
+    @Override
+    public int getOldValue(long offset) {
+        return read(offset, 4);
+    }
+
+    @Override
+    public int getNewValue(long offset) {
+        return read(offset, 8);
+    }
+
+    private int read(long record, int field) {
+        MappedByteBuffer buffer = segments[(int) (record >>> SEGMENT_BITS)];
+        return buffer.getInt((int) (record & (SEGMENT_RECORDS - 1)) * RECORD_BYTES + field);
+    }
+
+    /**
+     * Unmap the file and delete it if it is temporary. The log must not be
+     * read afterwards, reads of an unmapped segment would crash the JVM.
+     */
+    @Override
+    public void close() throws IOException {
+        MappedByteBuffer[] mapped = segments;
+        // later reads fail with an exception
+        segments = new MappedByteBuffer[0];
+        if (UNMAP != null) {
+            for (MappedByteBuffer buffer : mapped) {
+                if (buffer != null) {
+                    try {
+                        UNMAP.invokeExact((ByteBuffer) buffer);
+                    } catch (Throwable e) {
+                        // left to the garbage collector
+                    }
+                }
+            }
+        }
+        channel.close();
+        if (temporary) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.Arrays;
+
+/**
+ * {@link AppendableUpdateLog} on the heap.
+ *
+ * Updates are packed into chunked primitive arrays: the address goes into an
+ * int[], old and new value are packed into a long[]. A step index holds the
+ * offset of the first update of every step. Recording an update does not
+ * allocate unless a new chunk is needed.
+ */
+public class MemoryUpdateLog implements AppendableUpdateLog {
+
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private int[][] addresses = new int[4][];
+    private long[][] values = new long[4][];
+    private long[][] stepOffsets = new long[4][];
+
+    private long updateCount;
+    private int stepCount;
+
+    public MemoryUpdateLog() {
+        appendStepOffset(0);
+    }
+
+    @Override
+    public void add(int addr, int oldValue, int newValue) {
+        int chunk = (int) (updateCount >>> CHUNK_BITS);
+        int index = (int) (updateCount & CHUNK_MASK);
+        if (index == 0) {
+            if (chunk == addresses.length) {
+                addresses = Arrays.copyOf(addresses, chunk * 2);
+                values = Arrays.copyOf(values, chunk * 2);
+            }
+            addresses[chunk] = new int[CHUNK_SIZE];
+            values[chunk] = new long[CHUNK_SIZE];
+        }
+        addresses[chunk][index] = addr;
+        values[chunk][index] = ((long) oldValue << 32) | (newValue & 0xffff_ffffL);
+        updateCount++;
+    }
+
+    @Override
+    public void commit() {
+        if (stepCount == Integer.MAX_VALUE - 1) {
+            throw new IllegalStateException("Too many steps for an in-memory log");
+        }
+        stepCount++;
+        appendStepOffset(updateCount);
+    }
+
+    private void appendStepOffset(long offset) {
+        int chunk = stepCount >>> CHUNK_BITS;
+        int index = stepCount & CHUNK_MASK;
+        if (index == 0) {
+            if (chunk == stepOffsets.length) {
+                stepOffsets = Arrays.copyOf(stepOffsets, chunk * 2);
+            }
+            stepOffsets[chunk] = new long[CHUNK_SIZE];
+        }
+        stepOffsets[chunk][index] = offset;
+    }
+
+    @Override
+    public long size() {
+        return stepCount;
+    }
+
+    @Override
+    public long countUpdates() {
+        return updateCount;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        long updateChunks = (updateCount + CHUNK_MASK) >>> CHUNK_BITS;
+        long stepChunks = ((long) stepCount + 1 + CHUNK_MASK) >>> CHUNK_BITS;
+        return updateChunks * CHUNK_SIZE * (Integer.BYTES + Long.BYTES) + stepChunks * CHUNK_SIZE * Long.BYTES;
+    }
+
+    @Override
+    public long stepStart(long step) {
+        return stepOffsets[(int) (step >>> CHUNK_BITS)][(int) (step & CHUNK_MASK)];
+    }
+
+    @Override
+    public long stepEnd(long step) {
+        return stepStart(step + 1);
+    }
+
+    @Override
+    public int getAddress(long offset) {
+        return addresses[(int) (offset >>> CHUNK_BITS)][(int) (offset & CHUNK_MASK)];
+    }
+
+    @Override
+    public int getOldValue(long offset) {
+        return (int) (values[(int) (offset >>> CHUNK_BITS)][(int) (offset & CHUNK_MASK)] >>> 32);
+    }
+
+    @Override
+    public int getNewValue(long offset) {
+        return (int) values[(int) (offset >>> CHUNK_BITS)][(int) (offset & CHUNK_MASK)];
+    }
+}
@@ -14,32 +14,114 @@ import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class MimaVerification {
+    // parsed spec files are only read afterwards
+    private static final ContentCache<FileContext> SPEC_CACHE = new ContentCache<>(16);
+
     private String verifyFilename;
     private String fileName;
     private final Logger logger;
-    private final int maxSteps;
+    private final long maxSteps;
     private final List<AddressRange> printRanges;
+    private final Executor.Engine engine;
+    private final int threads;
+    private boolean cycleDetection;
+    private Profile profile;
+    // the deadline of all test cases, if timed
+    private long deadline;
+    private boolean timed;
+
+    public MimaVerification(Logger logger, long maxSteps, List<AddressRange> printRanges) {
+        this(logger, maxSteps, printRanges, Executor.Engine.INTERPRETER);
+    }
+
+    public MimaVerification(Logger logger, long maxSteps, List<AddressRange> printRanges, Executor.Engine engine) {
+        this(logger, maxSteps, printRanges, engine, 0);
+    }
 
-    public MimaVerification(Logger logger, int maxSteps, List<AddressRange> printRanges) {
+    /**
+     * @param threads the number of test cases run concurrently, 0 for the
+     *                number of available processors
+     */
+    public MimaVerification(Logger logger, long maxSteps, List<AddressRange> printRanges, Executor.Engine engine,
+                            int threads) {
         this.logger = logger;
         this.maxSteps = maxSteps;
         this.printRanges = printRanges;
+        this.engine = engine;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Skip the remaining steps of a test case once it has returned to an
+     * earlier state, see {@link Interpreter#setCycleDetection(boolean)}.
+     */
+    public void setCycleDetection(boolean cycleDetection) {
+        this.cycleDetection = cycleDetection;
     }
 
+    /**
+     * Count the instructions executed by all test cases into the profile,
+     * null for no profiling.
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Stop the test cases once {@link System#nanoTime()} has passed the
+     * deadline. A test case stopped by the deadline fails.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+        this.timed = true;
+    }
+
+    /**
+     * Run all test cases of the spec file against the program.
+     *
+     * The program is assembled once, the test cases run concurrently on
+     * their own states. The output of every test case is buffered and
+     * printed in the order of the spec file. If the program cannot be
+     * assembled, every test case fails with the exception.
+     *
+     * @return the number of failed test cases
+     */
     public int verify(String verifyFilename, String fileName) throws IOException {
         this.verifyFilename = verifyFilename;
         this.fileName = fileName;
 
         FileContext file = parse(verifyFilename);
         log("Verifying from " + verifyFilename);
-        int result = 0;
-        for (TestContext testContext : file.test()) {
-            result += verifyTest(testContext);
+        Callable<Program> program = assemble(fileName);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<TestLog>> tasks = new ArrayList<>();
+            for (TestContext testContext : file.test()) {
+                tasks.add(pool.submit(() -> verifyTest(program, testContext)));
+            }
+            int result = 0;
+            for (ForkJoinTask<TestLog> task : tasks) {
+                TestLog testLog = task.join();
+                testLog.replay();
+                result += testLog.failed ? 1 : 0;
+                if (testLog.profile != null) {
+                    profile.add(testLog.profile);
+                }
+            }
+            return result;
+        } finally {
+            pool.shutdownNow();
         }
-        return result;
     }
 
     public void setInitialValues(String verifyFilename, String testcase, Interpreter interpreter) throws IOException, MimaException {
@@ -48,66 +130,192 @@ public class MimaVerification {
         FileContext file = parse(verifyFilename);
         for (TestContext testContext : file.test()) {
             if(testContext.name.getText().equals(testcase)) {
-                setInitialValues(testContext.labels, testContext.pre, interpreter);
+                TestLog testLog = new TestLog();
+                setInitialValues(testContext.labels, testContext.pre, interpreter, testLog);
+                testLog.replay();
                 return;
             }
         }
         throw new MimaException(String.format("Testcase %s not found in %s.", testcase, verifyFilename));
     }
 
-    private int verifyTest(TestContext testContext) {
-        log("------------------");
-        String name = testContext.name.getText();
-        log("TEST CASE: " + name);
+    /**
+     * Run all test cases of the spec file against the program one after the
+     * other on the calling thread. Nothing is printed, the log messages go
+     * to the logger.
+     *
+     * @param presets values set after those of every test case, as
+     *                addr=val
+     * @param checks  values checked after those of every test case, as
+     *                addr=val
+     * @return the results in the order of the spec file
+     */
+    public List<TestResult> runTests(String verifyFilename, String fileName, List<String> presets,
+                                     List<String> checks) throws IOException {
+        this.verifyFilename = verifyFilename;
+        this.fileName = fileName;
+
+        FileContext file = parse(verifyFilename);
+        Program program = ProgramCache.getDefault().parseFile(fileName);
+        Callable<Program> assembled = () -> program;
+        List<TestResult> results = new ArrayList<>();
+        for (TestContext testContext : file.test()) {
+            TestLog testLog = verifyTest(assembled, testContext.name.getText(), testContext, presets, checks);
+            testLog.entries.clear();
+            results.add(testLog.result);
+        }
+        return results;
+    }
+
+    /**
+     * Run the program without a spec file, like a single test case.
+     *
+     * @param presets values set before the run, as addr=val
+     * @param checks  values checked after the run, as addr=val
+     */
+    public TestResult runProgram(String fileName, List<String> presets, List<String> checks) throws IOException {
+        this.fileName = fileName;
+        Program program = ProgramCache.getDefault().parseFile(fileName);
+        TestLog testLog = verifyTest(() -> program, fileName, null, presets, checks);
+        testLog.entries.clear();
+        return testLog.result;
+    }
+
+    /*
+     * Returns the program, or rethrows the exception of assembling it on
+     * every call.
+     */
+    private static Callable<Program> assemble(String fileName) {
+        try {
+            Program program = ProgramCache.getDefault().parseFile(fileName);
+            return () -> program;
+        } catch (IOException | RuntimeException exception) {
+            return () -> {
+                throw exception;
+            };
+        }
+    }
+
+    private TestLog verifyTest(Callable<Program> program, TestContext testContext) {
+        return verifyTest(program, testContext.name.getText(), testContext, List.of(), List.of());
+    }
+
+    // testContext is null for a run without spec file
+    private TestLog verifyTest(Callable<Program> program, String name, TestContext testContext,
+                               List<String> presets, List<String> checks) {
+        TestLog log = new TestLog();
+        log.log("------------------");
+        log.log("TEST CASE: " + name);
+        Events.Test event = new Events.Test();
+        event.begin();
         try {
-            Interpreter interpreter = new Interpreter();
-            interpreter.parseFile(fileName);
+            Interpreter interpreter = new Interpreter(program.call());
             interpreter.getLabelMap().put("_accu", State.ACCU);
             interpreter.getLabelMap().put("_iar", State.IAR);
-            setInitialValues(testContext.labels, testContext.pre, interpreter);
-            Timeline timeline = interpreter.makeTimeline(logger, maxSteps, printRanges);
-            timeline.setPosition(timeline.countStates() - 1);
-            return checkPostConditions(testContext, interpreter, timeline);
+            if (testContext != null) {
+                setInitialValues(testContext.labels, testContext.pre, interpreter, log);
+            }
+            for (String preset : presets) {
+                String[] parts = assignment(preset);
+                log.log(" Setting: " + parts[0] + " := " + parts[1]);
+                interpreter.addPresetValue(interpreter.resolve(parts[0]), Integer.decode(parts[1]));
+            }
+            interpreter.setCycleDetection(cycleDetection);
+            if (timed) {
+                interpreter.setDeadline(deadline);
+            }
+            if (profile != null) {
+                // every test case counts on its own, the counts are added in order
+                log.profile = new Profile();
+                interpreter.setProfile(log.profile);
+            }
+            RunResult result = interpreter.run(log, maxSteps, engine);
+            log.debug(" ---- Finished after " + result.steps() + " steps: " + result.haltReason());
+            if (result.cycle() != null) {
+                log.log(" Does not terminate: " + result.cycle());
+            }
+            log.debug(() -> result.state().stringRepresentation(interpreter.getLabelMap(), printRanges));
+            String failure;
+            if (result.haltReason() == RunResult.HaltReason.TIMEOUT) {
+                failure = "Stopped by the time limit after " + result.steps() + " steps.";
+                log.log(" " + failure);
+                log.log("Test failed.");
+            } else {
+                failure = checkPostConditions(name, testContext, checks, interpreter, result.state(), log);
+            }
+            log.failed = failure != null;
+            log.result = new TestResult(name, failure == null, result.steps(), result.haltReason(), failure);
+            event.steps = result.steps();
+            event.haltReason = result.haltReason().name();
         } catch (Exception exception) {
-            log(" ... Exception (try -verbose)");
-            logger.logStacktrace(exception);
-            return 1;
+            log.log(" ... Exception (try -verbose)");
+            log.logStacktrace(exception);
+            log.failed = true;
+            log.result = new TestResult(name, false, 0, null, exception.toString());
         }
+        if (event.shouldCommit()) {
+            event.name = name;
+            event.passed = !log.failed;
+            event.commit();
+        }
+        return log;
     }
 
-    private int checkPostConditions(TestContext testContext, Interpreter interpreter, Timeline timeline) {
-        for (SpecContext specContext : testContext.post) {
-            String addr = specContext.addr.getText();
-            String valStr = specContext.val.getText();
-            Integer resolved = interpreter.getLabelMap().get(addr);
-            if (resolved == null) {
-                resolved = Integer.decode(addr);
+    /*
+     * Returns the first violated post condition, null if all hold.
+     */
+    private String checkPostConditions(String name, TestContext testContext, List<String> checks,
+                                       Interpreter interpreter, State state, TestLog log) {
+        List<String[]> conditions = new ArrayList<>();
+        if (testContext != null) {
+            for (SpecContext specContext : testContext.post) {
+                conditions.add(new String[] { specContext.addr.getText(), specContext.val.getText() });
             }
+        }
+        for (String check : checks) {
+            conditions.add(assignment(check));
+        }
+        for (String[] condition : conditions) {
+            String addr = condition[0];
+            String valStr = condition[1];
+            int resolved = interpreter.resolve(addr);
             Integer val = Integer.decode(valStr);
 
-            log(" Checking: " + addr + " = " + valStr);
+            log.log(" Checking: " + addr + " = " + valStr);
 
-            int observed = timeline.exposeState().get(resolved);
+            int observed = state.get(resolved);
             if (observed != val) {
-                log(String.format("  ... violated. Expected value %d (0x%x) at address %s, but observed %d (0x%x).",
-                        val, val, addr, observed, observed));
-                log("  Try invoking mimaflux with '-loadTest " + verifyFilename + "#" +
-                        testContext.name.getText() + " " + fileName + "'");
-                log("Test failed.");
-                return 1;
+                String failure = String.format("Expected value %d (0x%x) at address %s, but observed %d (0x%x).",
+                        val, val, addr, observed, observed);
+                log.log("  ... violated. " + failure);
+                if (testContext != null) {
+                    log.log("  Try invoking mimaflux with '-loadTest " + verifyFilename + "#" +
+                            name + " " + fileName + "'");
+                }
+                log.log("Test failed.");
+                return failure;
             } else {
-                log(" ... checked.");
+                log.log(" ... checked.");
             }
         }
-        return 0;
+        return null;
+    }
+
+    private static String[] assignment(String spec) {
+        String[] parts = spec.trim().split(" *= *");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Wrong specification: " + spec);
+        }
+        return parts;
     }
 
-    private void setInitialValues(List<LabelSpecContext> labelSpecs, List<SpecContext> pre, Interpreter interpreter) {
+    private void setInitialValues(List<LabelSpecContext> labelSpecs, List<SpecContext> pre, Interpreter interpreter,
+                                  TestLog log) {
         for (LabelSpecContext labelSpec : labelSpecs) {
             String label = labelSpec.label.getText();
             String valStr = labelSpec.val.getText();
             Integer value = Integer.decode(valStr);
-            log(" Setting: " + label + " -> " + valStr);
+            log.log(" Setting: " + label + " -> " + valStr);
             interpreter.addLabelValue(label, value & Constants.ADDRESS_MASK);
         }
         for (SpecContext specContext : pre) {
@@ -118,7 +326,7 @@ public class MimaVerification {
                 resolved = Integer.decode(addr);
             }
             Integer val = Integer.decode(valStr);
-            log(" Setting: " + addr + " := " + valStr);
+            log.log(" Setting: " + addr + " := " + valStr);
             interpreter.addPresetValue(resolved, val);
         }
     }
@@ -127,9 +335,38 @@ public class MimaVerification {
         System.out.println(msg);
     }
 
+    /**
+     * Output of a test case, kept until it can be printed in order. Log
+     * messages are passed on to the logger of the verification when they
+     * are replayed.
+     */
+    private class TestLog extends Logger {
+        private final List<Runnable> entries = new ArrayList<>();
+        private boolean failed;
+        private Profile profile;
+        private TestResult result;
+
+        @Override
+        public void log(LogProducer message, Level level) {
+            entries.add(() -> logger.log(message, level));
+        }
+
+        void log(String msg) {
+            entries.add(() -> MimaVerification.this.log(msg));
+        }
+
+        void replay() {
+            entries.forEach(Runnable::run);
+        }
+    }
+
     private FileContext parse(String filename) throws IOException {
+        String content = Files.readString(Paths.get(filename));
+        return SPEC_CACHE.get(ContentCache.key(content), () -> parseSpec(content, filename));
+    }
 
-        CharStream input = CharStreams.fromFileName(filename);
+    static FileContext parseSpec(String content, String filename) {
+        CharStream input = CharStreams.fromString(content, filename);
         TestSpecLexer lexer = new TestSpecLexer(input);
         CommonTokenStream tokens = new CommonTokenStream(lexer);
         TestSpecParser parser = new TestSpecParser(tokens);
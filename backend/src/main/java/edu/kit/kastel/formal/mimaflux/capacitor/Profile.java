@@ -0,0 +1,379 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Execution counts of runs, collected by the {@link Executor}, see
+ * {@link Executor#setProfile(Profile)}.
+ *
+ * Every executed instruction is counted at its address, the outcomes of
+ * conditional jumps (JMN) at the address of the jump. The steps are also
+ * attributed to the subroutine they are executed in: a JMS calls the
+ * subroutine at its target, a JIND to the return address of an active call
+ * returns from it and from all calls made since. The active calls are a
+ * path in a calling context tree whose nodes count the steps executed in
+ * them. Calls nested deeper than {@link #MAX_DEPTH} are attributed to the
+ * deepest tracked subroutine.
+ *
+ * All counters are primitive arrays, so that counting a step rarely
+ * allocates: the counts are allocated page-wise when a page is first
+ * counted, the instruction counts are kept for the last counted page, and
+ * the tree grows by doubling. The steps of a calling context are only
+ * added up when it is left, using the step counter of the execution. A
+ * profile therefore collects a single execution, profiles of several
+ * executions are added with {@link #add(Profile)}.
+ */
+public final class Profile {
+
+    static final int MAX_DEPTH = 256;
+
+    private static final String ROOT_NAME = "main";
+
+    private final long[][] counts = new long[Constants.PAGE_COUNT][];
+    // the page of counts incremented last
+    private int countedPageIndex = -1;
+    private long[] countedPage;
+    private final long[][] taken = new long[Constants.PAGE_COUNT][];
+    private final long[][] notTaken = new long[Constants.PAGE_COUNT][];
+
+    // the calling context tree, node 0 is the root
+    private int[] parents = new int[16];
+    private int[] entries = new int[16];
+    private long[] nodeSteps = new long[16];
+    private int nodeCount = 1;
+    // (parent, entry) to node + 1 with open addressing, 0 marks an empty slot
+    private int[] children = new int[32];
+
+    // the active calls: the node of the caller and the return address
+    private final int[] callers = new int[MAX_DEPTH];
+    private final int[] returns = new int[MAX_DEPTH];
+    private int depth;
+    private int current;
+    // the step counter when the current calling context has been entered
+    private long entered;
+
+    public Profile() {
+        entries[0] = -1;
+    }
+
+    /**
+     * Count the instructions executed by a decoded entry of the
+     * {@link InstructionCache}: one, or all instructions of a fused entry.
+     */
+    void count(int addr, int handler) {
+        countAt(addr);
+        if (handler >= InstructionCache.LDV_ADD_STV) {
+            countAt((addr + 1) & Constants.ADDRESS_MASK);
+            if (handler <= InstructionCache.LDC_ADD_STV) {
+                countAt((addr + 2) & Constants.ADDRESS_MASK);
+            }
+        }
+    }
+
+    private void countAt(int addr) {
+        int p = addr >> Constants.PAGE_WIDTH;
+        if (p != countedPageIndex) {
+            countedPage = page(counts, p);
+            countedPageIndex = p;
+        }
+        countedPage[addr & Constants.PAGE_MASK]++;
+    }
+
+    /**
+     * Count the outcome of the conditional jump at the address.
+     */
+    void branch(int addr, boolean jumped) {
+        increment(jumped ? taken : notTaken, addr & Constants.ADDRESS_MASK);
+    }
+
+    /**
+     * Enter the subroutine at the target of the JMS at the address.
+     *
+     * @param steps the steps executed so far, including the JMS
+     */
+    void call(int addr, int target, long steps) {
+        if (depth == MAX_DEPTH) {
+            return;
+        }
+        finish(steps);
+        callers[depth] = current;
+        returns[depth] = (addr + 1) & Constants.ADDRESS_MASK;
+        depth++;
+        current = child(current, target);
+    }
+
+    /**
+     * Return from the innermost active call whose return address is the
+     * target of a JIND. Other targets do not change the active calls.
+     *
+     * @param steps the steps executed so far, including the JIND
+     */
+    void jumpIndirect(int target, long steps) {
+        for (int i = depth - 1; i >= 0; i--) {
+            if (returns[i] == target) {
+                finish(steps);
+                current = callers[i];
+                depth = i;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Add the steps executed since the current calling context has been
+     * entered to it. Called whenever the execution stops.
+     *
+     * @param steps the steps executed so far
+     */
+    void finish(long steps) {
+        nodeSteps[current] += steps - entered;
+        entered = steps;
+    }
+
+    private static void increment(long[][] pages, int addr) {
+        page(pages, addr >> Constants.PAGE_WIDTH)[addr & Constants.PAGE_MASK]++;
+    }
+
+    // the page, allocated if it has not been counted so far
+    private static long[] page(long[][] pages, int p) {
+        long[] page = pages[p];
+        if (page == null) {
+            page = new long[Constants.PAGE_SIZE];
+            pages[p] = page;
+        }
+        return page;
+    }
+
+    private static long get(long[][] pages, int addr) {
+        long[] page = pages[addr >> Constants.PAGE_WIDTH];
+        return page == null ? 0 : page[addr & Constants.PAGE_MASK];
+    }
+
+    // the node for the subroutine called from the parent, created on the first call
+    private int child(int parent, int entry) {
+        int mask = children.length - 1;
+        int slot = slot(parent, entry) & mask;
+        while (children[slot] != 0) {
+            int node = children[slot] - 1;
+            if (parents[node] == parent && entries[node] == entry) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (nodeCount == parents.length) {
+            parents = Arrays.copyOf(parents, 2 * nodeCount);
+            entries = Arrays.copyOf(entries, 2 * nodeCount);
+            nodeSteps = Arrays.copyOf(nodeSteps, 2 * nodeCount);
+        }
+        int node = nodeCount++;
+        parents[node] = parent;
+        entries[node] = entry;
+        children[slot] = node + 1;
+        if (2 * nodeCount > children.length) {
+            rehash(2 * children.length);
+        }
+        return node;
+    }
+
+    private void rehash(int capacity) {
+        children = new int[capacity];
+        for (int node = 1; node < nodeCount; node++) {
+            int slot = slot(parents[node], entries[node]) & (capacity - 1);
+            while (children[slot] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            children[slot] = node + 1;
+        }
+    }
+
+    private static int slot(int parent, int entry) {
+        int hash = (parent * 31 + entry) * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Add the counts of another profile, e.g. of another test case.
+     */
+    public void add(Profile other) {
+        for (int p = 0; p < Constants.PAGE_COUNT; p++) {
+            add(counts, other.counts, p);
+            add(taken, other.taken, p);
+            add(notTaken, other.notTaken, p);
+        }
+        // parents are created before their children
+        int[] mapped = new int[other.nodeCount];
+        nodeSteps[0] += other.nodeSteps[0];
+        for (int node = 1; node < other.nodeCount; node++) {
+            mapped[node] = child(mapped[other.parents[node]], other.entries[node]);
+            nodeSteps[mapped[node]] += other.nodeSteps[node];
+        }
+    }
+
+    private static void add(long[][] pages, long[][] otherPages, int p) {
+        if (otherPages[p] == null) {
+            return;
+        }
+        long[] page = page(pages, p);
+        for (int i = 0; i < Constants.PAGE_SIZE; i++) {
+            page[i] += otherPages[p][i];
+        }
+    }
+
+    /**
+     * @return the number of executed steps
+     */
+    public long getSteps() {
+        long result = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            result += nodeSteps[node];
+        }
+        return result;
+    }
+
+    /**
+     * @return how often the instruction at the address has been executed
+     */
+    public long getCount(int addr) {
+        return get(counts, addr);
+    }
+
+    /**
+     * @return how often the conditional jump at the address has jumped
+     */
+    public long getTaken(int addr) {
+        return get(taken, addr);
+    }
+
+    /**
+     * @return how often the conditional jump at the address has not jumped
+     */
+    public long getNotTaken(int addr) {
+        return get(notTaken, addr);
+    }
+
+    /**
+     * Describe the source lines whose instructions have been executed most
+     * often. Executed addresses without a command of the program, e.g.
+     * written by the program itself, are listed on their own.
+     *
+     * @param limit the maximum number of lines listed
+     */
+    public String hotLines(Program program, int limit) {
+        Map<Integer, Command> code = new HashMap<>();
+        for (Command command : program.getCommands()) {
+            if (command.instruction() != null) {
+                code.putIfAbsent(command.address(), command);
+            }
+        }
+
+        Map<Long, HotLine> lines = new HashMap<>();
+        for (int p = 0; p < Constants.PAGE_COUNT; p++) {
+            if (counts[p] == null) {
+                continue;
+            }
+            for (int i = 0; i < Constants.PAGE_SIZE; i++) {
+                if (counts[p][i] == 0) {
+                    continue;
+                }
+                int addr = (p << Constants.PAGE_WIDTH) | i;
+                Command command = code.get(addr);
+                int line = command == null ? 0 : command.getMnemonicLine();
+                // addresses without line are keyed by their negative
+                HotLine hotLine = lines.computeIfAbsent(line > 0 ? line : -1L - addr,
+                        key -> new HotLine(line, addr));
+                hotLine.steps += counts[p][i];
+                hotLine.taken += get(taken, addr);
+                hotLine.notTaken += get(notTaken, addr);
+            }
+        }
+
+        List<HotLine> sorted = new ArrayList<>(lines.values());
+        sorted.sort(Comparator.comparingLong((HotLine hotLine) -> hotLine.steps).reversed()
+                .thenComparingInt(hotLine -> hotLine.line));
+        String[] source = program.getFileContent().split("\\R", -1);
+        long steps = getSteps();
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("Hot lines of %d steps:%n".formatted(steps));
+        builder.append("       steps        %%  line     source%n".formatted());
+        for (HotLine hotLine : sorted.subList(0, Math.min(limit, sorted.size()))) {
+            String where;
+            String text;
+            if (hotLine.line > 0) {
+                where = Integer.toString(hotLine.line);
+                text = hotLine.line <= source.length ? source[hotLine.line - 1].strip() : "";
+            } else {
+                where = "0x%05x".formatted(hotLine.address);
+                text = "(no command)";
+            }
+            builder.append("%12d %6.2f%%  %-8s %s".formatted(hotLine.steps, 100.0 * hotLine.steps / steps,
+                    where, text));
+            long branches = hotLine.taken + hotLine.notTaken;
+            if (branches > 0) {
+                builder.append("   [jumped %d of %d, %.1f%%]".formatted(hotLine.taken, branches,
+                        100.0 * hotLine.taken / branches));
+            }
+            builder.append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+
+    private static final class HotLine {
+        final int line;
+        final int address;
+        long steps;
+        long taken;
+        long notTaken;
+
+        HotLine(int line, int address) {
+            this.line = line;
+            this.address = address;
+        }
+    }
+
+    /**
+     * Write the steps per calling context in the collapsed stack format read
+     * by flame graph tools: one line per context with the names of the
+     * subroutines from the outermost, separated by semicolons, and the number
+     * of steps executed in the innermost one. Subroutines are named by the
+     * label at their address.
+     */
+    public void writeCollapsedStacks(Writer out, Program program) throws IOException {
+        SymbolTable symbols = new SymbolTable(program.getCommands(), program.getLabelMap());
+        String[] stacks = new String[nodeCount];
+        stacks[0] = ROOT_NAME;
+        for (int node = 1; node < nodeCount; node++) {
+            String name = symbols.getLabel(entries[node]);
+            if (name == null) {
+                name = "0x%05x".formatted(entries[node]);
+            }
+            stacks[node] = stacks[parents[node]] + ";" + name;
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            if (nodeSteps[node] > 0) {
+                out.write(stacks[node] + " " + nodeSteps[node] + "\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import edu.kit.kastel.formal.mimaflux.capacitor.generated.MimaAsmLexer;
+import edu.kit.kastel.formal.mimaflux.capacitor.generated.MimaAsmParser;
+import edu.kit.kastel.formal.mimaflux.capacitor.generated.MimaAsmParser.FileContext;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An assembled program: its text, its commands, its labels and the memory
+ * image the commands produce.
+ *
+ * A program is immutable and can be shared between threads. Every execution
+ * starts from its own {@link State} whose pages are shared with the memory
+ * image until they are written.
+ */
+public final class Program {
+
+    private final String fileContent;
+    private final List<Command> commands;
+    private final Map<String, Integer> labelMap;
+    private final int[][] memoryImage;
+
+    Program(String fileContent, List<Command> commands, Map<String, Integer> labelMap) {
+        this.fileContent = fileContent;
+        this.commands = Collections.unmodifiableList(commands);
+        this.labelMap = Collections.unmodifiableMap(labelMap);
+        this.memoryImage = State.memoryImage(commands);
+    }
+
+    public static Program parseFile(String fileName) throws IOException {
+        return parseString(Files.readString(Paths.get(fileName)));
+    }
+
+    /**
+     * Parse and assemble a program.
+     *
+     * @throws TokenedException if a command has an out-of-range argument
+     */
+    public static Program parseString(String fileContent) {
+        Events.Parse event = new Events.Parse();
+        event.begin();
+        CharStream input = CharStreams.fromString(fileContent);
+        MimaAsmLexer lexer = new MimaAsmLexer(input);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        MimaAsmParser parser = new MimaAsmParser(tokens);
+        parser.addErrorListener(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
+                throw new RuntimeException("line " + line + ":" +
+                        charPositionInLine + ": " + msg);
+            }
+        });
+        FileContext content = parser.file();
+        ProgramVisitor pv = new ProgramVisitor();
+        content.accept(pv);
+
+        List<Command> commands = pv.getCommands();
+        LabelResolver lr = new LabelResolver();
+        lr.resolve(commands);
+        Program program = new Program(fileContent, commands, lr.getLabelMap());
+        if (event.shouldCommit()) {
+            event.sourceLength = fileContent.length();
+            event.commands = commands.size();
+            event.labels = program.labelMap.size();
+            event.commit();
+        }
+        return program;
+    }
+
+    /**
+     * Create a fresh state holding the memory image overwritten by the
+     * given values.
+     */
+    public State createState(Map<Integer, Integer> initialValues, Logger logger) {
+        return new State(memoryImage, initialValues, logger);
+    }
+
+    public String getFileContent() {
+        return fileContent;
+    }
+
+    /**
+     * @return the commands, unmodifiable
+     */
+    public List<Command> getCommands() {
+        return commands;
+    }
+
+    /**
+     * @return the labels as resolved from the program text, unmodifiable
+     */
+    public Map<String, Integer> getLabelMap() {
+        return labelMap;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of assembled programs keyed by a hash of their text.
+ *
+ * Programs are kept in memory, the least recently used ones are evicted
+ * beyond the capacity. If a directory is set, assembled programs are also
+ * stored there and are read back instead of being parsed again, e.g. by a
+ * later invocation of the tool.
+ *
+ * A cache file holds a magic number, a version, the program text, the label
+ * map and the commands, followed by a checksum. Files that cannot be read
+ * or do not match the text are ignored and replaced.
+ */
+public final class ProgramCache {
+
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final String EXTENSION = ".mprog";
+
+    private static final long MAGIC = 0x4d494d4150524731L; // "MIMAPRG1"
+    private static final int VERSION = 1;
+
+    private static final ProgramCache DEFAULT = new ProgramCache(DEFAULT_CAPACITY);
+
+    private final ContentCache<Program> programs;
+    private volatile Path directory;
+
+    public ProgramCache(int capacity) {
+        this.programs = new ContentCache<>(capacity);
+    }
+
+    /**
+     * @return the cache used by {@link Interpreter} and {@link MimaVerification}
+     */
+    public static ProgramCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Persist assembled programs in the given directory, which is created if
+     * needed. <code>null</code> keeps programs in memory only.
+     */
+    public void setDirectory(Path directory) throws IOException {
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        this.directory = directory;
+    }
+
+    public Program parseFile(String fileName) throws IOException {
+        return parseString(Files.readString(Paths.get(fileName)));
+    }
+
+    /**
+     * Get the assembled program for a text, parsing it only if it is
+     * neither in memory nor in the cache directory.
+     *
+     * @throws TokenedException if a command has an out-of-range argument
+     */
+    public Program parseString(String fileContent) {
+        String key = ContentCache.key(fileContent);
+        return programs.get(key, () -> load(key, fileContent));
+    }
+
+    public void clear() {
+        programs.clear();
+    }
+
+    private Program load(String key, String fileContent) {
+        Path dir = directory;
+        if (dir == null) {
+            return Program.parseString(fileContent);
+        }
+        Path file = dir.resolve(key + EXTENSION);
+        Program program = read(file, fileContent);
+        if (program == null) {
+            program = Program.parseString(fileContent);
+            write(file, program);
+        }
+        return program;
+    }
+
+    private static Program read(Path file, String fileContent) {
+        if (!Files.isReadable(file)) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            int length = bytes.length - 4;
+            if (length < 0 || TraceFile.checksum(bytes, length) != ByteBuffer.wrap(bytes, length, 4).getInt()) {
+                return null;
+            }
+            DataInputStream in = TraceFile.dataInput(bytes);
+            if (in.readLong() != MAGIC || in.readInt() != VERSION ||
+                    !TraceFile.readString(in).equals(fileContent)) {
+                return null;
+            }
+            Map<String, Integer> labelMap = TraceFile.readLabelMap(in);
+            List<Command> commands = TraceFile.readCommands(in);
+            return new Program(fileContent, commands, labelMap);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void write(Path file, Program program) {
+        Path tmp = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            TraceFile.writeString(out, program.getFileContent());
+            TraceFile.writeLabelMap(out, program.getLabelMap());
+            TraceFile.writeCommands(out, program.getCommands());
+            out.writeInt(TraceFile.checksum(bytes.toByteArray(), bytes.size()));
+
+            // written aside and moved, so that readers never see a partial file
+            tmp = Files.createTempFile(file.getParent(), "program-", ".tmp");
+            Files.write(tmp, bytes.toByteArray());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the cache is an optimisation only
+            try {
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+/**
+ * Observes the recording of a timeline, see
+ * {@link Timeline#recordAll(RecordingMonitor)}. It is called on the
+ * recording thread.
+ */
+@FunctionalInterface
+public interface RecordingMonitor {
+
+    /**
+     * Called after every batch of recorded steps.
+     *
+     * @param steps the number of steps recorded so far
+     * @return false to stop recording
+     */
+    boolean progress(long steps);
+}
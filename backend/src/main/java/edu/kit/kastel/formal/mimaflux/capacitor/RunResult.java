@@ -0,0 +1,46 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+/**
+ * The outcome of a run that has not been recorded into a timeline.
+ *
+ * @param state the state after the last executed step
+ * @param steps the number of executed steps (including a halting step)
+ * @param haltReason why execution stopped
+ * @param watchpoint the watchpoint hit by the last step, null unless
+ *                   haltReason is {@link HaltReason#WATCHPOINT}
+ * @param cycle      the cycle the execution has been found in, null if there
+ *                   is none
+ */
+public record RunResult(State state, long steps, HaltReason haltReason, Watchpoint watchpoint, Cycle cycle) {
+
+    public RunResult(State state, long steps, HaltReason haltReason) {
+        this(state, steps, haltReason, null, null);
+    }
+
+    public enum HaltReason {
+        /** A HALT instruction has been executed. */
+        HALT,
+        /** An instruction with an undefined opcode has been executed. */
+        ILLEGAL_INSTRUCTION,
+        /** The maximum number of steps has been reached. */
+        STEP_LIMIT,
+        /** A step has hit a watchpoint. */
+        WATCHPOINT,
+        /** The deadline has passed, see {@link Executor#setDeadline(long)}. */
+        TIMEOUT
+    }
+}
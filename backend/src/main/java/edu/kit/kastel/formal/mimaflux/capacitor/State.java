@@ -14,11 +14,20 @@
  */
 package edu.kit.kastel.formal.mimaflux.capacitor;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 
+/**
+ * The memory and the registers of the machine.
+ *
+ * Memory is organised in pages of {@link Constants#PAGE_SIZE} words. Pages
+ * that have never been written refer to one common zero page. Pages can be
+ * shared with other states and checkpoints, a shared page is copied before
+ * it is written.
+ */
 public class State {
 
     public static final int IAR = -1;
@@ -65,7 +74,14 @@ public class State {
             Map.entry(0xf20000, "RAR")
     );
 
-    private final int[] mem = new int[Constants.ADDRESS_RANGE];
+    static final int[] ZERO_PAGE = new int[Constants.PAGE_SIZE];
+
+    private final int[][] pages = new int[Constants.PAGE_COUNT][];
+    // bitset of the pages that must be copied before they are written
+    private final long[] shared = new long[Constants.PAGE_COUNT / 64];
+    // the page written last, as long as it is not shared
+    private int writablePageIndex = -1;
+    private int[] writablePage;
 
     private int iar;
     private int accu;
@@ -73,10 +89,49 @@ public class State {
 
     public State(List<Command> commands, Map<Integer, Integer> initialValues, Logger logger) {
         this.logger = logger;
+        Arrays.fill(pages, ZERO_PAGE);
+        Arrays.fill(shared, -1L);
         populateMemoryFromProgram(commands);
         populateFromInitialValues(initialValues);
     }
 
+    /**
+     * Create a state from a memory image, the pages of the image are shared.
+     */
+    State(int[][] memoryImage, Map<Integer, Integer> initialValues, Logger logger) {
+        this.logger = logger;
+        System.arraycopy(memoryImage, 0, pages, 0, pages.length);
+        Arrays.fill(shared, -1L);
+        populateFromInitialValues(initialValues);
+    }
+
+    /**
+     * @return the page table of a memory holding the given commands, the
+     * pages must not be modified
+     */
+    static int[][] memoryImage(List<Command> commands) {
+        State state = new State(commands, Map.of(), null);
+        return state.pages;
+    }
+
+    private State(State other) {
+        this.logger = other.logger;
+        this.iar = other.iar;
+        this.accu = other.accu;
+        System.arraycopy(other.pages, 0, pages, 0, pages.length);
+        Arrays.fill(shared, -1L);
+    }
+
+    /**
+     * Copy this state. The copy shares all pages with this state until
+     * either of them writes to a page.
+     */
+    public State copy() {
+        Arrays.fill(shared, -1L);
+        writablePageIndex = -1;
+        return new State(this);
+    }
+
     private void populateFromInitialValues(Map<Integer, Integer> initialValues) {
         for (Entry<Integer, Integer> entry : initialValues.entrySet()) {
             set(entry.getKey(), entry.getValue());
@@ -94,17 +149,17 @@ public class State {
                     throw new TokenedException(command.getMnemonic(),
                             String.format("%d (0x%x) is out of range for a 24-bit value.", arg, arg));
                 }
-                mem[adr] = arg & Constants.VALUE_MASK;
+                set(adr, arg & Constants.VALUE_MASK);
              } else {
                 int opcode = OPCODES.getOrDefault(command.instruction(), -1);
-                mem[adr] = opcode;
                 if ((opcode & 0xf0_0000) != 0xf0_0000) {
                     if (!Constants.isAddress(arg)) {
                         throw new TokenedException(command.getMnemonic(),
                                 String.format("%d (0x%x) is out of range for a 20-bit address value.", arg, arg));
                     }
-                    mem[adr] |= arg;
+                    opcode |= arg;
                 }
+                set(adr, opcode);
             }
         }
     }
@@ -113,7 +168,12 @@ public class State {
         switch(addr) {
             case IAR: iar = value; break;
             case ACCU: accu = value; break;
-            default: mem[addr] = value;
+            default:
+                int p = addr >> Constants.PAGE_WIDTH;
+                if (p != writablePageIndex) {
+                    makeWritable(p);
+                }
+                writablePage[addr & Constants.PAGE_MASK] = value;
         }
     }
 
@@ -121,13 +181,67 @@ public class State {
         return switch (addr) {
             case IAR -> iar;
             case ACCU -> accu;
-            default -> mem[addr];
+            default -> {
+                int p = addr >> Constants.PAGE_WIDTH;
+                yield (p == writablePageIndex ? writablePage : pages[p])[addr & Constants.PAGE_MASK];
+            }
         };
     }
 
+    private void makeWritable(int p) {
+        if ((shared[p >> 6] & (1L << p)) != 0) {
+            pages[p] = pages[p] == ZERO_PAGE ? new int[Constants.PAGE_SIZE] : pages[p].clone();
+            shared[p >> 6] &= ~(1L << p);
+        }
+        writablePageIndex = p;
+        writablePage = pages[p];
+    }
+
+    /**
+     * @return the page for reading, it must not be modified
+     */
+    int[] peekPage(int p) {
+        return pages[p];
+    }
+
+    /**
+     * @return the page, which this state will not modify anymore
+     */
+    int[] sharePage(int p) {
+        shared[p >> 6] |= 1L << p;
+        if (p == writablePageIndex) {
+            writablePageIndex = -1;
+        }
+        return pages[p];
+    }
+
+    /**
+     * Replace a page by one that is shared with others
+     */
+    void adoptPage(int p, int[] page) {
+        pages[p] = page;
+        shared[p >> 6] |= 1L << p;
+        if (p == writablePageIndex) {
+            writablePageIndex = -1;
+        }
+    }
+
+    /**
+     * @return the number of pages that are not the zero page
+     */
+    public int countAllocatedPages() {
+        int count = 0;
+        for (int[] page : pages) {
+            if (page != ZERO_PAGE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     public String stringRepresentation(Map<String, Integer> labelMap, List<AddressRange> printRanges) {
         StringBuilder builder = new StringBuilder();
-        builder.append("        IAR  = 0x%06x = %8d\t\t(instruction there: %s)%n".formatted(iar, iar, toInstruction(mem[iar])));
+        builder.append("        IAR  = 0x%06x = %8d\t\t(instruction there: %s)%n".formatted(iar, iar, toInstruction(get(iar))));
         builder.append("        ACCU = 0x%06x = %8d%n".formatted(accu, accu));
         Optional<Integer> maxLen = labelMap.keySet().stream().map(String::length).max(Integer::compare);
         for (Entry<String, Integer> entry : labelMap.entrySet()) {
@@ -137,12 +251,12 @@ public class State {
             }
             int val = entry.getValue();
             builder.append(("Label '%" + maxLen.get() +
-                    "s' at mem[0x%05x]  =  0x%06x = %8d = %s%n").formatted(entry.getKey(), val, mem[val], mem[val], toInstruction(mem[val])));
+                    "s' at mem[0x%05x]  =  0x%06x = %8d = %s%n").formatted(entry.getKey(), val, get(val), get(val), toInstruction(get(val))));
         }
         if (printRanges != null) {
             for (AddressRange range : printRanges) {
                 for (int i = range.from(); i <= range.to(); i++) {
-                    builder.append("mem[0x%05x] = 0x%06x = %8d = %s%n".formatted(i, mem[i], mem[i], toInstruction(mem[i])));
+                    builder.append("mem[0x%05x] = 0x%06x = %8d = %s%n".formatted(i, get(i), get(i), toInstruction(get(i))));
                 }
             }
         }
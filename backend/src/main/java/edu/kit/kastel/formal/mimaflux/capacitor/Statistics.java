@@ -0,0 +1,71 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of named counters, numbers or strings, in the order they have
+ * been added. Taking a snapshot only reads counters that are maintained
+ * anyway, see {@link Interpreter#getStatistics()} and
+ * {@link Timeline#getStatistics()}.
+ */
+public final class Statistics {
+
+    private final Map<String, Object> values = new LinkedHashMap<>();
+
+    public Statistics put(String name, long value) {
+        values.put(name, value);
+        return this;
+    }
+
+    public Statistics put(String name, String value) {
+        values.put(name, value);
+        return this;
+    }
+
+    public Statistics putAll(Statistics other) {
+        values.putAll(other.values);
+        return this;
+    }
+
+    /**
+     * @return the value of the counter, null if there is none
+     */
+    public Object get(String name) {
+        return values.get(name);
+    }
+
+    /**
+     * @return the counters, unmodifiable
+     */
+    public Map<String, Object> asMap() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * @return the counters as a single-line JSON object
+     */
+    public String toJson() {
+        return Json.write(values);
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.Arrays;
+
+/**
+ * Sorted lists of steps per address, optionally with a value per step. They
+ * hold the indexes of a timeline, see {@link IARIndex}, {@link WriteIndex}
+ * and {@link WatchpointHits}.
+ *
+ * The steps of an address are kept in a growable int[], the lists of the
+ * memory addresses in a page table allocated on demand, those of ACCU and
+ * IAR separately. Steps are added in ascending order, {@link #cover(long)}
+ * marks the steps before a given one as indexed. Once the lists exceed the
+ * memory budget, or a step exceeds the int range, the index stops growing.
+ * Only the first {@link #coveredSteps()} steps are indexed then, later steps
+ * have to be searched in the update log.
+ */
+class StepIndex {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final long memoryBudget;
+    private final boolean withValues;
+    private final StepList[][] pages = new StepList[Constants.PAGE_COUNT][];
+    private StepList accu;
+    private StepList iar;
+
+    private long usedBytes;
+    private long coveredSteps;
+    private boolean full;
+
+    /**
+     * @param withValues whether the values before and after each step are
+     *                   kept, which {@link #floor} and {@link #ceiling}
+     *                   filter by
+     */
+    StepIndex(long memoryBudget, boolean withValues) {
+        this.memoryBudget = memoryBudget;
+        this.withValues = withValues;
+    }
+
+    private static class StepList {
+        private int[] steps;
+        // value after the step, null without values
+        private int[] values;
+        private int size;
+        // value before the first step
+        private int initialValue;
+
+        boolean accepts(int index, WriteFilter filter) {
+            return filter == null ||
+                    filter.test(index == 0 ? initialValue : values[index - 1], values[index]);
+        }
+    }
+
+    /**
+     * Add a step to the list of an address.
+     *
+     * @return false if the index is full
+     */
+    boolean add(int addr, long step) {
+        return add(addr, step, 0, 0);
+    }
+
+    /**
+     * Add a step and the values before and after it to the list of an
+     * address. Adding the same step again replaces the value after it.
+     *
+     * @return false if the index is full
+     */
+    boolean add(int addr, long step, int oldValue, int newValue) {
+        if (full) {
+            return false;
+        }
+        StepList list = listFor(addr, true);
+        if (list == null) {
+            return false;
+        }
+        if (list.size > 0 && list.steps[list.size - 1] == step) {
+            if (withValues) {
+                list.values[list.size - 1] = newValue;
+            }
+            return true;
+        }
+        if (list.steps == null || list.size == list.steps.length) {
+            int capacity = list.steps == null ? INITIAL_CAPACITY : list.size * 2;
+            if (!allocate((withValues ? 8L : 4L) * (capacity - list.size)) || step > Integer.MAX_VALUE) {
+                return false;
+            }
+            if (list.steps == null) {
+                list.steps = new int[capacity];
+                list.values = withValues ? new int[capacity] : null;
+                list.initialValue = oldValue;
+            } else {
+                list.steps = Arrays.copyOf(list.steps, capacity);
+                list.values = withValues ? Arrays.copyOf(list.values, capacity) : null;
+            }
+        }
+        list.steps[list.size] = (int) step;
+        if (withValues) {
+            list.values[list.size] = newValue;
+        }
+        list.size++;
+        return true;
+    }
+
+    // account for the bytes, false if they exceed the budget
+    private boolean allocate(long bytes) {
+        usedBytes += bytes;
+        if (usedBytes > memoryBudget) {
+            full = true;
+        }
+        return !full;
+    }
+
+    /**
+     * Mark all steps before the given one as indexed, unless the index is
+     * full.
+     */
+    void cover(long steps) {
+        if (!full) {
+            coveredSteps = steps;
+        }
+    }
+
+    boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @return the number of steps from the beginning that are indexed
+     */
+    long coveredSteps() {
+        return coveredSteps;
+    }
+
+    /**
+     * @param filter applied to the values before and after the step, null
+     *               to accept every step
+     * @return the latest indexed step at or before the given one in the
+     * list of the address that is accepted by the filter, -1 if there is
+     * none
+     */
+    long floor(int addr, long step, WriteFilter filter) {
+        StepList list = listFor(addr, false);
+        if (list == null || list.size == 0 || step < 0 || coveredSteps == 0) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(list.steps, 0, list.size, (int) Math.min(step, coveredSteps - 1));
+        if (index < 0) {
+            // insertion point minus one
+            index = -index - 2;
+        }
+        while (index >= 0 && !list.accepts(index, filter)) {
+            index--;
+        }
+        return index < 0 ? -1 : list.steps[index];
+    }
+
+    /**
+     * @param filter applied to the values before and after the step, null
+     *               to accept every step
+     * @return the earliest indexed step at or after the given one in the
+     * list of the address that is accepted by the filter, -1 if there is
+     * none
+     */
+    long ceiling(int addr, long step, WriteFilter filter) {
+        StepList list = listFor(addr, false);
+        if (list == null || list.size == 0 || step >= coveredSteps) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(list.steps, 0, list.size, (int) Math.max(step, 0));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // steps added after the index became full are not covered
+        while (index < list.size && list.steps[index] < coveredSteps && !list.accepts(index, filter)) {
+            index++;
+        }
+        return index < list.size && list.steps[index] < coveredSteps ? list.steps[index] : -1;
+    }
+
+    /**
+     * Remove all steps, no steps are covered afterwards.
+     */
+    void clear() {
+        Arrays.fill(pages, null);
+        accu = null;
+        iar = null;
+        usedBytes = 0;
+        coveredSteps = 0;
+        full = false;
+    }
+
+    private StepList listFor(int addr, boolean create) {
+        if (addr == State.ACCU) {
+            if (accu == null && create && allocate(16)) {
+                accu = new StepList();
+            }
+            return accu;
+        }
+        if (addr == State.IAR) {
+            if (iar == null && create && allocate(16)) {
+                iar = new StepList();
+            }
+            return iar;
+        }
+        int p = addr >> Constants.PAGE_WIDTH;
+        StepList[] page = pages[p];
+        if (page == null) {
+            if (!create || !allocate(4L * Constants.PAGE_SIZE)) {
+                return null;
+            }
+            page = new StepList[Constants.PAGE_SIZE];
+            pages[p] = page;
+        }
+        int i = addr & Constants.PAGE_MASK;
+        StepList list = page[i];
+        if (list == null && create && allocate(16)) {
+            list = new StepList();
+            page[i] = list;
+        }
+        return list;
+    }
+
+    long getUsedBytes() {
+        return usedBytes;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Lookup of the commands and labels of an assembled program by address,
+ * label and source line.
+ *
+ * The table is immutable. Addresses are mapped with open addressing hash
+ * tables of primitive ints, so that a lookup does not allocate.
+ */
+public final class SymbolTable {
+
+    /**
+     * Returned for labels and lines without an address.
+     */
+    public static final int NO_ADDRESS = Integer.MIN_VALUE;
+
+    private final Command[] commands;
+    // address to the index of its first command
+    private final IntMap commandIndex;
+
+    // label names grouped by address, in the iteration order of the label map
+    private final String[] labelNames;
+    private final int[] labelAddresses;
+    // address to the index of its first label
+    private final IntMap labelIndex;
+    private final Map<String, Integer> labelMap;
+
+    // source line to the address of its first command, NO_ADDRESS if none
+    private final int[] lineAddresses;
+
+    public SymbolTable(List<Command> commands, Map<String, Integer> labelMap) {
+        this.commands = commands.toArray(new Command[0]);
+        this.commandIndex = new IntMap(this.commands.length);
+        int maxLine = 0;
+        for (int i = 0; i < this.commands.length; i++) {
+            commandIndex.putIfAbsent(this.commands[i].address(), i);
+            maxLine = Math.max(maxLine, this.commands[i].getMnemonicLine());
+        }
+
+        this.lineAddresses = new int[maxLine + 1];
+        Arrays.fill(lineAddresses, NO_ADDRESS);
+        for (Command command : this.commands) {
+            int line = command.getMnemonicLine();
+            if (line > 0 && lineAddresses[line] == NO_ADDRESS) {
+                lineAddresses[line] = command.address();
+            }
+        }
+
+        this.labelMap = labelMap;
+        List<Entry<String, Integer>> entries = new ArrayList<>(labelMap.entrySet());
+        // stable, so that the first label of an address stays first
+        entries.sort(Entry.comparingByValue());
+        this.labelNames = new String[entries.size()];
+        this.labelAddresses = new int[entries.size()];
+        this.labelIndex = new IntMap(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            labelNames[i] = entries.get(i).getKey();
+            labelAddresses[i] = entries.get(i).getValue();
+            labelIndex.putIfAbsent(labelAddresses[i], i);
+        }
+    }
+
+    /**
+     * @return the first command at the address, null if there is none
+     */
+    public Command getCommand(int address) {
+        int index = commandIndex.get(address);
+        return index < 0 ? null : commands[index];
+    }
+
+    /**
+     * @return the first label of the address, null if there is none
+     */
+    public String getLabel(int address) {
+        int index = labelIndex.get(address);
+        return index < 0 ? null : labelNames[index];
+    }
+
+    /**
+     * @return all labels of the address, unmodifiable
+     */
+    public List<String> getLabels(int address) {
+        int index = labelIndex.get(address);
+        if (index < 0) {
+            return List.of();
+        }
+        int end = index;
+        while (end < labelAddresses.length && labelAddresses[end] == address) {
+            end++;
+        }
+        return Collections.unmodifiableList(Arrays.asList(labelNames).subList(index, end));
+    }
+
+    /**
+     * @return the address of the label, {@link #NO_ADDRESS} if it is not
+     * defined
+     */
+    public int getAddress(String label) {
+        Integer address = labelMap.get(label);
+        return address == null ? NO_ADDRESS : address;
+    }
+
+    /**
+     * @param line a line of the source, starting with 1
+     * @return the address of the first command whose mnemonic is in the
+     * line, {@link #NO_ADDRESS} if there is none
+     */
+    public int getAddressOfLine(int line) {
+        return line > 0 && line < lineAddresses.length ? lineAddresses[line] : NO_ADDRESS;
+    }
+
+    /*
+     * Map from int keys to non-negative int values with open addressing and
+     * linear probing. Absent keys are mapped to -1.
+     */
+    private static final class IntMap {
+        private final int[] keys;
+        private final int[] values;
+        private final int mask;
+
+        IntMap(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+            this.keys = new int[capacity];
+            this.values = new int[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(values, -1);
+        }
+
+        void putIfAbsent(int key, int value) {
+            int slot = slot(key);
+            if (values[slot] < 0) {
+                keys[slot] = key;
+                values[slot] = value;
+            }
+        }
+
+        int get(int key) {
+            return values[slot(key)];
+        }
+
+        // the slot holding the key or the empty slot where it belongs
+        private int slot(int key) {
+            int hash = key * 0x9e3779b9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (values[slot] >= 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+/**
+ * The outcome of a test case, see {@link MimaVerification#runTests}.
+ *
+ * @param name       the name of the test case
+ * @param passed     whether the program ran and all post conditions hold
+ * @param steps      the number of executed steps
+ * @param haltReason why execution stopped, null if the test case could not
+ *                   be run
+ * @param failure    the first violated post condition or the exception
+ *                   that stopped the test case, null if it passed
+ */
+public record TestResult(String name, boolean passed, long steps, RunResult.HaltReason haltReason,
+                         String failure) {
+}
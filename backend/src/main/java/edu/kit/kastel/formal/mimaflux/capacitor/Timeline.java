@@ -14,42 +14,118 @@
  */
 package edu.kit.kastel.formal.mimaflux.capacitor;
 
+import edu.kit.kastel.formal.mimaflux.capacitor.Checkpoints.Checkpoint;
+
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
-public class Timeline {
+public class Timeline implements Closeable {
 
     public final static int STEP = -3;
 
-    private final Update[][] updates;
+    // steps recorded at once when moving past the recorded steps
+    private static final int RECORDING_CHUNK = 1 << 12;
+    // steps recorded between two progress reports in recordAll
+    private static final int RECORDING_BATCH = 1 << 14;
+
+    /**
+     * Records further steps into the update log of a timeline. It is only
+     * called while the timeline is locked.
+     */
+    @FunctionalInterface
+    interface Recorder {
+        /**
+         * Record steps until the log holds the given number of steps.
+         *
+         * @return false if no further steps can be recorded
+         */
+        boolean recordUntil(long steps);
+    }
+
+    private static final long[] ALL_PAGES = new long[Constants.PAGE_COUNT / 64];
+    static {
+        Arrays.fill(ALL_PAGES, -1L);
+    }
+
+    private final UpdateLog updates;
+    private final Checkpoints checkpoints;
+    // built from the update log when first queried
+    private final WriteIndex writes = new WriteIndex(WriteIndex.DEFAULT_MEMORY_BUDGET);
+    private final IARIndex iarPositions = new IARIndex(IARIndex.DEFAULT_MEMORY_BUDGET);
+    // kept up to date by the builder while recording
+    private final WatchpointHits watchpointHits;
+    private final int initialIAR;
+    // held while reading or recording updates and checkpoints
+    private final Object lock = new Object();
+    // records further steps, null once the timeline is complete
+    private Recorder recorder;
+    // set for loaded traces that were saved before all steps were recorded
+    private boolean truncated;
+    private Cycle cycle;
 
     private final String fileContent;
     private final Map<String, Integer> labelMap;
     private final List<Command> commands;
+    private final Map<Integer, Integer> initialValues;
+    private final SymbolTable symbols;
     private final State state;
 
-    private int currentPosition = 0;
-    private final List<UpdateListener> listeners = new ArrayList<>();
+    private long currentPosition = 0;
+
+    // counters for getStatistics
+    private long seeks;
+    private long seekDistance;
+    private long recordingNanos;
+    private final List<TimelineListener> listeners = new ArrayList<>();
+    private final ChangeSet changeSet;
+
+    // the checkpoint pages the memory has last been restored from and the
+    // pages that have been modified since then
+    private int[][] restoredPages;
+    private final long[] dirtyPages = new long[Constants.PAGE_COUNT / 64];
 
-    public Timeline(Update[][] updates, String fileContent, Map<String, Integer> labelMap,
+    // addresses changed during a move, reported once the move is complete
+    private int[] changed = new int[64];
+    private int changedCount;
+    private long[] changedBits;
+
+    public Timeline(UpdateLog updates, Checkpoints checkpoints, String fileContent, Map<String, Integer> labelMap,
                     List<Command> commands, Map<Integer, Integer> initialValues, Logger logger) {
+        this(updates, checkpoints, new WatchpointHits(WatchpointHits.DEFAULT_MEMORY_BUDGET), fileContent, labelMap,
+                commands, initialValues, logger);
+    }
+
+    Timeline(UpdateLog updates, Checkpoints checkpoints, WatchpointHits watchpointHits, String fileContent,
+             Map<String, Integer> labelMap, List<Command> commands, Map<Integer, Integer> initialValues,
+             Logger logger) {
         this.updates = updates;
+        this.checkpoints = checkpoints;
+        this.watchpointHits = watchpointHits;
         this.fileContent = fileContent;
         this.labelMap = labelMap;
         this.commands = commands;
+        this.initialValues = initialValues;
+        this.symbols = new SymbolTable(commands, labelMap);
         this.state = new State(commands, initialValues, logger);
         int start = labelMap.getOrDefault(Constants.START_LABEL, 0);
         state.set(State.IAR, start);
+        this.restoredPages = checkpoints.floor(0).pages();
+        this.initialIAR = checkpoints.floor(0).iar();
+        this.changeSet = new ChangeSet(state);
+        for (int p = 0; p < Constants.PAGE_COUNT; p++) {
+            state.adoptPage(p, restoredPages[p]);
+        }
     }
 
     private void update(int addr, int val) {
-        if(addr != STEP) {
-            state.set(addr, val);
-        }
-        for (UpdateListener listener : listeners) {
-            listener.memoryChanged(addr, val);
+        state.set(addr, val);
+        if (addr >= 0) {
+            markDirty(addr);
+            addChanged(addr);
         }
     }
 
@@ -57,20 +133,62 @@ public class Timeline {
         return state;
     }
 
-    public void addListener(UpdateListener listener) {
+    public void addListener(TimelineListener listener) {
         listeners.add(listener);
     }
 
-    public void addToPosition(int offset) {
+    /**
+     * Add a listener that is informed about every changed address
+     * separately: first the memory addresses, then ACCU, IAR and
+     * {@link #STEP}.
+     */
+    public void addListener(UpdateListener listener) {
+        addListener(changes -> {
+            for (int i = 0; i < changes.size(); i++) {
+                listener.memoryChanged(changes.getAddress(i), changes.getValue(i));
+            }
+            listener.memoryChanged(State.ACCU, changes.getAccu());
+            listener.memoryChanged(State.IAR, changes.getIAR());
+            // listeners only get the lower bits of the position, see UpdateListener
+            listener.memoryChanged(STEP, (int) changes.getPosition());
+        });
+    }
+
+    public void addToPosition(long offset) {
         setPosition(currentPosition + offset);
     }
 
-    public void setPosition(int position) {
+    public void setPosition(long position) {
+        Events.Seek event = new Events.Seek();
+        event.begin();
+        synchronized (lock) {
+            long from = currentPosition;
+            moveTo(position);
+            seeks++;
+            seekDistance += Math.abs(currentPosition - from);
+            if (event.shouldCommit()) {
+                event.from = from;
+                event.to = currentPosition;
+                event.distance = Math.abs(currentPosition - from);
+                event.commit();
+            }
+        }
+    }
+
+    private void moveTo(long position) {
 
-        position = Math.min(updates.length, position);
+        if (position > updates.size()) {
+            extendTo(Math.max(position, updates.size() + RECORDING_CHUNK));
+        }
+        position = Math.min(updates.size(), position);
         position = Math.max(0, position);
 
-        if(currentPosition < position) {
+        changedCount = 0;
+        Checkpoint checkpoint = checkpoints.floor(position);
+        long distance = Math.abs(position - currentPosition);
+        if (position - checkpoint.step() < distance) {
+            seek(checkpoint, position);
+        } else if(currentPosition < position) {
             while(currentPosition < position) {
                 incrementPosition();
             }
@@ -80,24 +198,101 @@ public class Timeline {
             }
         }
 
-        update(STEP, currentPosition);
+        for (int i = 0; i < changedCount; i++) {
+            changedBits[changed[i] >> 6] = 0L;
+        }
+        changeSet.reset(changed, changedCount, currentPosition);
+        for (TimelineListener listener : listeners) {
+            listener.timelineChanged(changeSet);
+        }
+    }
+
+    /*
+     * Restore the checkpoint and replay the remaining steps.
+     */
+    private void seek(Checkpoint checkpoint, long position) {
+        int[][] pages = checkpoint.pages();
+        for (int p = 0; p < Constants.PAGE_COUNT; p++) {
+            if (pages[p] == restoredPages[p] && (dirtyPages[p >> 6] & (1L << p)) == 0) {
+                continue;
+            }
+            int[] current = state.peekPage(p);
+            int[] page = pages[p];
+            for (int i = 0; i < Constants.PAGE_SIZE && current != page; i++) {
+                if (current[i] != page[i]) {
+                    addChanged((p << Constants.PAGE_WIDTH) | i);
+                }
+            }
+            state.adoptPage(p, page);
+        }
+        restoredPages = pages;
+        Arrays.fill(dirtyPages, 0L);
+        state.set(State.IAR, checkpoint.iar());
+        state.set(State.ACCU, checkpoint.accu());
+
+        for (currentPosition = checkpoint.step(); currentPosition < position; currentPosition++) {
+            extendCheckpoints();
+            long end = updates.stepEnd(currentPosition);
+            for (long i = updates.stepStart(currentPosition); i < end; i++) {
+                int addr = updates.getAddress(i);
+                state.set(addr, updates.getNewValue(i));
+                if (addr >= 0) {
+                    markDirty(addr);
+                    addChanged(addr);
+                }
+            }
+        }
+    }
+
+    /*
+     * A timeline loaded from a trace file starts with the initial checkpoint
+     * only. Further checkpoints are taken when replaying past the last one.
+     */
+    private void extendCheckpoints() {
+        if (currentPosition > checkpoints.lastStep() && checkpoints.isDue(currentPosition)) {
+            checkpoints.capture(currentPosition, state, ALL_PAGES);
+        }
+    }
+
+    private void markDirty(int addr) {
+        if (addr >= 0) {
+            int page = addr >> Constants.PAGE_WIDTH;
+            dirtyPages[page >> 6] |= 1L << page;
+        }
+    }
+
+    private void addChanged(int addr) {
+        if (changedBits == null) {
+            changedBits = new long[Constants.ADDRESS_RANGE / 64];
+        }
+        if ((changedBits[addr >> 6] & (1L << addr)) != 0) {
+            return;
+        }
+        changedBits[addr >> 6] |= 1L << addr;
+        if (changedCount == changed.length) {
+            changed = Arrays.copyOf(changed, changedCount * 2);
+        }
+        changed[changedCount++] = addr;
     }
 
     private void decrementPosition() {
         currentPosition--;
-        for (Update update : updates[currentPosition]) {
-            update(update.addr(), update.oldValue());
+        long start = updates.stepStart(currentPosition);
+        for (long i = updates.stepEnd(currentPosition) - 1; i >= start; i--) {
+            update(updates.getAddress(i), updates.getOldValue(i));
         }
     }
 
     private void incrementPosition() {
-        for (Update update : updates[currentPosition]) {
-            update(update.addr(), update.newValue());
+        extendCheckpoints();
+        long end = updates.stepEnd(currentPosition);
+        for (long i = updates.stepStart(currentPosition); i < end; i++) {
+            update(updates.getAddress(i), updates.getNewValue(i));
         }
         currentPosition ++;
     }
 
-    public int getPosition() {
+    public long getPosition() {
         return currentPosition;
     }
 
@@ -109,29 +304,456 @@ public class Timeline {
         return state.get(adr);
     }
 
-    public int countStates() {
-        return updates.length;
+    void setRecorder(Recorder recorder) {
+        synchronized (lock) {
+            this.recorder = recorder;
+        }
     }
 
-    public Command findIARCommand() {
-        for (Command command : commands) {
-            if(command.address() == state.get(State.IAR)) {
-                return command;
+    /**
+     * @return whether all steps have been recorded, i.e. the program has
+     * halted or the maximum number of steps has been reached
+     */
+    public boolean isComplete() {
+        synchronized (lock) {
+            return recorder == null && !truncated;
+        }
+    }
+
+    /**
+     * @return whether further steps can be recorded, which is neither the
+     * case for complete timelines nor for loaded ones
+     */
+    public boolean canRecord() {
+        synchronized (lock) {
+            return recorder != null;
+        }
+    }
+
+    void setTruncated(boolean truncated) {
+        synchronized (lock) {
+            this.truncated = truncated;
+        }
+    }
+
+    void setCycle(Cycle cycle) {
+        this.cycle = cycle;
+    }
+
+    /**
+     * @return the cycle that has ended the recording, null if the program
+     * halted, reached the maximum number of steps or has not been recorded
+     * completely
+     */
+    public Cycle getCycle() {
+        synchronized (lock) {
+            return cycle;
+        }
+    }
+
+    /**
+     * Record further steps until the timeline has the given number of
+     * steps or is complete.
+     *
+     * @return the number of steps recorded so far
+     */
+    public long extendTo(long steps) {
+        synchronized (lock) {
+            if (recorder != null && updates.size() < steps) {
+                Events.Record event = new Events.Record();
+                event.begin();
+                long start = System.nanoTime();
+                long recordedSteps = updates.size();
+                long recordedUpdates = updates.countUpdates();
+                if (!recorder.recordUntil(steps)) {
+                    recorder = null;
+                }
+                recordingNanos += System.nanoTime() - start;
+                if (event.shouldCommit()) {
+                    event.steps = updates.size() - recordedSteps;
+                    event.updates = updates.countUpdates() - recordedUpdates;
+                    event.bytes = updates.getUsedBytes();
+                    event.complete = recorder == null;
+                    event.commit();
+                }
             }
+            return updates.size();
         }
-        return null;
     }
 
-    public String getNameFor(int adr) {
-        for (Entry<String, Integer> entry : labelMap.entrySet()) {
-            if (entry.getValue() == adr) {
-                return entry.getKey();
+    /**
+     * @return the counters of the recording and of the moves through the
+     * timeline: recorded steps and updates, bytes taken by the update log
+     * and the checkpoints, time spent recording, number of seeks and steps
+     * moved
+     */
+    public Statistics getStatistics() {
+        synchronized (lock) {
+            return new Statistics()
+                    .put("steps", updates.size())
+                    .put("updates", updates.countUpdates())
+                    .put("logBytes", updates.getUsedBytes())
+                    .put("checkpoints", checkpoints.size())
+                    .put("checkpointBytes", checkpoints.getUsedBytes())
+                    .put("recordingNanos", recordingNanos)
+                    .put("seeks", seeks)
+                    .put("seekDistance", seekDistance);
+        }
+    }
+
+    /**
+     * Record all remaining steps. The timeline is only locked while a batch
+     * of steps is recorded, so that it can be used by other threads
+     * meanwhile.
+     *
+     * @param monitor informed after every batch, may be null
+     */
+    public void recordAll(RecordingMonitor monitor) {
+        while (canRecord()) {
+            long steps = extendTo(countStates() + RECORDING_BATCH);
+            if (monitor != null && !monitor.progress(steps)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of steps recorded so far
+     */
+    public long countStates() {
+        synchronized (lock) {
+            return updates.size();
+        }
+    }
+
+    /**
+     * Find the last recorded write to an address before the given position.
+     *
+     * @param addr a memory address, {@link State#ACCU} or {@link State#IAR}
+     * @return the position right after the latest step that wrote the
+     * address and ended before the given position, -1 if there is none
+     */
+    public long previousWrite(int addr, long position) {
+        return previousWrite(addr, position, null);
+    }
+
+    /**
+     * Find the last recorded write to an address before the given position
+     * that is accepted by the filter, e.g. the last time ACCU became
+     * negative.
+     *
+     * @param filter applied to the values before and after the step, null
+     *               to accept every write
+     * @return the position right after the step, -1 if there is none
+     */
+    public long previousWrite(int addr, long position, WriteFilter filter) {
+        synchronized (lock) {
+            writes.extend(updates);
+            long step = Math.min(position - 2, updates.size() - 1);
+            // beyond the memory budget of the index
+            for (; step >= writes.coveredSteps(); step--) {
+                if (writes(step, addr, filter)) {
+                    return step + 1;
+                }
+            }
+            step = writes.floor(addr, step, filter);
+            return step < 0 ? -1 : step + 1;
+        }
+    }
+
+    /**
+     * Find the next write to an address after the given position. Further
+     * steps are recorded as needed until the timeline has the given number
+     * of steps, pass {@link #countStates()} to search the recorded steps
+     * only.
+     *
+     * @param addr a memory address, {@link State#ACCU} or {@link State#IAR}
+     * @return the position right after the earliest step that wrote the
+     * address and started at or after the given position, -1 if there is
+     * none within the searched steps
+     */
+    public long nextWrite(int addr, long position, long steps) {
+        return nextWrite(addr, position, null, steps);
+    }
+
+    /**
+     * Find the next write to an address after the given position that is
+     * accepted by the filter, see {@link #nextWrite(int, long, long)}.
+     *
+     * @param filter applied to the values before and after the step, null
+     *               to accept every write
+     * @return the position right after the step, -1 if there is none
+     */
+    public long nextWrite(int addr, long position, WriteFilter filter, long steps) {
+        synchronized (lock) {
+            long step = Math.max(position, 0);
+            while (true) {
+                long found = findNextWrite(addr, step, filter);
+                if (found >= 0 || recorder == null || updates.size() >= steps) {
+                    return found;
+                }
+                // all recorded steps have been searched
+                step = Math.max(step, updates.size());
+                extendTo(Math.min(steps, updates.size() + RECORDING_BATCH));
+            }
+        }
+    }
+
+    private long findNextWrite(int addr, long step, WriteFilter filter) {
+        writes.extend(updates);
+        long found = writes.ceiling(addr, step, filter);
+        if (found >= 0) {
+            return found + 1;
+        }
+        // beyond the memory budget of the index
+        long size = updates.size();
+        for (step = Math.max(step, writes.coveredSteps()); step < size; step++) {
+            if (writes(step, addr, filter)) {
+                return step + 1;
+            }
+        }
+        return -1;
+    }
+
+    // whether the step writes the address and the write passes the filter
+    private boolean writes(long step, int addr, WriteFilter filter) {
+        boolean found = false;
+        int oldValue = 0;
+        int newValue = 0;
+        long end = updates.stepEnd(step);
+        for (long i = updates.stepStart(step); i < end; i++) {
+            if (updates.getAddress(i) == addr) {
+                if (!found) {
+                    oldValue = updates.getOldValue(i);
+                    found = true;
+                }
+                newValue = updates.getNewValue(i);
+            }
+        }
+        return found && (filter == null || filter.test(oldValue, newValue));
+    }
+
+    /**
+     * Find the next position at which the IAR holds one of the given
+     * addresses. Further steps are recorded as needed until the timeline has
+     * the given number of steps, pass {@link #countStates()} to search the
+     * recorded steps only.
+     *
+     * @return the earliest position after the given one with the IAR at one
+     * of the addresses, -1 if there is none within the searched steps
+     */
+    public long nextIARPosition(int[] addresses, long position, long steps) {
+        synchronized (lock) {
+            while (true) {
+                long found = findNextIARPosition(addresses, position);
+                if (found >= 0 || recorder == null || updates.size() >= steps) {
+                    return found;
+                }
+                // all recorded positions have been searched
+                position = Math.max(position, updates.size());
+                extendTo(Math.min(steps, updates.size() + RECORDING_BATCH));
+            }
+        }
+    }
+
+    private long findNextIARPosition(int[] addresses, long position) {
+        iarPositions.extend(updates, initialIAR);
+        long result = -1;
+        for (int addr : addresses) {
+            long found = iarPositions.ceiling(addr, position + 1);
+            if (found >= 0 && (result < 0 || found < result)) {
+                result = found;
+            }
+        }
+        if (result >= 0) {
+            return result;
+        }
+        // beyond the memory budget of the index
+        long covered = iarPositions.coveredPositions();
+        int iar = iarAt(covered - 1);
+        for (long pos = covered; pos <= updates.size(); pos++) {
+            iar = pos == 0 ? initialIAR : iarAfter(pos - 1, iar);
+            if (pos > position && contains(addresses, iar)) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the previous position at which the IAR holds one of the given
+     * addresses.
+     *
+     * @return the latest position before the given one with the IAR at one
+     * of the addresses, -1 if there is none
+     */
+    public long previousIARPosition(int[] addresses, long position) {
+        synchronized (lock) {
+            iarPositions.extend(updates, initialIAR);
+            long pos = Math.min(position - 1, updates.size());
+            // beyond the memory budget of the index
+            for (; pos >= iarPositions.coveredPositions(); pos--) {
+                if (contains(addresses, iarAt(pos))) {
+                    return pos;
+                }
+            }
+            long result = -1;
+            for (int addr : addresses) {
+                result = Math.max(result, iarPositions.floor(addr, pos));
             }
+            return result;
         }
-        return null;
+    }
+
+    // the IAR at the given position
+    private int iarAt(long position) {
+        for (long step = position - 1; step >= 0; step--) {
+            long start = updates.stepStart(step);
+            for (long i = updates.stepEnd(step) - 1; i >= start; i--) {
+                if (updates.getAddress(i) == State.IAR) {
+                    return updates.getNewValue(i);
+                }
+            }
+        }
+        return initialIAR;
+    }
+
+    // the IAR after the given step, given the IAR before it
+    private int iarAfter(long step, int iar) {
+        long end = updates.stepEnd(step);
+        for (long i = updates.stepStart(step); i < end; i++) {
+            if (updates.getAddress(i) == State.IAR) {
+                iar = updates.getNewValue(i);
+            }
+        }
+        return iar;
+    }
+
+    private static boolean contains(int[] addresses, int addr) {
+        for (int a : addresses) {
+            if (a == addr) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace the watchpoints of the timeline. The steps recorded so far
+     * are searched for hits, further steps are checked while they are
+     * recorded.
+     */
+    public void setWatchpoints(Watchpoints watchpoints) {
+        synchronized (lock) {
+            watchpointHits.reset(watchpoints);
+            watchpointHits.extend(updates);
+        }
+    }
+
+    public Watchpoints getWatchpoints() {
+        synchronized (lock) {
+            return watchpointHits.getWatchpoints();
+        }
+    }
+
+    /**
+     * Find the next step that hits a watchpoint. Further steps are recorded
+     * as needed until the timeline has the given number of steps, pass
+     * {@link #countStates()} to search the recorded steps only.
+     *
+     * @return the position right after the earliest step that hits a
+     * watchpoint and started at or after the given position, -1 if there is
+     * none within the searched steps
+     */
+    public long nextWatchpointHit(long position, long steps) {
+        synchronized (lock) {
+            if (watchpointHits.getWatchpoints().isEmpty()) {
+                return -1;
+            }
+            long step = Math.max(position, 0);
+            while (true) {
+                watchpointHits.extend(updates);
+                long found = watchpointHits.ceiling(step);
+                if (found >= 0) {
+                    return found + 1;
+                }
+                // beyond the memory budget of the list
+                long size = updates.size();
+                for (step = Math.max(step, watchpointHits.coveredSteps()); step < size; step++) {
+                    if (watchpointHits.hits(updates, step)) {
+                        return step + 1;
+                    }
+                }
+                if (recorder == null || size >= steps) {
+                    return -1;
+                }
+                extendTo(Math.min(steps, size + RECORDING_BATCH));
+            }
+        }
+    }
+
+    /**
+     * Find the previous step that hits a watchpoint.
+     *
+     * @return the position right after the latest step that hits a
+     * watchpoint and ended before the given position, -1 if there is none
+     */
+    public long previousWatchpointHit(long position) {
+        synchronized (lock) {
+            watchpointHits.extend(updates);
+            long step = Math.min(position - 2, updates.size() - 1);
+            // beyond the memory budget of the list
+            for (; step >= watchpointHits.coveredSteps(); step--) {
+                if (watchpointHits.hits(updates, step)) {
+                    return step + 1;
+                }
+            }
+            step = watchpointHits.floor(step);
+            return step < 0 ? -1 : step + 1;
+        }
+    }
+
+    public Command findIARCommand() {
+        return symbols.getCommand(state.get(State.IAR));
+    }
+
+    public String getNameFor(int adr) {
+        return symbols.getLabel(adr);
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
     }
 
     public Map<String, Integer> getLabelMap() {
         return labelMap;
     }
+
+    public List<Command> getCommands() {
+        return commands;
+    }
+
+    public Map<Integer, Integer> getInitialValues() {
+        return initialValues;
+    }
+
+    UpdateLog getUpdateLog() {
+        return updates;
+    }
+
+    Object getLock() {
+        return lock;
+    }
+
+    /**
+     * Release the update log. The timeline must not be used afterwards, in
+     * particular no thread may still be recording it.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            recorder = null;
+            updates.close();
+        }
+    }
 }
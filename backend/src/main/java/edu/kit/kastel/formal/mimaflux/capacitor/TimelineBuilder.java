@@ -14,15 +14,20 @@
  */
 package edu.kit.kastel.formal.mimaflux.capacitor;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 public class TimelineBuilder {
 
-    private final List<Update[]> updates = new ArrayList<>();
-
-    private final List<Update> curUpdates = new ArrayList<>();
+    private final AppendableUpdateLog updates;
+    private final Checkpoints checkpoints = new Checkpoints(Checkpoints.DEFAULT_MEMORY_BUDGET);
+    private final long[] dirtyPages = new long[Constants.PAGE_COUNT / 64];
+    private final WatchpointHits watchpointHits = new WatchpointHits(WatchpointHits.DEFAULT_MEMORY_BUDGET);
+    private final CycleDetector cycles = new CycleDetector(CycleDetector.DEFAULT_CAPACITY);
+    // whether the current step has not increased the IAR
+    private boolean jumpedBack;
+    private Cycle cycle;
 
     private final String fileContent;
     private final Map<String, Integer> labelMap;
@@ -32,32 +37,95 @@ public class TimelineBuilder {
     private final Logger logger;
 
     public TimelineBuilder(String fileContent, Map<String, Integer> labelMap, List<Command> commands, Map<Integer, Integer> initialValues, Logger logger) {
+        this(new MemoryUpdateLog(), fileContent, labelMap, commands, initialValues, logger);
+    }
+
+    public TimelineBuilder(AppendableUpdateLog updates, String fileContent, Map<String, Integer> labelMap, List<Command> commands, Map<Integer, Integer> initialValues, Logger logger) {
+        this.updates = updates;
         this.fileContent = fileContent;
         this.labelMap = labelMap;
         this.commands = commands;
         this.initialValues = initialValues;
-        this.state = new State(commands, initialValues, logger);
+        this.state = initialState(commands, labelMap, initialValues, logger);
         this.logger = logger;
-        int start = labelMap.getOrDefault(Constants.START_LABEL, 0);
-        state.set(State.IAR, start);
+        Arrays.fill(dirtyPages, -1L);
+        checkpoints.capture(0, state, dirtyPages);
+        Arrays.fill(dirtyPages, 0L);
+        cycles.reset(state);
+        cycles.probe(cycles.hash(state.get(State.ACCU), state.get(State.IAR)), 0);
+    }
+
+    /**
+     * Checkpoints holding the initial state only, for a timeline of updates
+     * recorded earlier, see {@link TraceFile#load(java.nio.file.Path, Logger)}.
+     */
+    static Checkpoints initialCheckpoints(List<Command> commands, Map<String, Integer> labelMap,
+                                          Map<Integer, Integer> initialValues, Logger logger) {
+        Checkpoints checkpoints = new Checkpoints(Checkpoints.DEFAULT_MEMORY_BUDGET);
+        long[] allPages = new long[Constants.PAGE_COUNT / 64];
+        Arrays.fill(allPages, -1L);
+        checkpoints.capture(0, initialState(commands, labelMap, initialValues, logger), allPages);
+        return checkpoints;
+    }
+
+    private static State initialState(List<Command> commands, Map<String, Integer> labelMap,
+                                      Map<Integer, Integer> initialValues, Logger logger) {
+        State state = new State(commands, initialValues, logger);
+        state.set(State.IAR, labelMap.getOrDefault(Constants.START_LABEL, 0));
+        return state;
     }
 
     public void set(int addr, int val) {
         int curVal = state.get(addr);
-        curUpdates.add(new Update(addr, curVal, val));
+        updates.add(addr, curVal, val);
+        watchpointHits.write(addr, curVal, val);
         state.set(addr, val);
+        if (addr >= 0) {
+            cycles.write(addr, curVal, val);
+            int page = addr >> Constants.PAGE_WIDTH;
+            dirtyPages[page >> 6] |= 1L << page;
+        } else if (addr == State.IAR && val <= curVal) {
+            jumpedBack = true;
+        }
     }
 
     public void commit() {
-        updates.add(curUpdates.toArray(Update[]::new));
-        curUpdates.clear();
+        updates.commit();
+        watchpointHits.commit(updates.size() - 1);
+        if (jumpedBack) {
+            jumpedBack = false;
+            if (cycle == null && cycles.isDue()) {
+                probe();
+            }
+        }
+        if (checkpoints.isDue(updates.size())) {
+            checkpoints.capture(updates.size(), state, dirtyPages);
+            Arrays.fill(dirtyPages, 0L);
+        }
+    }
+
+    private void probe() {
+        long position = updates.size();
+        long earlier = cycles.probe(cycles.hash(state.get(State.ACCU), state.get(State.IAR)), position);
+        if (earlier >= 0 && CycleDetector.sameState(updates, earlier, state)) {
+            cycle = new Cycle(earlier, position);
+        }
+    }
+
+    /**
+     * @return the first cycle found among the recorded steps, null if there
+     * is none. Once there is a cycle, further steps only repeat earlier
+     * ones.
+     */
+    public Cycle getCycle() {
+        return cycle;
     }
 
     public void incIAR() {
         set(State.IAR, (state.get(State.IAR) + 1) & Constants.ADDRESS_MASK);
     }
 
-    public int size() {
+    public long size() {
         return updates.size();
     }
 
@@ -65,8 +133,11 @@ public class TimelineBuilder {
         return state;
     }
 
+    /**
+     * Create the timeline of the steps recorded so far. Further steps may
+     * only be recorded by the {@link Timeline.Recorder} of the timeline.
+     */
     public Timeline build() {
-        Update[][] array = updates.toArray(Update[][]::new);
-        return new Timeline(array, fileContent, labelMap, commands, initialValues, logger);
+        return new Timeline(updates, checkpoints, watchpointHits, fileContent, labelMap, commands, initialValues, logger);
     }
 }
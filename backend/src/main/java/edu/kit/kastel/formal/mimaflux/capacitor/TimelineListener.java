@@ -14,5 +14,16 @@
  */
 package edu.kit.kastel.formal.mimaflux.capacitor;
 
-public record Update(int addr, int oldValue, int newValue) {
+/**
+ * Observes the position of a timeline, see
+ * {@link Timeline#addListener(TimelineListener)}.
+ */
+@FunctionalInterface
+public interface TimelineListener {
+
+    /**
+     * Called once after every change of the position, with all changes
+     * coalesced. The change set is only valid during the call.
+     */
+    void timelineChanged(ChangeSet changes);
 }
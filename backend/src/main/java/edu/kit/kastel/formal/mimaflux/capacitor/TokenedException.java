@@ -30,6 +30,8 @@ public class TokenedException extends RuntimeException {
 
     @Override
     public String getMessage() {
-        return super.getMessage() + " near line " + token.getLine() + ":" + token.getCharPositionInLine();
+        // tokens of commands without parse context have no position in the line
+        return super.getMessage() + " near line " + token.getLine() +
+                (token.getCharPositionInLine() < 0 ? "" : ":" + token.getCharPositionInLine());
     }
 }
@@ -0,0 +1,313 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32C;
+
+/**
+ * Saving and loading recorded timelines.
+ *
+ * A trace file consists of
+ * <ul>
+ *     <li>a header: magic number, version, length of the metadata,</li>
+ *     <li>the metadata: program text, label map, initial values,
+ *     commands, whether all steps had been recorded and the cycle found,
+ *     followed by their checksum,</li>
+ *     <li>the updates in blocks of {@link #BLOCK_STEPS} steps,</li>
+ *     <li>an index holding offset and checksum of every block,</li>
+ *     <li>a footer: number of steps and updates, offset of the index.</li>
+ * </ul>
+ *
+ * Within a block, every step is stored as the number of its updates
+ * followed by the updates. An update is stored as the difference of its
+ * address to the previous address in the block, its old value and the
+ * difference of the new value to the old value, all zigzag and varint
+ * encoded.
+ *
+ * Loading a trace reads header, metadata and footer only. Blocks are
+ * decoded and checked when they are first needed.
+ */
+public final class TraceFile {
+
+    public static final String EXTENSION = ".mtrace";
+
+    static final long MAGIC = 0x4d494d4154524331L; // "MIMATRC1"
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 16;
+    static final int FOOTER_BYTES = 32;
+    static final int INDEX_ENTRY_BYTES = 12;
+
+    static final int BLOCK_BITS = 10;
+    static final int BLOCK_STEPS = 1 << BLOCK_BITS;
+
+    private TraceFile() {
+    }
+
+    /**
+     * Save the steps of a timeline recorded so far. A timeline saved before
+     * all steps were recorded is loaded as incomplete, see
+     * {@link Timeline#isComplete()}. The position of the timeline is not
+     * changed. Recording pauses while the timeline is saved.
+     */
+    public static void save(Timeline timeline, Path file) throws IOException {
+        synchronized (timeline.getLock()) {
+            write(timeline, file);
+        }
+    }
+
+    private static void write(Timeline timeline, Path file) throws IOException {
+        UpdateLog updates = timeline.getUpdateLog();
+        long steps = updates.size();
+
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file));
+             DataOutputStream out = new DataOutputStream(os)) {
+            byte[] metadata = encodeMetadata(timeline);
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(metadata.length);
+            out.write(metadata);
+            out.writeInt(checksum(metadata, metadata.length));
+
+            long offset = HEADER_BYTES + metadata.length + 4;
+            int blockCount = (int) ((steps + BLOCK_STEPS - 1) >>> BLOCK_BITS);
+            long[] blockOffsets = new long[blockCount];
+            int[] blockChecksums = new int[blockCount];
+            VarIntBuffer block = new VarIntBuffer();
+            for (int b = 0; b < blockCount; b++) {
+                block.clear();
+                long last = Math.min(steps, (long) (b + 1) << BLOCK_BITS);
+                int prevAddr = 0;
+                for (long step = (long) b << BLOCK_BITS; step < last; step++) {
+                    long start = updates.stepStart(step);
+                    long end = updates.stepEnd(step);
+                    block.writeUnsigned((int) (end - start));
+                    for (long i = start; i < end; i++) {
+                        int addr = updates.getAddress(i);
+                        int oldValue = updates.getOldValue(i);
+                        block.writeSigned(addr - prevAddr);
+                        block.writeSigned(oldValue);
+                        block.writeSigned(updates.getNewValue(i) - oldValue);
+                        prevAddr = addr;
+                    }
+                }
+                blockOffsets[b] = offset;
+                blockChecksums[b] = checksum(block.bytes(), block.size());
+                out.write(block.bytes(), 0, block.size());
+                offset += block.size();
+            }
+
+            long indexOffset = offset;
+            for (int b = 0; b < blockCount; b++) {
+                out.writeLong(blockOffsets[b]);
+                out.writeInt(blockChecksums[b]);
+            }
+
+            out.writeLong(steps);
+            out.writeLong(updates.countUpdates());
+            out.writeLong(indexOffset);
+            out.writeLong(MAGIC);
+        }
+    }
+
+    /**
+     * Load a saved timeline. The updates are read lazily from the file,
+     * which is kept open until the timeline is closed.
+     *
+     * @throws IOException if the file cannot be read or is not a valid
+     * trace file.
+     */
+    public static Timeline load(Path file, Logger logger) throws IOException {
+        TraceFileLog log = new TraceFileLog(file);
+        try {
+            DataInputStream in = log.readMetadata();
+            String fileContent = readString(in);
+
+            Map<String, Integer> labelMap = readLabelMap(in);
+
+            Map<Integer, Integer> initialValues = new HashMap<>();
+            int valueCount = in.readInt();
+            for (int i = 0; i < valueCount; i++) {
+                initialValues.put(in.readInt(), in.readInt());
+            }
+
+            List<Command> commands = readCommands(in);
+            boolean complete = in.readBoolean();
+            Cycle cycle = in.readBoolean() ? new Cycle(in.readLong(), in.readLong()) : null;
+
+            Checkpoints checkpoints = TimelineBuilder.initialCheckpoints(commands, labelMap, initialValues, logger);
+            Timeline timeline = new Timeline(log, checkpoints, fileContent, labelMap, commands, initialValues, logger);
+            timeline.setTruncated(!complete);
+            timeline.setCycle(cycle);
+            return timeline;
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    private static byte[] encodeMetadata(Timeline timeline) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, timeline.getFileContent());
+
+        writeLabelMap(out, timeline.getLabelMap());
+
+        Map<Integer, Integer> initialValues = timeline.getInitialValues();
+        out.writeInt(initialValues.size());
+        for (Entry<Integer, Integer> entry : initialValues.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+
+        writeCommands(out, timeline.getCommands());
+        out.writeBoolean(timeline.isComplete());
+        Cycle cycle = timeline.getCycle();
+        out.writeBoolean(cycle != null);
+        if (cycle != null) {
+            out.writeLong(cycle.from());
+            out.writeLong(cycle.to());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static void writeLabelMap(DataOutputStream out, Map<String, Integer> labelMap) throws IOException {
+        out.writeInt(labelMap.size());
+        for (Entry<String, Integer> entry : labelMap.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    static Map<String, Integer> readLabelMap(DataInputStream in) throws IOException {
+        Map<String, Integer> labelMap = new HashMap<>();
+        int labelCount = in.readInt();
+        for (int i = 0; i < labelCount; i++) {
+            labelMap.put(readString(in), in.readInt());
+        }
+        return labelMap;
+    }
+
+    /**
+     * Write commands without their parse contexts.
+     */
+    static void writeCommands(DataOutputStream out, List<Command> commands) throws IOException {
+        out.writeInt(commands.size());
+        for (Command command : commands) {
+            out.writeInt(command.address());
+            writeNullableString(out, command.label());
+            writeNullableString(out, command.instruction());
+            writeNullableString(out, command.labelArg());
+            out.writeInt(command.valueArg());
+            out.writeInt(command.getMnemonicLine());
+        }
+    }
+
+    static List<Command> readCommands(DataInputStream in) throws IOException {
+        List<Command> commands = new ArrayList<>();
+        int commandCount = in.readInt();
+        for (int i = 0; i < commandCount; i++) {
+            int address = in.readInt();
+            String label = readNullableString(in);
+            String instruction = readNullableString(in);
+            String labelArg = readNullableString(in);
+            int valueArg = in.readInt();
+            int line = in.readInt();
+            commands.add(new Command(address, label, instruction, labelArg, valueArg, null, line));
+        }
+        return commands;
+    }
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeNullableString(DataOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            writeString(out, string);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    static DataInputStream dataInput(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    static int checksum(byte[] bytes, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static class VarIntBuffer {
+        private byte[] bytes = new byte[4096];
+        private int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        void writeSigned(int value) {
+            writeUnsigned((value << 1) ^ (value >> 31));
+        }
+
+        void writeUnsigned(int value) {
+            if (size + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while ((value & ~0x7f) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
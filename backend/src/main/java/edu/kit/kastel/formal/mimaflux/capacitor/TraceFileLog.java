@@ -0,0 +1,240 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * {@link UpdateLog} backed by a trace file, see {@link TraceFile}
+ * for the format.
+ *
+ * The file is mapped in segments on demand. One block of steps is decoded at
+ * a time. An offset consists of the block number in the upper and the index
+ * of the update within the decoded block in the lower 32 bits.
+ */
+class TraceFileLog implements UpdateLog {
+
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final MappedByteBuffer[] segments;
+
+    private final long stepCount;
+    private final long updateCount;
+    private final long indexOffset;
+
+    // the decoded block
+    private int block = -1;
+    private final int[] stepStarts = new int[TraceFile.BLOCK_STEPS + 1];
+    private int[] addresses = new int[1024];
+    private int[] oldValues = new int[1024];
+    private int[] newValues = new int[1024];
+    private int decodePosition;
+
+    TraceFileLog(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            this.fileSize = channel.size();
+            this.segments = new MappedByteBuffer[(int) ((fileSize + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+            if (fileSize < TraceFile.HEADER_BYTES + TraceFile.FOOTER_BYTES ||
+                    readLong(0) != TraceFile.MAGIC || readLong(fileSize - 8) != TraceFile.MAGIC) {
+                throw new IOException(file + " is not a trace file");
+            }
+            if (readInt(8) != TraceFile.VERSION) {
+                throw new IOException(file + " has unsupported version " + readInt(8));
+            }
+            long footer = fileSize - TraceFile.FOOTER_BYTES;
+            this.stepCount = readLong(footer);
+            this.updateCount = readLong(footer + 8);
+            this.indexOffset = readLong(footer + 16);
+            long blockCount = (stepCount + TraceFile.BLOCK_STEPS - 1) >>> TraceFile.BLOCK_BITS;
+            if (indexOffset + blockCount * TraceFile.INDEX_ENTRY_BYTES != footer) {
+                throw new IOException(file + " is truncated or corrupted");
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the verified metadata section of the file
+     */
+    DataInputStream readMetadata() throws IOException {
+        int length = readInt(12);
+        byte[] metadata = readBytes(TraceFile.HEADER_BYTES, length);
+        if (TraceFile.checksum(metadata, length) != readInt(TraceFile.HEADER_BYTES + length)) {
+            throw new IOException(file + ": checksum mismatch in metadata");
+        }
+        return TraceFile.dataInput(metadata);
+    }
+
+    @Override
+    public long size() {
+        return stepCount;
+    }
+
+    @Override
+    public long countUpdates() {
+        return updateCount;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return fileSize;
+    }
+
+    @Override
+    public long stepStart(long step) {
+        int b = (int) (step >>> TraceFile.BLOCK_BITS);
+        decode(b);
+        return ((long) b << 32) | stepStarts[(int) (step & (TraceFile.BLOCK_STEPS - 1))];
+    }
+
+    @Override
+    public long stepEnd(long step) {
+        int b = (int) (step >>> TraceFile.BLOCK_BITS);
+        decode(b);
+        return ((long) b << 32) | stepStarts[(int) (step & (TraceFile.BLOCK_STEPS - 1)) + 1];
+    }
+
+    @Override
+    public int getAddress(long offset) {
+        decode((int) (offset >>> 32));
+        return addresses[(int) offset];
+    }
+
+    @Override
+    public int getOldValue(long offset) {
+        decode((int) (offset >>> 32));
+        return oldValues[(int) offset];
+    }
+
+    @Override
+    public int getNewValue(long offset) {
+        decode((int) (offset >>> 32));
+        return newValues[(int) offset];
+    }
+
+    private void decode(int b) {
+        if (b == block) {
+            return;
+        }
+        long entry = indexOffset + (long) b * TraceFile.INDEX_ENTRY_BYTES;
+        long start = readLong(entry);
+        long end = entry + TraceFile.INDEX_ENTRY_BYTES < fileSize - TraceFile.FOOTER_BYTES ?
+                readLong(entry + TraceFile.INDEX_ENTRY_BYTES) : indexOffset;
+        byte[] bytes = readBytes(start, (int) (end - start));
+        if (TraceFile.checksum(bytes, bytes.length) != readInt(entry + 8)) {
+            throw new UncheckedIOException(new IOException(file + ": checksum mismatch in block " + b));
+        }
+
+        int steps = (int) Math.min(TraceFile.BLOCK_STEPS, stepCount - ((long) b << TraceFile.BLOCK_BITS));
+        decodePosition = 0;
+        int count = 0;
+        int addr = 0;
+        for (int s = 0; s < steps; s++) {
+            stepStarts[s] = count;
+            int updates = readUnsigned(bytes);
+            if (count + updates > addresses.length) {
+                int length = Math.max(addresses.length * 2, count + updates);
+                addresses = Arrays.copyOf(addresses, length);
+                oldValues = Arrays.copyOf(oldValues, length);
+                newValues = Arrays.copyOf(newValues, length);
+            }
+            for (int i = 0; i < updates; i++) {
+                addr += readSigned(bytes);
+                int oldValue = readSigned(bytes);
+                addresses[count] = addr;
+                oldValues[count] = oldValue;
+                newValues[count] = oldValue + readSigned(bytes);
+                count++;
+            }
+        }
+        stepStarts[steps] = count;
+        block = b;
+    }
+
+    private int readSigned(byte[] bytes) {
+        int value = readUnsigned(bytes);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private int readUnsigned(byte[] bytes) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[decodePosition++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private MappedByteBuffer segment(int index) {
+        MappedByteBuffer segment = segments[index];
+        if (segment == null) {
+            long position = (long) index << SEGMENT_BITS;
+            try {
+                segment = channel.map(MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, fileSize - position));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segments[index] = segment;
+        }
+        return segment;
+    }
+
+    private byte[] readBytes(long position, int length) {
+        byte[] result = new byte[length];
+        int done = 0;
+        while (done < length) {
+            long p = position + done;
+            MappedByteBuffer segment = segment((int) (p >>> SEGMENT_BITS));
+            int offset = (int) (p & (SEGMENT_SIZE - 1));
+            int n = Math.min(length - done, segment.limit() - offset);
+            segment.get(offset, result, done, n);
+            done += n;
+        }
+        return result;
+    }
+
+    private long readLong(long position) {
+        return ((long) readInt(position) << 32) | (readInt(position + 4) & 0xffff_ffffL);
+    }
+
+    private int readInt(long position) {
+        byte[] b = readBytes(position, 4);
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+    }
+
+    @Override
+    public void close() throws IOException {
+        Arrays.fill(segments, null);
+        channel.close();
+    }
+}
@@ -14,6 +14,16 @@
  */
 package edu.kit.kastel.formal.mimaflux.capacitor;
 
+/**
+ * Observes a timeline address by address, see
+ * {@link Timeline#addListener(UpdateListener)}. {@link TimelineListener}
+ * receives the same changes as one change set.
+ */
 public interface UpdateListener {
+    /**
+     * Called for every changed address. For {@link Timeline#STEP}, val holds
+     * the lower 32 bits of the new position, use
+     * {@link Timeline#getPosition()} to get all of it.
+     */
     void memoryChanged(int addr, int val);
 }
@@ -0,0 +1,61 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Log of the updates recorded for a timeline, see
+ * {@link AppendableUpdateLog} for recording one.
+ *
+ * Updates are addressed by an offset, the updates of a step are those with
+ * offsets from {@link #stepStart(long)} (inclusive) to
+ * {@link #stepEnd(long)} (exclusive).
+ */
+public interface UpdateLog extends Closeable {
+
+    /**
+     * @return the number of committed steps
+     */
+    long size();
+
+    long countUpdates();
+
+    /**
+     * @return the number of bytes taken by the log, on the heap or on disk
+     */
+    long getUsedBytes();
+
+    /**
+     * @return the offset of the first update of the given step
+     */
+    long stepStart(long step);
+
+    /**
+     * @return the offset behind the last update of the given step
+     */
+    long stepEnd(long step);
+
+    int getAddress(long offset);
+
+    int getOldValue(long offset);
+
+    int getNewValue(long offset);
+
+    @Override
+    default void close() throws IOException {
+    }
+}
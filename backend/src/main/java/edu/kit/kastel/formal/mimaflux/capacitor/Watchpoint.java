@@ -0,0 +1,102 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.Map;
+
+/**
+ * A condition on the writes of a step to a memory address, ACCU or IAR.
+ *
+ * A watchpoint is specified as
+ * <ul>
+ *     <li>{@code <addr>}: the step writes the address,</li>
+ *     <li>{@code <addr>=<val>}: the step changes the value at the address
+ *     to val,</li>
+ *     <li>{@code <addr>=<from>-<to>}: the step changes the value at the
+ *     address from outside the range to inside, e.g.
+ *     {@code _iar=0x100-0x1ff} for the IAR entering a subroutine.</li>
+ * </ul>
+ * Addresses and values can be numbers or labels, {@code _accu} and
+ * {@code _iar} stand for ACCU and IAR. Values are compared as unsigned
+ * 24-bit numbers.
+ *
+ * @param description the specification the watchpoint has been parsed from
+ * @param address     a memory address, {@link State#ACCU} or {@link State#IAR}
+ * @param anyWrite    whether every write is a hit, regardless of the values
+ * @param low         the smallest value of the range
+ * @param high        the largest value of the range
+ */
+public record Watchpoint(String description, int address, boolean anyWrite, int low, int high) {
+
+    /**
+     * @throws IllegalArgumentException if the specification cannot be parsed
+     */
+    public static Watchpoint parse(String spec, Map<String, Integer> labelMap) {
+        try {
+            String[] parts = spec.trim().split(" *= *");
+            if (parts.length > 2) {
+                throw new IllegalArgumentException();
+            }
+            int address = resolve(parts[0], labelMap);
+            if (address < State.ACCU || address >= Constants.ADDRESS_RANGE) {
+                throw new IllegalArgumentException();
+            }
+            if (parts.length == 1) {
+                return new Watchpoint(spec.trim(), address, true, 0, 0);
+            }
+            // a leading minus belongs to the first value
+            String[] range = parts[1].split("(?<=[^- ]) *- *", 2);
+            int low = resolve(range[0], labelMap) & Constants.VALUE_MASK;
+            int high = range.length == 1 ? low : resolve(range[1], labelMap) & Constants.VALUE_MASK;
+            if (low > high) {
+                throw new IllegalArgumentException();
+            }
+            return new Watchpoint(spec.trim(), address, false, low, high);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Wrong watchpoint specification: " + spec, e);
+        }
+    }
+
+    private static int resolve(String name, Map<String, Integer> labelMap) {
+        Integer resolved = labelMap.get(name);
+        if (resolved != null) {
+            return resolved;
+        }
+        return switch (name) {
+            case "_accu" -> State.ACCU;
+            case "_iar" -> State.IAR;
+            default -> Integer.decode(name);
+        };
+    }
+
+    /**
+     * @param oldValue the value before the write
+     * @param newValue the value after the write
+     * @return whether the write is a hit
+     */
+    public boolean matches(int oldValue, int newValue) {
+        return anyWrite || inRange(newValue) && !inRange(oldValue);
+    }
+
+    private boolean inRange(int value) {
+        value &= Constants.VALUE_MASK;
+        return low <= value && value <= high;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
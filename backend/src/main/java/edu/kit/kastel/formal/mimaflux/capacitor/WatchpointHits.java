@@ -0,0 +1,129 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+/**
+ * The sorted steps of a timeline that hit one of its watchpoints, kept in a
+ * {@link StepIndex}.
+ *
+ * While recording, the {@link TimelineBuilder} reports the writes to
+ * watched addresses and the end of every step. When the watchpoints are
+ * replaced, the steps recorded so far are searched in the update log, see
+ * {@link #extend(UpdateLog)}.
+ */
+class WatchpointHits {
+
+    static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    // the hits are kept as the steps of a single address
+    private static final int HIT = State.ACCU;
+
+    private final StepIndex steps;
+    private Watchpoints watchpoints = Watchpoints.NONE;
+    // whether the current step has hit a watchpoint
+    private boolean hit;
+
+    WatchpointHits(long memoryBudget) {
+        this.steps = new StepIndex(memoryBudget, false);
+    }
+
+    /**
+     * Replace the watchpoints. No steps are covered afterwards.
+     */
+    void reset(Watchpoints watchpoints) {
+        this.watchpoints = watchpoints;
+        this.steps.clear();
+        this.hit = false;
+    }
+
+    Watchpoints getWatchpoints() {
+        return watchpoints;
+    }
+
+    /**
+     * Report a write of the current step.
+     */
+    void write(int addr, int oldValue, int newValue) {
+        if (watchpoints.watches(addr) && watchpoints.test(addr, oldValue, newValue) != null) {
+            hit = true;
+        }
+    }
+
+    /**
+     * Report the end of the current step.
+     *
+     * @param step the step that has ended
+     */
+    void commit(long step) {
+        if (hit) {
+            steps.add(HIT, step);
+        }
+        hit = false;
+        steps.cover(step + 1);
+    }
+
+    /**
+     * Search the steps of the log that have not been covered yet, as far as
+     * the memory budget allows.
+     */
+    void extend(UpdateLog updates) {
+        long size = updates.size();
+        for (long step = steps.coveredSteps(); step < size && !steps.isFull(); step++) {
+            hit = hits(updates, step);
+            commit(step);
+        }
+    }
+
+    /**
+     * @return whether the step of the log hits one of the watchpoints
+     */
+    boolean hits(UpdateLog updates, long step) {
+        if (watchpoints.isEmpty()) {
+            return false;
+        }
+        long end = updates.stepEnd(step);
+        for (long i = updates.stepStart(step); i < end; i++) {
+            int addr = updates.getAddress(i);
+            if (watchpoints.watches(addr) &&
+                    watchpoints.test(addr, updates.getOldValue(i), updates.getNewValue(i)) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of steps from the beginning that are covered
+     */
+    long coveredSteps() {
+        return steps.coveredSteps();
+    }
+
+    /**
+     * @return the latest covered step at or before the given one that hits
+     * a watchpoint, -1 if there is none
+     */
+    long floor(long step) {
+        return steps.floor(HIT, step, null);
+    }
+
+    /**
+     * @return the earliest covered step at or after the given one that hits
+     * a watchpoint, -1 if there is none
+     */
+    long ceiling(long step) {
+        return steps.ceiling(HIT, step, null);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of watchpoints compiled for the checks during execution.
+ *
+ * The engines call {@link #watches(int)} for every write. It only tests a
+ * bit of an address bitset, the watchpoints themselves are only evaluated
+ * for the watched addresses.
+ */
+public final class Watchpoints {
+
+    public static final Watchpoints NONE = new Watchpoints(List.of());
+
+    private final List<Watchpoint> watchpoints;
+    private final long[] memory;
+    private final boolean accu;
+    private final boolean iar;
+
+    public Watchpoints(List<Watchpoint> watchpoints) {
+        this.watchpoints = List.copyOf(watchpoints);
+        this.memory = new long[watchpoints.isEmpty() ? 1 : Constants.ADDRESS_RANGE / 64];
+        boolean accu = false;
+        boolean iar = false;
+        for (Watchpoint watchpoint : watchpoints) {
+            int addr = watchpoint.address();
+            switch (addr) {
+                case State.ACCU -> accu = true;
+                case State.IAR -> iar = true;
+                default -> memory[addr >> 6] |= 1L << addr;
+            }
+        }
+        this.accu = accu;
+        this.iar = iar;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a specification cannot be parsed,
+     * see {@link Watchpoint#parse(String, Map)}
+     */
+    public static Watchpoints parse(List<String> specs, Map<String, Integer> labelMap) {
+        if (specs == null || specs.isEmpty()) {
+            return NONE;
+        }
+        List<Watchpoint> result = new ArrayList<>();
+        for (String spec : specs) {
+            result.add(Watchpoint.parse(spec, labelMap));
+        }
+        return new Watchpoints(result);
+    }
+
+    /**
+     * @return whether there is a watchpoint on the address
+     */
+    public boolean watches(int addr) {
+        if (addr >= 0) {
+            return (memory[(addr >> 6) & (memory.length - 1)] & (1L << addr)) != 0;
+        }
+        return addr == State.ACCU ? accu : iar;
+    }
+
+    /**
+     * @return the first watchpoint hit by the write, null if there is none
+     */
+    public Watchpoint test(int addr, int oldValue, int newValue) {
+        for (Watchpoint watchpoint : watchpoints) {
+            if (watchpoint.address() == addr && watchpoint.matches(oldValue, newValue)) {
+                return watchpoint;
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return watchpoints.isEmpty();
+    }
+
+    /**
+     * @return the watchpoints, unmodifiable
+     */
+    public List<Watchpoint> getWatchpoints() {
+        return watchpoints;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+/**
+ * Selects writes by their effect, see
+ * {@link Timeline#previousWrite(int, long, WriteFilter)}.
+ */
+@FunctionalInterface
+public interface WriteFilter {
+
+    /**
+     * @param oldValue the value before the step
+     * @param newValue the value after the step
+     * @return whether the write is of interest
+     */
+    boolean test(int oldValue, int newValue);
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+/**
+ * For every address, plus ACCU and IAR, the sorted steps that wrote it and
+ * the values written, kept in a {@link StepIndex}. The value before a write
+ * is the value of the preceding write.
+ *
+ * The index is built from an update log and extended when further steps
+ * have been recorded, see {@link #extend(UpdateLog)}.
+ */
+class WriteIndex {
+
+    static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private final StepIndex steps;
+
+    WriteIndex(long memoryBudget) {
+        this.steps = new StepIndex(memoryBudget, true);
+    }
+
+    /**
+     * Index the steps of the log that have not been indexed yet, as far as
+     * the memory budget allows.
+     */
+    void extend(UpdateLog updates) {
+        long size = updates.size();
+        for (long step = steps.coveredSteps(); step < size && !steps.isFull(); step++) {
+            long end = updates.stepEnd(step);
+            for (long i = updates.stepStart(step); i < end; i++) {
+                steps.add(updates.getAddress(i), step, updates.getOldValue(i), updates.getNewValue(i));
+            }
+            steps.cover(step + 1);
+        }
+    }
+
+    /**
+     * @return the number of steps from the beginning that are indexed
+     */
+    long coveredSteps() {
+        return steps.coveredSteps();
+    }
+
+    /**
+     * @param filter applied to the values before and after the step, null
+     *               to accept every write
+     * @return the latest indexed step at or before the given step that
+     * wrote the address and is accepted by the filter, -1 if there is none
+     */
+    long floor(int addr, long step, WriteFilter filter) {
+        return steps.floor(addr, step, filter);
+    }
+
+    /**
+     * @param filter applied to the values before and after the step, null
+     *               to accept every write
+     * @return the earliest indexed step at or after the given step that
+     * wrote the address and is accepted by the filter, -1 if there is none
+     */
+    long ceiling(int addr, long step, WriteFilter filter) {
+        return steps.ceiling(addr, step, filter);
+    }
+
+    long getUsedBytes() {
+        return steps.getUsedBytes();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Reading CSV and JSON lines manifests with {@link BatchManifest}.
+ */
+public class BatchManifestTest {
+
+    @Test
+    public void csvQuotedCells() throws IOException {
+        Path file = manifest(".csv", """
+                id,program,spec,set,test
+                "a,b",p.mima,"say ""hi"".spec",x = 5; y=6 ,"z=1;;_accu=0"
+                "",/abs/q.mima,,,
+                """);
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            assertEquals(List.of(
+                    new BatchEntry("a,b", directory.resolve("p.mima").toString(),
+                            directory.resolve("say \"hi\".spec").toString(), List.of("x = 5", "y=6"),
+                            List.of("z=1", "_accu=0")),
+                    new BatchEntry("3", "/abs/q.mima", null, List.of(), List.of())),
+                    readAll(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void csvBlankLinesAndDefaults() throws IOException {
+        // columns in any order, optional ones missing
+        Path file = manifest(".csv", "\n test , program\n\nfoo=1,a.mima\n  \n,b.mima,extra\n");
+        try {
+            List<BatchEntry> entries = readAll(file);
+            assertEquals(List.of("4", "6"), entries.stream().map(BatchEntry::id).toList());
+            assertEquals(List.of("foo=1"), entries.get(0).tests());
+            assertEquals(List.of(), entries.get(1).tests());
+            assertNull(entries.get(1).spec());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void csvMalformedLinesAreSkipped() throws IOException {
+        Path file = manifest(".csv", """
+                program,id
+                "a.mima,x
+                ,y
+                c.mima,z
+                """);
+        try (BatchManifest manifest = BatchManifest.open(file)) {
+            IllegalArgumentException exception = assertThrows(IllegalArgumentException.class, manifest::next);
+            assertEquals("Line 2 of the manifest: Unterminated quote", exception.getMessage());
+            assertEquals(2, manifest.getLineNumber());
+            exception = assertThrows(IllegalArgumentException.class, manifest::next);
+            assertEquals("Line 3 of the manifest: No program given", exception.getMessage());
+            assertEquals("z", manifest.next().id());
+            assertNull(manifest.next());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void csvBrokenHeaderFails() throws IOException {
+        for (String header : List.of("id,prog\n", "\"id,program\n")) {
+            Path file = manifest(".csv", header + "x,a.mima\n");
+            try (BatchManifest manifest = BatchManifest.open(file)) {
+                assertThrows(IOException.class, manifest::next);
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void jsonLines() throws IOException {
+        Path file = manifest(".jsonl", """
+                {"program": "a.mima", "set": ["x=1", 2], "test": "y=2; z=3"}
+
+                {"id": "b", "program": "b.mima", "spec": "b.spec"}
+                """);
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            assertEquals(List.of(
+                    new BatchEntry("1", directory.resolve("a.mima").toString(), null, List.of("x=1", "2"),
+                            List.of("y=2", "z=3")),
+                    new BatchEntry("b", directory.resolve("b.mima").toString(),
+                            directory.resolve("b.spec").toString(), List.of(), List.of())),
+                    readAll(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void jsonMalformedLines() throws IOException {
+        Path file = manifest(".jsonl", """
+                [1]
+                {"program": 1}
+                {"program": "a.mima", "set": {}}
+                {"program": "a.mima"
+                {"id": "ok", "program": "a.mima"}
+                """);
+        try (BatchManifest manifest = BatchManifest.open(file)) {
+            assertMalformed(manifest, "Line 1 of the manifest: JSON object expected");
+            assertMalformed(manifest, "Line 2 of the manifest: Member program must be a string");
+            assertMalformed(manifest, "Line 3 of the manifest: Members set and test must be strings or lists");
+            assertMalformed(manifest, "Line 4 of the manifest: Invalid JSON at position 20: ',' expected");
+            assertEquals("ok", manifest.next().id());
+            assertNull(manifest.next());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void assertMalformed(BatchManifest manifest, String message) {
+        IllegalArgumentException exception = assertThrows(IllegalArgumentException.class, manifest::next);
+        assertEquals(message, exception.getMessage());
+    }
+
+    private static Path manifest(String suffix, String content) throws IOException {
+        Path file = Files.createTempFile("mimaflux-test", suffix);
+        Files.writeString(file, content);
+        return file;
+    }
+
+    private static List<BatchEntry> readAll(Path file) throws IOException {
+        List<BatchEntry> entries = new ArrayList<>();
+        try (BatchManifest manifest = BatchManifest.open(file)) {
+            BatchEntry entry;
+            while ((entry = manifest.next()) != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+}
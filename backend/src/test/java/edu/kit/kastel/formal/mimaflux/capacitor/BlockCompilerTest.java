@@ -0,0 +1,109 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Deoptimization of compiled blocks by self-modifying code: the compiling
+ * engines must end in the same state as the interpreter.
+ */
+public class BlockCompilerTest {
+
+    private static final long MAX_STEPS = 1_000_000;
+
+    // the running block increments the operand of its own ADD in every iteration
+    private static final String MODIFIES_ITSELF = """
+            START: LDV cnt
+            ADD one
+            STV cnt
+            LDV insn
+            ADD one
+            STV insn
+            insn: ADD 0x80
+            LDV cnt
+            EQL limit
+            JMN done
+            JMP START
+            done: HALT
+            one: DS 1
+            cnt: DS 0
+            limit: DS 5000
+            """;
+
+    // once the loop is hot, another block replaces the ADD one of the body by ADD three
+    private static final String PATCHES_HOT_BLOCK = """
+            START: LDV cnt
+            ADD one
+            STV cnt
+            EQL limit
+            JMN patch
+            body: LDV acc
+            insn: ADD one
+            STV acc
+            LDV cnt
+            EQL stop
+            JMN done
+            JMP START
+            patch: LDV tmpl
+            STV insn
+            JMP body
+            done: HALT
+            tmpl: ADD three
+            one: DS 1
+            three: DS 3
+            cnt: DS 0
+            acc: DS 0
+            limit: DS 2000
+            stop: DS 4000
+            """;
+
+    @Test
+    public void modifiesRunningBlock() {
+        assertSameAsInterpreter(MODIFIES_ITSELF);
+    }
+
+    @Test
+    public void patchesCompiledBlock() {
+        Interpreter interpreter = assertSameAsInterpreter(PATCHES_HOT_BLOCK);
+        // 1999 iterations add one, the remaining 2001 add three
+        int acc = interpreter.getLabelMap().get("acc");
+        assertEquals(1999 + 2001 * 3, interpreter.run(ExecutorTest.SILENT, MAX_STEPS).state().get(acc));
+    }
+
+    private static Interpreter assertSameAsInterpreter(String source) {
+        Interpreter reference = ExecutorTest.interpreter(source);
+        RunResult expected = reference.run(ExecutorTest.SILENT, MAX_STEPS, Executor.Engine.INTERPRETER);
+        assertEquals(RunResult.HaltReason.HALT, expected.haltReason());
+        for (Executor.Engine engine : new Executor.Engine[] { Executor.Engine.COMPILER, Executor.Engine.CROSS_CHECK }) {
+            Interpreter interpreter = ExecutorTest.interpreter(source);
+            RunResult result = interpreter.run(ExecutorTest.SILENT, MAX_STEPS, engine);
+            Statistics statistics = interpreter.getStatistics();
+            assertTrue((Long) statistics.get("compilations") > 0, engine + " has not compiled: " + statistics);
+            assertTrue((Long) statistics.get("deoptimizations") > 0, engine + " has not deoptimized: " + statistics);
+            assertEquals(expected.steps(), result.steps(), engine + ": steps");
+            assertEquals(expected.haltReason(), result.haltReason(), engine + ": halt reason");
+            for (int addr = State.ACCU; addr < Constants.ADDRESS_RANGE; addr++) {
+                if (expected.state().get(addr) != result.state().get(addr)) {
+                    assertEquals(expected.state().get(addr), result.state().get(addr), engine + ": address " + addr);
+                }
+            }
+        }
+        return reference;
+    }
+}
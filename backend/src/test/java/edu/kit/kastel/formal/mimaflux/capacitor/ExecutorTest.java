@@ -0,0 +1,191 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Differential tests of {@link Interpreter#run} against the final state of
+ * the recorded timeline, for all engines.
+ */
+public class ExecutorTest {
+
+    static final Logger SILENT = new Logger() {
+        @Override
+        public void log(LogProducer message, Level level) {
+        }
+    };
+
+    private static final Path EXAMPLES = Paths.get("..", "examples");
+
+    private static final long MAX_STEPS = 100_000;
+
+    // the limits stop in the middle of fused instructions, too
+    private static final long[] STEP_LIMITS = { 0, 1, 2, 3, 7, 100, MAX_STEPS };
+
+    // increments the operand of an instruction in its own loop
+    static final String SELF_MODIFYING = """
+            START: LDV cnt
+            ADD one
+            STV cnt
+            LDV insn
+            ADD one
+            STV insn
+            insn: ADD 0x80
+            LDV cnt
+            EQL limit
+            JMN done
+            JMP START
+            done: HALT
+            one: DS 1
+            cnt: DS 0
+            limit: DS 20
+            """;
+
+    // overwrites the last instruction of a fusable LDV, ADD, STV sequence
+    static final String FUSED_TAIL = """
+            START: LDV acc
+            ADD one
+            tgt: STV 0x2000
+            STV acc
+            LDV tgt
+            ADD one
+            STV tgt
+            LDV cnt
+            ADD one
+            STV cnt
+            EQL limit
+            JMN done
+            LDC 5
+            ADD neg
+            JMN START
+            JMP START
+            done: HALT
+            one: DS 1
+            neg: DS -1
+            acc: DS 0
+            cnt: DS 0
+            limit: DS 3000
+            """;
+
+    // a subroutine called with JMS and left with JIND, using all other instructions
+    static final String CALLS = """
+            START: LDC 5
+            STV n
+            loop: JMS sub
+            LDV n
+            ADD minus
+            STV n
+            JMN end
+            JMP loop
+            end: HALT
+            sub: DS 0
+            LDV acc
+            ADD n
+            STV acc
+            RAR
+            NOT
+            XOR n
+            OR n
+            AND mask
+            LDIV ptr
+            STIV ptr
+            JIND sub
+            n: DS 0
+            acc: DS 0
+            minus: DS -1
+            mask: DS 0xff
+            ptr: DS 0x300
+            """;
+
+    // never halts
+    static final String ENDLESS = """
+            START: LDV cnt
+            ADD one
+            STV cnt
+            JMP START
+            one: DS 1
+            cnt: DS 0
+            """;
+
+    @Test
+    public void examples() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(EXAMPLES)) {
+            files = list.filter(file -> file.toString().endsWith(".mima")).sorted().toList();
+        }
+        assertFalse(files.isEmpty(), "no examples in " + EXAMPLES.toAbsolutePath());
+        for (Path file : files) {
+            assertSameAsTimeline(file.toString(), Files.readString(file));
+        }
+    }
+
+    @Test
+    public void selfModifying() {
+        assertSameAsTimeline("self-modifying", SELF_MODIFYING);
+        assertSameAsTimeline("fused tail", FUSED_TAIL);
+    }
+
+    @Test
+    public void subroutines() {
+        assertSameAsTimeline("calls", CALLS);
+    }
+
+    @Test
+    public void stepLimit() {
+        assertSameAsTimeline("endless", ENDLESS);
+        Interpreter interpreter = interpreter(ENDLESS);
+        RunResult result = interpreter.run(SILENT, MAX_STEPS);
+        assertEquals(MAX_STEPS, result.steps());
+        assertEquals(RunResult.HaltReason.STEP_LIMIT, result.haltReason());
+    }
+
+    private static void assertSameAsTimeline(String name, String source) {
+        for (long limit : STEP_LIMITS) {
+            Timeline timeline = interpreter(source).makeTimeline(SILENT, limit, List.of());
+            timeline.setPosition(timeline.countStates());
+            for (Executor.Engine engine : Executor.Engine.values()) {
+                String what = name + " with " + engine + " up to " + limit + " steps";
+                RunResult result = interpreter(source).run(SILENT, limit, engine);
+                assertEquals(timeline.countStates(), result.steps(), what + ": steps");
+                assertSameState(timeline, result.state(), what);
+            }
+        }
+    }
+
+    static void assertSameState(Timeline timeline, State state, String what) {
+        for (int addr = State.ACCU; addr < Constants.ADDRESS_RANGE; addr++) {
+            if (timeline.get(addr) != state.get(addr)) {
+                assertEquals(timeline.get(addr), state.get(addr), what + ": address " + addr);
+            }
+        }
+    }
+
+    static Interpreter interpreter(String source) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.parseString(source);
+        return interpreter;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reading and writing JSON values with {@link Json}.
+ */
+public class JsonTest {
+
+    @Test
+    public void scalars() {
+        assertEquals(42L, Json.parse("42"));
+        assertEquals(-7L, Json.parse(" -7 "));
+        assertEquals(1.5, Json.parse("1.5"));
+        assertEquals(-2e3, Json.parse("-2e3"));
+        assertEquals(Boolean.TRUE, Json.parse("true"));
+        assertEquals(Boolean.FALSE, Json.parse("false"));
+        assertEquals(null, Json.parse("null"));
+        assertEquals("", Json.parse("\"\""));
+    }
+
+    @Test
+    public void escapes() {
+        assertEquals("a\"b\\c/d", Json.parse("\"a\\\"b\\\\c\\/d\""));
+        assertEquals("\b\f\n\r\t", Json.parse("\"\\b\\f\\n\\r\\t\""));
+        assertEquals("\u00e4\u20ac\u0001", Json.parse("\"\\u00e4\\u20AC\\u0001\""));
+        // a surrogate pair stays two chars
+        assertEquals("\ud83d\ude00", Json.parse("\"\\ud83d\\ude00\""));
+    }
+
+    @Test
+    public void nestedValues() {
+        Map<String, Object> inner = new LinkedHashMap<>();
+        inner.put("b", List.of(1L, List.of(), Map.of()));
+        inner.put("c", null);
+        Object parsed = Json.parse("{\"a\": {\"b\": [1, [], {}], \"c\": null}, \"d\": [\"x\", true]}");
+        assertEquals(Map.of("a", inner, "d", List.of("x", true)), parsed);
+        // members keep their order
+        assertEquals(List.of("a", "d"), List.copyOf(((Map<?, ?>) parsed).keySet()));
+    }
+
+    @Test
+    public void writeRoundTrip() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("id", "q\"uote\\ \n\u0002");
+        value.put("steps", 12L);
+        value.put("failures", Arrays.asList("x", null, false, 2.5));
+        String json = Json.write(value);
+        assertEquals("{\"id\": \"q\\\"uote\\\\ \\n\\u0002\", \"steps\": 12, \"failures\": [\"x\", null, false, 2.5]}",
+                json);
+        assertEquals(value, Json.parse(json));
+    }
+
+    @Test
+    public void malformedInputReportsPosition() {
+        assertMalformed("", 0, "value expected");
+        assertMalformed("{\"a\" 1}", 5, "':' expected");
+        assertMalformed("{\"a\": 1,}", 8, "member name expected");
+        assertMalformed("[1 2]", 3, "',' expected");
+        assertMalformed("[1, 2", 5, "',' expected");
+        assertMalformed("\"abc", 4, "unterminated string");
+        assertMalformed("\"\\u12\"", 3, "unterminated escape");
+        assertMalformed("\"\\u12g4\"", 3, "invalid escape");
+        assertMalformed("\"\\u+123\"", 3, "invalid escape");
+        assertMalformed("\"\\x\"", 2, "invalid escape");
+        assertMalformed("1.2.3", 0, "invalid number");
+        assertMalformed("tru", 0, "value expected");
+        assertMalformed("{} x", 3, "end of input expected");
+    }
+
+    private static void assertMalformed(String text, int position, String message) {
+        IllegalArgumentException exception = assertThrows(IllegalArgumentException.class, () -> Json.parse(text));
+        assertEquals("Invalid JSON at position " + position + ": " + message, exception.getMessage(), text);
+    }
+
+    @Test
+    public void writeRejectsOtherValues() {
+        IllegalArgumentException exception = assertThrows(IllegalArgumentException.class,
+                () -> Json.write(List.of(new Object())));
+        assertTrue(exception.getMessage().startsWith("No JSON value"), exception.getMessage());
+    }
+}
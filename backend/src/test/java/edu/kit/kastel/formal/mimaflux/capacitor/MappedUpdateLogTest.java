@@ -0,0 +1,99 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reading back a {@link MappedUpdateLog} that spans more than one segment,
+ * in all orders that use the cached step, the index and the backward scan.
+ */
+public class MappedUpdateLogTest {
+
+    // with on average one update and a step marker per step, this fills more than one segment
+    private static final int STEPS = MappedUpdateLog.SEGMENT_RECORDS / 2 + 3 * MappedUpdateLog.INDEX_INTERVAL + 7;
+
+    @Test
+    public void readsAcrossSegments() throws IOException {
+        try (MappedUpdateLog log = MappedUpdateLog.createTemporary()) {
+            record(log);
+            assertEquals(STEPS, log.size());
+            assertTrue(log.countUpdates() + log.size() > MappedUpdateLog.SEGMENT_RECORDS,
+                    "the log must span two segments");
+
+            for (int step = 0; step < STEPS; step++) {
+                assertStep(log, step);
+            }
+            for (int step = STEPS - 1; step >= 0; step--) {
+                assertStep(log, step);
+            }
+            Random random = new Random(42);
+            for (int i = 0; i < 10_000; i++) {
+                assertStep(log, random.nextInt(STEPS));
+            }
+            // around the indexed steps and with the cached step just before or after
+            for (int step = 0; step < STEPS; step += MappedUpdateLog.INDEX_INTERVAL) {
+                for (int offset = -2; offset <= 2; offset++) {
+                    if (step + offset >= 0 && step + offset < STEPS) {
+                        assertStep(log, step + offset);
+                    }
+                }
+                assertStep(log, STEPS - 1 - step);
+            }
+        }
+    }
+
+    @Test
+    public void closeDeletesTemporaryFile() throws IOException {
+        MappedUpdateLog log = MappedUpdateLog.createTemporary();
+        record(log);
+        assertTrue(Files.exists(log.getFile()));
+        log.close();
+        assertFalse(Files.exists(log.getFile()));
+    }
+
+    // step s has s % 3 updates
+    private static void record(AppendableUpdateLog log) {
+        for (int step = 0; step < STEPS; step++) {
+            for (int i = 0; i < step % 3; i++) {
+                log.add(address(step, i), step, i);
+            }
+            log.commit();
+        }
+    }
+
+    private static int address(int step, int i) {
+        return (step * 7 + i) & Constants.ADDRESS_MASK;
+    }
+
+    private static void assertStep(UpdateLog log, int step) {
+        long start = log.stepStart(step);
+        long end = log.stepEnd(step);
+        assertEquals(step % 3, end - start, "updates of step " + step);
+        for (int i = 0; i < step % 3; i++) {
+            assertEquals(address(step, i), log.getAddress(start + i), "address in step " + step);
+            assertEquals(step, log.getOldValue(start + i), "old value in step " + step);
+            assertEquals(i, log.getNewValue(start + i), "new value in step " + step);
+        }
+    }
+}
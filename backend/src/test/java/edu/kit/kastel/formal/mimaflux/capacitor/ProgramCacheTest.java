@@ -0,0 +1,186 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import org.antlr.v4.runtime.Token;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Storing assembled programs in the directory of a {@link ProgramCache}.
+ * Commands read from a cache file have no parse context, which tells them
+ * apart from freshly parsed ones.
+ */
+public class ProgramCacheTest {
+
+    private static final String PROGRAM = ExecutorTest.CALLS;
+    private static final String OTHER = ExecutorTest.ENDLESS;
+
+    @Test
+    public void readBack() throws IOException {
+        Path directory = Files.createTempDirectory("mimaflux-test");
+        try {
+            Program parsed = cache(directory).parseString(PROGRAM);
+            assertFalse(isCached(parsed));
+            assertTrue(Files.exists(file(directory, PROGRAM)));
+
+            Program read = cache(directory).parseString(PROGRAM);
+            assertTrue(isCached(read));
+            assertSameProgram(parsed, read);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void corruptedFileIsReplaced() throws IOException {
+        Path directory = Files.createTempDirectory("mimaflux-test");
+        try {
+            cache(directory).parseString(PROGRAM);
+            Path file = file(directory, PROGRAM);
+            byte[] bytes = Files.readAllBytes(file);
+            bytes[bytes.length / 2] ^= 0x55;
+            Files.write(file, bytes);
+            assertReplaced(directory);
+
+            Files.write(file, new byte[] { 1, 2 });
+            assertReplaced(directory);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void mismatchedFileIsReplaced() throws IOException {
+        Path directory = Files.createTempDirectory("mimaflux-test");
+        try {
+            // the file of another program under the name of this one
+            cache(directory).parseString(OTHER);
+            Files.copy(file(directory, OTHER), file(directory, PROGRAM));
+            assertReplaced(directory);
+
+            // another version, with a valid checksum
+            Path file = file(directory, PROGRAM);
+            byte[] bytes = Files.readAllBytes(file);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.putInt(8, buffer.getInt(8) + 1);
+            buffer.putInt(bytes.length - 4, TraceFile.checksum(bytes, bytes.length - 4));
+            Files.write(file, bytes);
+            assertReplaced(directory);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void mnemonicOfCachedCommand() throws IOException {
+        Path directory = Files.createTempDirectory("mimaflux-test");
+        try {
+            cache(directory).parseString(PROGRAM);
+            for (Command command : cache(directory).parseString(PROGRAM).getCommands()) {
+                if (command.instruction() != null) {
+                    Token token = command.getMnemonic();
+                    assertEquals(command.getMnemonicLine(), token.getLine());
+                    assertEquals(command.instruction(), token.getText());
+                }
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // the file is ignored, the program parsed again and the file rewritten
+    private static void assertReplaced(Path directory) {
+        assertFalse(isCached(cache(directory).parseString(PROGRAM)));
+        Program read = cache(directory).parseString(PROGRAM);
+        assertTrue(isCached(read));
+        assertSameProgram(Program.parseString(PROGRAM), read);
+    }
+
+    private static void assertSameProgram(Program expected, Program actual) {
+        assertEquals(expected.getFileContent(), actual.getFileContent());
+        assertEquals(expected.getLabelMap(), actual.getLabelMap());
+
+        State expectedState = expected.createState(Map.of(), ExecutorTest.SILENT);
+        State actualState = actual.createState(Map.of(), ExecutorTest.SILENT);
+        for (int addr = State.IAR; addr < Constants.ADDRESS_RANGE; addr++) {
+            if (expectedState.get(addr) != actualState.get(addr)) {
+                assertEquals(expectedState.get(addr), actualState.get(addr), "address " + addr);
+            }
+        }
+
+        SymbolTable expectedSymbols = new SymbolTable(expected.getCommands(), expected.getLabelMap());
+        SymbolTable actualSymbols = new SymbolTable(actual.getCommands(), actual.getLabelMap());
+        int lines = PROGRAM.split("\n").length;
+        for (int line = 0; line <= lines + 1; line++) {
+            int addr = expectedSymbols.getAddressOfLine(line);
+            assertEquals(addr, actualSymbols.getAddressOfLine(line), "line " + line);
+            if (addr == SymbolTable.NO_ADDRESS) {
+                continue;
+            }
+            Command command = expectedSymbols.getCommand(addr);
+            assertEquals(new Command(command.address(), command.label(), command.instruction(),
+                    command.labelArg(), command.valueArg(), null, command.getMnemonicLine()),
+                    actualSymbols.getCommand(addr));
+            assertEquals(expectedSymbols.getLabel(addr), actualSymbols.getLabel(addr));
+            assertEquals(expectedSymbols.getLabels(addr), actualSymbols.getLabels(addr));
+        }
+        for (String label : expected.getLabelMap().keySet()) {
+            assertEquals(expectedSymbols.getAddress(label), actualSymbols.getAddress(label), label);
+        }
+    }
+
+    private static boolean isCached(Program program) {
+        List<Command> commands = program.getCommands();
+        assertNotNull(commands.get(0).instruction());
+        return commands.get(0).ctx() == null;
+    }
+
+    // a new cache, so that the program is not found in memory
+    private static ProgramCache cache(Path directory) {
+        ProgramCache cache = new ProgramCache(ProgramCache.DEFAULT_CAPACITY);
+        try {
+            cache.setDirectory(directory);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return cache;
+    }
+
+    private static Path file(Path directory, String program) {
+        return directory.resolve(ContentCache.key(program) + ProgramCache.EXTENSION);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.LongUnaryOperator;
+import java.util.function.ToLongFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The indexes built on {@link StepIndex}, compared with a linear scan of
+ * the update log while a timeline is recorded chunk by chunk.
+ */
+public class StepIndexTest {
+
+    private static final long MAX_STEPS = 100_000;
+    private static final int CHUNK = 1500;
+
+    // room for one page of lists and a few steps
+    private static final long SMALL_BUDGET = 4L * Constants.PAGE_SIZE + 2000;
+
+    private static final String PROGRAM = ExecutorTest.CALLS.replace("LDC 5", "LDC 300");
+
+    private static final WriteFilter INCREASES = (oldValue, newValue) -> newValue > oldValue;
+
+    @Test
+    public void writeIndex() {
+        for (long budget : List.of(WriteIndex.DEFAULT_MEMORY_BUDGET, SMALL_BUDGET)) {
+            WriteIndex index = new WriteIndex(budget);
+            record(log -> {
+                index.extend(log);
+                long covered = index.coveredSteps();
+                assertTrue(covered <= log.size());
+                if (budget == WriteIndex.DEFAULT_MEMORY_BUDGET) {
+                    assertEquals(log.size(), covered);
+                }
+                for (int addr : addresses(log)) {
+                    for (WriteFilter filter : new WriteFilter[] { null, INCREASES }) {
+                        assertFloorCeiling(writes(log, addr, filter), covered,
+                                step -> index.floor(addr, step, filter),
+                                step -> index.ceiling(addr, step, filter),
+                                "write to " + addr + (filter == null ? "" : " increasing"));
+                    }
+                }
+                return index.coveredSteps();
+            }, budget == SMALL_BUDGET);
+        }
+    }
+
+    @Test
+    public void iarIndex() {
+        for (long budget : List.of(IARIndex.DEFAULT_MEMORY_BUDGET, SMALL_BUDGET)) {
+            IARIndex index = new IARIndex(budget);
+            record(log -> {
+                int[] iars = iarPositions(log);
+                index.extend(log, iars[0]);
+                long covered = index.coveredPositions();
+                assertTrue(covered <= iars.length);
+                if (budget == IARIndex.DEFAULT_MEMORY_BUDGET) {
+                    assertEquals(iars.length, covered);
+                }
+                for (int addr : new TreeSet<>(List.of(iars[0], iars[1], iars[iars.length - 1], 0x300))) {
+                    boolean[] hits = new boolean[iars.length];
+                    for (int pos = 0; pos < iars.length; pos++) {
+                        hits[pos] = iars[pos] == addr;
+                    }
+                    assertFloorCeiling(hits, covered, pos -> index.floor(addr, pos),
+                            pos -> index.ceiling(addr, pos), "IAR at " + addr);
+                }
+                // positions count one more than steps
+                return covered - 1;
+            }, budget == SMALL_BUDGET);
+        }
+    }
+
+    @Test
+    public void watchpointHits() {
+        Watchpoints watchpoints = new Watchpoints(List.of(
+                Watchpoint.parse("_accu=0-0x10", Map.of()),
+                Watchpoint.parse("0x300", Map.of())));
+        for (long budget : List.of(WatchpointHits.DEFAULT_MEMORY_BUDGET, 256L)) {
+            WatchpointHits index = new WatchpointHits(budget);
+            index.reset(watchpoints);
+            record(log -> {
+                index.extend(log);
+                long covered = index.coveredSteps();
+                boolean[] hits = new boolean[(int) log.size()];
+                for (int step = 0; step < hits.length; step++) {
+                    for (long i = log.stepStart(step); i < log.stepEnd(step); i++) {
+                        int addr = log.getAddress(i);
+                        hits[step] |= watchpoints.watches(addr) &&
+                                watchpoints.test(addr, log.getOldValue(i), log.getNewValue(i)) != null;
+                    }
+                }
+                assertFloorCeiling(hits, covered, index::floor, index::ceiling, "watchpoint hit");
+                return covered;
+            }, budget == 256L);
+        }
+    }
+
+    /*
+     * Record the program chunk by chunk and check the index after each
+     * chunk. The check returns the steps covered by the index, which have to
+     * fall short of the recorded steps at the end if the budget is small.
+     */
+    private static void record(ToLongFunction<UpdateLog> check, boolean small) {
+        try (Timeline timeline = ExecutorTest.interpreter(PROGRAM).makeLazyTimeline(ExecutorTest.SILENT, MAX_STEPS,
+                List.of())) {
+            long covered;
+            do {
+                timeline.extendTo(timeline.countStates() + CHUNK);
+                covered = check.applyAsLong(timeline.getUpdateLog());
+            } while (timeline.canRecord());
+            assertTrue(timeline.countStates() > 2 * CHUNK);
+            assertEquals(small, covered < timeline.countStates(), "covered " + covered);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Compare floor and ceiling for every step with the latest and earliest
+     * covered hit found by a linear scan.
+     */
+    private static void assertFloorCeiling(boolean[] hits, long covered, LongUnaryOperator floor,
+                                           LongUnaryOperator ceiling, String what) {
+        long last = -1;
+        for (int step = -1; step <= hits.length; step++) {
+            if (step >= 0 && step < covered && hits[step]) {
+                last = step;
+            }
+            assertEquals(last, floor.applyAsLong(step), "floor of " + what + " at " + step);
+        }
+        long next = -1;
+        for (int step = hits.length; step >= -1; step--) {
+            if (step >= 0 && step < Math.min(covered, hits.length) && hits[step]) {
+                next = step;
+            }
+            assertEquals(next, ceiling.applyAsLong(step), "ceiling of " + what + " at " + step);
+        }
+    }
+
+    // the written addresses, ACCU, IAR and one that is never written
+    private static Set<Integer> addresses(UpdateLog log) {
+        Set<Integer> result = new TreeSet<>(List.of(State.ACCU, State.IAR, 0x7777));
+        for (long i = 0; i < log.countUpdates(); i++) {
+            result.add(log.getAddress(i));
+        }
+        return result;
+    }
+
+    private static boolean[] writes(UpdateLog log, int addr, WriteFilter filter) {
+        boolean[] result = new boolean[(int) log.size()];
+        for (int step = 0; step < result.length; step++) {
+            boolean found = false;
+            int oldValue = 0;
+            int newValue = 0;
+            for (long i = log.stepStart(step); i < log.stepEnd(step); i++) {
+                if (log.getAddress(i) == addr) {
+                    if (!found) {
+                        oldValue = log.getOldValue(i);
+                        found = true;
+                    }
+                    newValue = log.getNewValue(i);
+                }
+            }
+            result[step] = found && (filter == null || filter.test(oldValue, newValue));
+        }
+        return result;
+    }
+
+    // the IAR at every position, PROGRAM starts at address 0
+    private static int[] iarPositions(UpdateLog log) {
+        int[] result = new int[(int) log.size() + 1];
+        for (int step = 0; step < log.size(); step++) {
+            result[step + 1] = result[step];
+            for (long i = log.stepStart(step); i < log.stepEnd(step); i++) {
+                if (log.getAddress(i) == State.IAR) {
+                    result[step + 1] = log.getNewValue(i);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.capacitor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Saving and loading timelines with {@link TraceFile}.
+ */
+public class TraceFileTest {
+
+    private static final long MAX_STEPS = 100_000;
+
+    // several blocks of steps, some of them with more than one update
+    private static final String PROGRAM = ExecutorTest.CALLS.replace("LDC 5", "LDC 300");
+
+    // ends the recording with a cycle
+    private static final String CYCLE = """
+            START: LDC 1
+            loop: JMP loop
+            """;
+
+    @Test
+    public void roundTrip() throws IOException {
+        for (String source : List.of(PROGRAM, ExecutorTest.SELF_MODIFYING, ExecutorTest.ENDLESS, CYCLE)) {
+            Interpreter interpreter = ExecutorTest.interpreter(source);
+            interpreter.addPresetValue(0x300, 42);
+            Timeline saved = interpreter.makeTimeline(ExecutorTest.SILENT, MAX_STEPS, List.of());
+            Path file = Files.createTempFile("mimaflux-test", TraceFile.EXTENSION);
+            try {
+                TraceFile.save(saved, file);
+                try (Timeline loaded = TraceFile.load(file, ExecutorTest.SILENT)) {
+                    assertSameTimeline(saved, loaded);
+                }
+            } finally {
+                saved.close();
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void partialRecordingLoadsIncomplete() throws IOException {
+        Interpreter interpreter = ExecutorTest.interpreter(ExecutorTest.ENDLESS);
+        Path file = Files.createTempFile("mimaflux-test", TraceFile.EXTENSION);
+        try (Timeline saved = interpreter.makeLazyTimeline(ExecutorTest.SILENT, MAX_STEPS, List.of())) {
+            saved.extendTo(100);
+            assertTrue(saved.canRecord());
+            TraceFile.save(saved, file);
+            try (Timeline loaded = TraceFile.load(file, ExecutorTest.SILENT)) {
+                assertFalse(loaded.isComplete());
+                assertSameTimeline(saved, loaded);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void corruptedBlockFailsChecksum() throws IOException {
+        Path file = saveProgram();
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            int metadataLength = ByteBuffer.wrap(bytes).getInt(12);
+            // the first byte of the first block
+            bytes[TraceFile.HEADER_BYTES + metadataLength + 4] ^= 0x55;
+            Files.write(file, bytes);
+            try (Timeline loaded = TraceFile.load(file, ExecutorTest.SILENT)) {
+                UncheckedIOException exception = assertThrows(UncheckedIOException.class,
+                        () -> loaded.setPosition(1));
+                assertInstanceOf(IOException.class, exception.getCause());
+                assertTrue(exception.getMessage().contains("checksum mismatch in block 0"), exception.getMessage());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void corruptedMetadataFailsChecksum() throws IOException {
+        Path file = saveProgram();
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            bytes[TraceFile.HEADER_BYTES + 2] ^= 0x55;
+            Files.write(file, bytes);
+            IOException exception = assertThrows(IOException.class, () -> TraceFile.load(file, ExecutorTest.SILENT));
+            assertTrue(exception.getMessage().contains("checksum mismatch in metadata"), exception.getMessage());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void truncatedFileIsRejected() throws IOException {
+        Path file = saveProgram();
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+            assertThrows(IOException.class, () -> TraceFile.load(file, ExecutorTest.SILENT));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static Path saveProgram() throws IOException {
+        Path file = Files.createTempFile("mimaflux-test", TraceFile.EXTENSION);
+        try (Timeline timeline = ExecutorTest.interpreter(PROGRAM).makeTimeline(ExecutorTest.SILENT, MAX_STEPS,
+                List.of())) {
+            TraceFile.save(timeline, file);
+        }
+        return file;
+    }
+
+    private static void assertSameTimeline(Timeline expected, Timeline actual) {
+        assertEquals(expected.getFileContent(), actual.getFileContent());
+        assertEquals(expected.getLabelMap(), actual.getLabelMap());
+        assertEquals(expected.getInitialValues(), actual.getInitialValues());
+        // parse contexts are not saved
+        List<Command> commands = expected.getCommands();
+        assertEquals(commands.size(), actual.getCommands().size());
+        for (int i = 0; i < commands.size(); i++) {
+            Command command = commands.get(i);
+            assertEquals(new Command(command.address(), command.label(), command.instruction(),
+                    command.labelArg(), command.valueArg(), null, command.getMnemonicLine()),
+                    actual.getCommands().get(i));
+        }
+        assertEquals(expected.countStates(), actual.countStates());
+        assertEquals(expected.isComplete(), actual.isComplete());
+        assertEquals(expected.getCycle(), actual.getCycle());
+        assertFalse(actual.canRecord());
+
+        long steps = expected.countStates();
+        for (long step = 0; step < steps; step++) {
+            assertSameStep(expected, actual, step);
+        }
+        for (long step = steps - 1; step >= 0; step--) {
+            assertSameStep(expected, actual, step);
+        }
+        expected.setPosition(steps);
+        actual.setPosition(steps);
+        ExecutorTest.assertSameState(expected, actual.exposeState(), "end of the loaded timeline");
+    }
+
+    // the updates of the step and the state after it, reached by moving the timeline
+    private static void assertSameStep(Timeline expected, Timeline actual, long step) {
+        UpdateLog expectedLog = expected.getUpdateLog();
+        UpdateLog actualLog = actual.getUpdateLog();
+        long expectedStart = expectedLog.stepStart(step);
+        long actualStart = actualLog.stepStart(step);
+        long count = expectedLog.stepEnd(step) - expectedStart;
+        assertEquals(count, actualLog.stepEnd(step) - actualStart, "updates of step " + step);
+        expected.setPosition(step + 1);
+        actual.setPosition(step + 1);
+        for (long i = 0; i < count; i++) {
+            int addr = expectedLog.getAddress(expectedStart + i);
+            assertEquals(addr, actualLog.getAddress(actualStart + i), "address in step " + step);
+            assertEquals(expectedLog.getOldValue(expectedStart + i), actualLog.getOldValue(actualStart + i),
+                    "old value in step " + step);
+            assertEquals(expectedLog.getNewValue(expectedStart + i), actualLog.getNewValue(actualStart + i),
+                    "new value in step " + step);
+            assertEquals(expected.get(addr), actual.get(addr), "address " + addr + " after step " + step);
+        }
+        assertEquals(expected.get(State.IAR), actual.get(State.IAR), "IAR after step " + step);
+        assertEquals(expected.get(State.ACCU), actual.get(State.ACCU), "ACCU after step " + step);
+    }
+
+}
@@ -0,0 +1,36 @@
+plugins {
+    id("java")
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+java {
+    toolchain {
+        languageVersion = JavaLanguageVersion.of(17)
+    }
+}
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    jmhImplementation(project(":backend"))
+}
+
+sourceSets {
+    named("jmh") {
+        // the example programs are loaded as resources
+        resources.srcDir(rootProject.file("examples"))
+    }
+}
+
+// ./gradlew :benchmarks:jmh writes build/results/jmh/results.json
+jmh {
+    jmhVersion = "1.37"
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+    // e.g. -Pjmh.includes=Seek to run only the matching benchmarks
+    if (project.hasProperty("jmh.includes")) {
+        includes = listOf(project.property("jmh.includes").toString())
+    }
+}
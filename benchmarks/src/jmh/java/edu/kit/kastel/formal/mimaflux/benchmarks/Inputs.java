@@ -0,0 +1,192 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.benchmarks;
+
+import edu.kit.kastel.formal.mimaflux.capacitor.Constants;
+import edu.kit.kastel.formal.mimaflux.capacitor.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The inputs of the benchmarks: the programs in examples/, which are
+ * resources of the benchmarks, and synthetic programs of any size.
+ */
+final class Inputs {
+
+    /** Discards all messages without producing them. */
+    static final Logger SILENT = new Logger() {
+        @Override
+        public void log(LogProducer message, Level level) {
+        }
+    };
+
+    private static final Pattern SYNTHETIC = Pattern.compile("(loop|straight|sort)(\\d+)");
+
+    private static final String[] INSTRUCTIONS = { "LDV", "ADD", "STV", "AND", "OR", "XOR", "EQL" };
+    private static final int VARIABLES = 64;
+
+    private Inputs() {
+    }
+
+    /**
+     * @param name the file name of an example, loop&lt;n&gt; for
+     *             {@link #loop(int)}, straight&lt;n&gt; for
+     *             {@link #straight(int)} or sort&lt;n&gt; for
+     *             {@link #sort(int)}
+     */
+    static String source(String name) throws IOException {
+        Matcher matcher = SYNTHETIC.matcher(name);
+        if (matcher.matches()) {
+            int size = Integer.parseInt(matcher.group(2));
+            return switch (matcher.group(1)) {
+                case "loop" -> loop(size);
+                case "straight" -> straight(size);
+                default -> sort(size);
+            };
+        }
+        try (InputStream in = Inputs.class.getResourceAsStream("/" + name)) {
+            if (in == null) {
+                throw new IOException("Unknown example: " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A loop adding up the numbers below count into sum. Every iteration
+     * takes 8 steps, the program halts after 8 * count + 5 steps.
+     */
+    static String loop(int count) {
+        return """
+                count: DS %d
+                minus: DS -1
+                sum: DS 0
+                START: LDV count
+                  ADD minus
+                  STV count
+                  JMN end
+                  LDV sum
+                  ADD count
+                  STV sum
+                  JMP START
+                end: HALT
+                """.formatted(count);
+    }
+
+    /**
+     * @return the sum computed by {@link #loop(int)}
+     */
+    static int loopSum(int count) {
+        return (int) ((long) count * (count - 1) / 2) & Constants.VALUE_MASK;
+    }
+
+    /**
+     * The selection sort of demo-sort.mima on an array of the given length
+     * at address 0, filled with pseudo-random numbers below 1000. It takes
+     * about 11 * length^2 steps.
+     */
+    static String sort(int length) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("* = 0\n");
+        for (int i = 0; i < length; i++) {
+            builder.append("DS ").append((i * 7919 + 13) % 1000).append('\n');
+        }
+        builder.append("""
+                * = %d
+                ARRLEN: DS %d
+                POS_ONE: DS 1
+                NEG_ONE: DS -1
+                TEMP: DS 0
+                CURELEM: DS 0
+                CURPOS: DS 0
+                START: LDV ARRLEN
+                  STV CURELEM
+                OUTERLOOP: LDV CURELEM
+                  ADD NEG_ONE
+                  STV CURPOS
+                  JMN EXIT
+                INNERLOOP: LDIV CURPOS
+                  NOT
+                  ADD POS_ONE
+                  STV TEMP
+                  LDIV CURELEM
+                  ADD TEMP
+                  JMN SWAP
+                  JMP NEXTPOS
+                SWAP: LDIV CURPOS
+                  STV TEMP
+                  LDIV CURELEM
+                  STIV CURPOS
+                  LDV TEMP
+                  STIV CURELEM
+                NEXTPOS: LDV CURPOS
+                  ADD NEG_ONE
+                  JMN NEXTELEM
+                  STV CURPOS
+                  JMP INNERLOOP
+                NEXTELEM: LDV CURELEM
+                  ADD NEG_ONE
+                  JMN EXIT
+                  STV CURELEM
+                  JMP OUTERLOOP
+                EXIT: HALT
+                """.formatted(length, length - 1));
+        return builder.toString();
+    }
+
+    /**
+     * A program of the given number of lines of straight code, with labels
+     * and comments, for parsing.
+     */
+    static String straight(int lines) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("; generated, ").append(lines).append(" lines\n");
+        for (int i = 0; i < VARIABLES; i++) {
+            builder.append("v").append(i).append(": DS ").append(i).append('\n');
+        }
+        for (int i = 0; i < lines; i++) {
+            if (i == 0) {
+                builder.append("START: ");
+            } else if (i % 8 == 0) {
+                builder.append("l").append(i).append(": ");
+            }
+            builder.append(INSTRUCTIONS[i % INSTRUCTIONS.length]).append(" v").append(i % VARIABLES);
+            if (i % 4 == 0) {
+                builder.append("  ; line ").append(i);
+            }
+            builder.append('\n');
+        }
+        builder.append("HALT\n");
+        return builder.toString();
+    }
+
+    /**
+     * A spec file with the given number of test cases for
+     * {@link #loop(int)}, the i-th starting from count + i.
+     */
+    static String loopSpec(int cases, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < cases; i++) {
+            builder.append("t").append(i).append(":\n")
+                    .append("  count = ").append(count + i).append('\n')
+                    .append("  ==> sum = ").append(loopSum(count + i)).append("\n\n");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.benchmarks;
+
+import edu.kit.kastel.formal.mimaflux.capacitor.Interpreter;
+import edu.kit.kastel.formal.mimaflux.capacitor.Program;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and assembling programs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({ "first.mima", "fibonacci.mima", "demo-sort.mima", "straight1000", "straight100000" })
+    public String program;
+
+    private String source;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = Inputs.source(program);
+    }
+
+    /**
+     * What {@link Interpreter#parseString(String)} does for a program it
+     * has not seen before.
+     */
+    @Benchmark
+    public Program parse() {
+        return Program.parseString(source);
+    }
+
+    /**
+     * {@link Interpreter#parseString(String)} for a program in the program
+     * cache: the content is hashed and looked up.
+     */
+    @Benchmark
+    public Interpreter parseCached() {
+        Interpreter interpreter = new Interpreter();
+        interpreter.parseString(source);
+        return interpreter;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.benchmarks;
+
+import edu.kit.kastel.formal.mimaflux.capacitor.Interpreter;
+import edu.kit.kastel.formal.mimaflux.capacitor.Timeline;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording complete timelines. Besides the timelines per second, the
+ * recorded steps per second are reported as the secondary result "steps".
+ * Every program is recorded with and without fusion of instruction
+ * sequences, to show the gain of fusion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RecordBenchmark {
+
+    private static final long MAX_STEPS = 10_000_000;
+
+    @Param({ "fibonacci.mima", "demo-sort.mima", "sort100", "sort1000", "loop10000", "loop250000" })
+    public String program;
+
+    @Param({ "true", "false" })
+    public boolean fusion;
+
+    private Interpreter interpreter;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Steps {
+        public long steps;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            steps = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        interpreter = new Interpreter();
+        interpreter.parseString(Inputs.source(program));
+        interpreter.setFusion(fusion);
+    }
+
+    @Benchmark
+    public long makeTimeline(Steps counter) throws IOException {
+        Timeline timeline = interpreter.makeTimeline(Inputs.SILENT, MAX_STEPS, List.of());
+        long steps = timeline.countStates();
+        timeline.close();
+        counter.steps += steps;
+        return steps;
+    }
+}
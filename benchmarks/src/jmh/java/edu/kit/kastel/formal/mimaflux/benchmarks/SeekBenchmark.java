@@ -0,0 +1,116 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.benchmarks;
+
+import edu.kit.kastel.formal.mimaflux.capacitor.Interpreter;
+import edu.kit.kastel.formal.mimaflux.capacitor.Timeline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moving through a recorded timeline: single steps and long jumps in both
+ * directions and seeks to random positions. Moves past either end wrap
+ * around. The synthetic loops span three orders of magnitude of timeline
+ * length, so that the growth of the seek latency with the length shows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SeekBenchmark {
+
+    // enough for loop1250000, which halts after 10,000,005 steps
+    private static final long MAX_STEPS = 20_000_000;
+    // the number of long jumps through the whole timeline
+    private static final int JUMPS = 64;
+    private static final int RANDOM_POSITIONS = 1 << 12;
+
+    @Param({ "demo-sort.mima", "loop12500", "loop125000", "loop1250000" })
+    public String program;
+
+    private Timeline timeline;
+    private long states;
+    private long position;
+    private long[] randomPositions;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        Interpreter interpreter = new Interpreter();
+        interpreter.parseString(Inputs.source(program));
+        timeline = interpreter.makeTimeline(Inputs.SILENT, MAX_STEPS, List.of());
+        states = timeline.countStates() + 1;
+        Random random = new Random(42);
+        randomPositions = new long[RANDOM_POSITIONS];
+        for (int i = 0; i < RANDOM_POSITIONS; i++) {
+            randomPositions[i] = Math.floorMod(random.nextLong(), states);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        timeline.close();
+    }
+
+    private long seek(long offset) {
+        position = Math.floorMod(position + offset, states);
+        timeline.setPosition(position);
+        return timeline.getPosition();
+    }
+
+    @Benchmark
+    public long stepForward() {
+        return seek(1);
+    }
+
+    @Benchmark
+    public long stepBackward() {
+        return seek(-1);
+    }
+
+    @Benchmark
+    public long jumpForward() {
+        return seek(states / JUMPS);
+    }
+
+    @Benchmark
+    public long jumpBackward() {
+        return seek(-states / JUMPS);
+    }
+
+    @Benchmark
+    public long random() {
+        position = randomPositions[next++ & (RANDOM_POSITIONS - 1)];
+        timeline.setPosition(position);
+        return timeline.getPosition();
+    }
+}
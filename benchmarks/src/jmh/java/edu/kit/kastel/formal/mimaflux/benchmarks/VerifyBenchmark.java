@@ -0,0 +1,92 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.benchmarks;
+
+import edu.kit.kastel.formal.mimaflux.capacitor.Executor;
+import edu.kit.kastel.formal.mimaflux.capacitor.MimaVerification;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifying a spec file of many test cases against {@link Inputs#loop(int)},
+ * each test case runs for about 8000 to 16000 steps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VerifyBenchmark {
+
+    private static final long MAX_STEPS = 1_000_000;
+    private static final int COUNT = 1000;
+
+    @Param({ "10", "1000" })
+    public int cases;
+
+    @Param({ "INTERPRETER", "COMPILER" })
+    public Executor.Engine engine;
+
+    private Path directory;
+    private String programFile;
+    private String specFile;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("mimaflux-bench");
+        programFile = Files.writeString(directory.resolve("loop.mima"), Inputs.loop(COUNT)).toString();
+        specFile = Files.writeString(directory.resolve("loop.spec"), Inputs.loopSpec(cases, COUNT)).toString();
+        // the verification prints every test case
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        if (verify() != 0) {
+            throw new IllegalStateException("Test cases failed");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.setOut(out);
+        Files.delete(directory.resolve("loop.spec"));
+        Files.delete(directory.resolve("loop.mima"));
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public int verify() throws IOException {
+        MimaVerification verification = new MimaVerification(Inputs.SILENT, MAX_STEPS, List.of(), engine, 0);
+        return verification.verify(specFile, programFile);
+    }
+}
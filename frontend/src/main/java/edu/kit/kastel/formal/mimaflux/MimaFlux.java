@@ -16,25 +16,43 @@ package edu.kit.kastel.formal.mimaflux;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
+import edu.kit.kastel.formal.mimaflux.capacitor.BatchManifest;
+import edu.kit.kastel.formal.mimaflux.capacitor.BatchRunner;
+import edu.kit.kastel.formal.mimaflux.capacitor.Daemon;
 import edu.kit.kastel.formal.mimaflux.capacitor.Interpreter;
+import edu.kit.kastel.formal.mimaflux.capacitor.Json;
 import edu.kit.kastel.formal.mimaflux.capacitor.Logger;
 import edu.kit.kastel.formal.mimaflux.capacitor.MimaException;
 import edu.kit.kastel.formal.mimaflux.capacitor.MimaVerification;
+import edu.kit.kastel.formal.mimaflux.capacitor.Profile;
+import edu.kit.kastel.formal.mimaflux.capacitor.Program;
+import edu.kit.kastel.formal.mimaflux.capacitor.ProgramCache;
+import edu.kit.kastel.formal.mimaflux.capacitor.RunResult;
 import edu.kit.kastel.formal.mimaflux.capacitor.State;
 import edu.kit.kastel.formal.mimaflux.capacitor.Timeline;
+import edu.kit.kastel.formal.mimaflux.capacitor.TraceFile;
+import edu.kit.kastel.formal.mimaflux.capacitor.Watchpoints;
 import edu.kit.kastel.formal.mimaflux.gui.GUI;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MimaFlux {
 
     public static final String VERSION;
 
+    // the number of lines listed by -profile
+    private static final int HOT_LINES = 20;
+
     static {
         URL u = MimaFlux.class.getResource("/VERSION");
         String version = "<unknown>";
@@ -53,50 +71,123 @@ public class MimaFlux {
 
     public static void main(String[] args) {
         try {
-            Timeline timeline;
             mmargs = new MimaFluxArgs();
             JCommander jc = JCommander.newBuilder()
                     .addObject(mmargs)
                     .build();
             jc.parse(args);
 
-            logger.info("Mima Flux Capacitor " + VERSION);
+            // in batch and client mode, the output consists of the result lines only
+            if (mmargs.batchFile == null && mmargs.connect == null) {
+                logger.info("Mima Flux Capacitor " + VERSION);
+            }
 
             if (mmargs.help) {
                 jc.usage();
                 System.exit(0);
             }
 
+            if (mmargs.cacheDir != null) {
+                ProgramCache.getDefault().setDirectory(Paths.get(mmargs.cacheDir));
+            }
+
+            if (mmargs.batchFile != null) {
+                BatchRunner runner = new BatchRunner(mmargs.maxSteps, mmargs.engine, mmargs.threads);
+                runner.setCycleDetection(mmargs.detectCycles);
+                runner.setTimeout(mmargs.timeout);
+                int notPassed;
+                try (BatchManifest manifest = BatchManifest.open(Paths.get(mmargs.batchFile))) {
+                    notPassed = runner.run(manifest, result -> logger.info(result.toJson()));
+                }
+                System.exit(notPassed == 0 ? 0 : 1);
+            }
+
+            if (mmargs.daemon != null) {
+                try (Daemon daemon = new Daemon(mmargs.daemon, mmargs.maxSteps, mmargs.engine, mmargs.threads)) {
+                    daemon.setCycleDetection(mmargs.detectCycles);
+                    daemon.setTimeout(mmargs.timeout);
+                    logger.info("Serving requests on " + mmargs.daemon);
+                    daemon.serve();
+                }
+                System.exit(0);
+            }
+
+            if (mmargs.connect != null) {
+                System.exit(connect(jc));
+            }
+
             if (mmargs.verifyFile != null) {
                 if (mmargs.fileName == null) {
                     throw new MimaException("A filename must be provided in -verify mode.");
                 }
-                MimaVerification verification = new MimaVerification(logger, mmargs.maxSteps, mmargs.printRanges);
+                MimaVerification verification = new MimaVerification(logger, mmargs.maxSteps, mmargs.printRanges,
+                        mmargs.engine, mmargs.threads);
+                verification.setCycleDetection(mmargs.detectCycles);
+                Profile profile = mmargs.profile == null ? null : new Profile();
+                verification.setProfile(profile);
                 int res = verification.verify(mmargs.verifyFile, mmargs.fileName);
+                saveProfile(profile, ProgramCache.getDefault().parseFile(mmargs.fileName));
                 System.exit(res);
             }
 
+            if (mmargs.openTrace != null) {
+                Timeline timeline = TraceFile.load(Paths.get(mmargs.openTrace), logger);
+                GUI gui = new GUI(timeline, null, logger, mmargs.maxSteps, mmargs.printRanges);
+                setWatchpoints(gui);
+                gui.setVisible(true);
+                return;
+            }
+
             if (mmargs.fileName == null) {
-                timeline = null;
-                if (mmargs.autoRun) {
+                if (mmargs.autoRun || mmargs.saveTrace != null) {
                     throw new MimaException("A filename must be provided in -run mode.");
                 }
-            } else {
-                Interpreter interpreter = new Interpreter();
-                interpreter.parseFile(mmargs.fileName);
-                loadTestCaseInitialValues(mmargs.loadTest, interpreter);
-                setInitialValues(mmargs.assignments, interpreter);
-                timeline = interpreter.makeTimeline(logger, mmargs.maxSteps, mmargs.printRanges);
+                GUI gui = new GUI(null, null, logger, mmargs.maxSteps, mmargs.printRanges);
+                setWatchpoints(gui);
+                gui.setVisible(true);
+                return;
             }
 
+            Interpreter interpreter = new Interpreter();
+            interpreter.parseFile(mmargs.fileName);
+            loadTestCaseInitialValues(mmargs.loadTest, interpreter);
+            setInitialValues(mmargs.assignments, interpreter);
+
             if (mmargs.autoRun) {
-                assert timeline != null;
-                timeline.setPosition(timeline.countStates() - 1);
-                logger.debug(() -> timeline.exposeState().stringRepresentation(timeline.getLabelMap(), mmargs.printRanges));
-                ensureTests(timeline);
+                Watchpoints watchpoints = Watchpoints.parse(mmargs.watchpoints, interpreter.getLabelMap());
+                interpreter.setCycleDetection(mmargs.detectCycles);
+                Profile profile = mmargs.profile == null ? null : new Profile();
+                interpreter.setProfile(profile);
+                RunResult result = interpreter.run(logger, mmargs.maxSteps, mmargs.engine, watchpoints);
+                saveProfile(profile, interpreter.getProgram());
+                logger.debug(" ---- Finished after " + result.steps() + " steps: " + result.haltReason());
+                if (result.haltReason() == RunResult.HaltReason.WATCHPOINT) {
+                    logger.info("Stopped at watchpoint " + result.watchpoint() + " after " + result.steps() + " steps.");
+                }
+                if (result.cycle() != null) {
+                    logger.info("The program does not terminate: " + result.cycle() + ".");
+                }
+                if (mmargs.stats) {
+                    logger.info(interpreter.getStatistics()
+                            .put("haltReason", result.haltReason().name())
+                            .toJson());
+                }
+                logger.debug(() -> result.state().stringRepresentation(interpreter.getLabelMap(), mmargs.printRanges));
+                ensureTests(result.state(), interpreter.getLabelMap());
+                System.exit(0);
+            } else if (mmargs.saveTrace != null) {
+                Timeline timeline = interpreter.makeTimeline(logger, mmargs.maxSteps, mmargs.printRanges);
+                TraceFile.save(timeline, Paths.get(mmargs.saveTrace));
+                logger.info("Saved " + timeline.countStates() + " steps to " + mmargs.saveTrace);
+                if (mmargs.stats) {
+                    logger.info(interpreter.getStatistics().putAll(timeline.getStatistics()).toJson());
+                }
+                timeline.close();
                 System.exit(0);
             } else {
+                Timeline timeline = interpreter.makeLazyTimeline(logger, mmargs.maxSteps, mmargs.printRanges);
                 GUI gui = new GUI(timeline, mmargs.fileName, logger, mmargs.maxSteps, mmargs.printRanges);
+                setWatchpoints(gui);
                 gui.setVisible(true);
             }
         } catch (NoSuchFileException ex) {
@@ -109,6 +200,57 @@ public class MimaFlux {
         }
     }
 
+    /*
+     * Send the invocation to the daemon, returns the exit code. Budgets are
+     * only sent if given, otherwise those of the daemon apply.
+     */
+    private static int connect(JCommander jc) throws IOException, MimaException {
+        if (mmargs.fileName == null) {
+            throw new MimaException("A filename must be provided in -connect mode.");
+        }
+        // the daemon may run in another directory
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("program", Paths.get(mmargs.fileName).toAbsolutePath().toString());
+        if (mmargs.verifyFile != null) {
+            request.put("spec", Paths.get(mmargs.verifyFile).toAbsolutePath().toString());
+        }
+        request.put("set", mmargs.assignments != null ? mmargs.assignments : List.of());
+        request.put("test", mmargs.tests != null ? mmargs.tests : List.of());
+        if (isAssigned(jc, "-maxSteps")) {
+            request.put("maxSteps", mmargs.maxSteps);
+        }
+        if (mmargs.timeout > 0) {
+            request.put("timeout", mmargs.timeout);
+        }
+        String answer = Daemon.request(mmargs.connect, Json.write(request));
+        logger.info(answer);
+        Object status = Json.parse(answer) instanceof Map<?, ?> result ? result.get("status") : null;
+        return "PASSED".equals(status) ? 0 : 1;
+    }
+
+    // whether the option has been given on the command line
+    private static boolean isAssigned(JCommander jc, String name) {
+        return jc.getParameters().stream()
+                .anyMatch(parameter -> parameter.isAssigned() && parameter.getLongestName().equals(name));
+    }
+
+    private static void saveProfile(Profile profile, Program program) throws IOException {
+        if (profile == null) {
+            return;
+        }
+        logger.info(profile.hotLines(program, HOT_LINES));
+        try (Writer out = Files.newBufferedWriter(Paths.get(mmargs.profile))) {
+            profile.writeCollapsedStacks(out, program);
+        }
+        logger.info("Saved the call stacks of the profile to " + mmargs.profile);
+    }
+
+    private static void setWatchpoints(GUI gui) {
+        if (mmargs.watchpoints != null) {
+            gui.setWatchpoints(mmargs.watchpoints);
+        }
+    }
+
     private static void loadTestCaseInitialValues(String loadTest, Interpreter interpreter) throws IOException, MimaException {
         if (loadTest == null) {
             return;
@@ -121,7 +263,7 @@ public class MimaFlux {
         mv.setInitialValues(file, testcase, interpreter);
     }
 
-    private static void ensureTests(Timeline timeline) {
+    private static void ensureTests(State state, Map<String, Integer> labelMap) {
         if (mmargs.tests == null) {
             return;
         }
@@ -133,13 +275,13 @@ public class MimaFlux {
                 if (parts.length != 2) {
                     throw new IllegalArgumentException();
                 }
-                Integer resolved = timeline.getLabelMap().get(parts[0]);
+                Integer resolved = labelMap.get(parts[0]);
                 if (resolved == null) {
                     resolved = Integer.decode(parts[0]);
                 }
                 Integer val = Integer.decode(parts[1]);
 
-                int observed = timeline.exposeState().get(resolved);
+                int observed = state.get(resolved);
                 if (observed != val) {
                     logger.error(" ... violated. Expected value %d (0x%x) at address %s, but observed %d (0x%x).".formatted(
                             val, val, parts[0], observed, observed));
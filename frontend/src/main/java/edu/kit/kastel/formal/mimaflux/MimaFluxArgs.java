@@ -17,6 +17,7 @@ package edu.kit.kastel.formal.mimaflux;
 import com.beust.jcommander.IStringConverter;
 import com.beust.jcommander.Parameter;
 import edu.kit.kastel.formal.mimaflux.capacitor.AddressRange;
+import edu.kit.kastel.formal.mimaflux.capacitor.Executor;
 
 import java.util.List;
 
@@ -78,6 +79,14 @@ public class MimaFluxArgs {
     )
     public List<String> tests;
 
+    @Parameter(names = {"-watch", "-w"},
+            description = "Arg: <addr>, <addr>=<val> or <addr>=<val>-<val>.\n" + INDENT +
+                    "Stop after the first step that writes to addr, or that changes the value at addr " +
+                    "to val or into the range. The address and the values can be a number or a label, " +
+                    "_accu and _iar stand for the registers. Can be specified multiple times for " +
+                    "multiple watchpoints. In GUI mode, continuing stops at the watchpoints.")
+    public List<String> watchpoints;
+
     @Parameter(names = {"-loadTest", "-l"},
              description = "Arg: <file>#<name>.\n" + INDENT +
                      "Load the test case named <name> specified in <file> into the GUI.")
@@ -92,6 +101,85 @@ public class MimaFluxArgs {
     )
     public String verifyFile;
 
+    @Parameter(names = "-batch",
+            description = "Arg: <file>.\n" + INDENT +
+                    "Run all programs listed in the manifest file in one process and print one JSON " +
+                    "result line per entry. The manifest is CSV with the columns id, program, spec, set " +
+                    "and test, or JSON lines with these members if it ends in .jsonl. set and test hold " +
+                    "<addr>=<val> items separated by semicolons, as -set and -test.")
+    public String batchFile;
+
+    @Parameter(names = "-daemon",
+            description = "Arg: <port> or <socket file>.\n" + INDENT +
+                    "Serve run and verify requests from -connect clients on this port of the loopback " +
+                    "interface or this Unix domain socket, using -threads worker threads. -maxSteps, " +
+                    "-timeout, -engine and -detectCycles apply to all requests, which may only lower the budgets.")
+    public String daemon;
+
+    @Parameter(names = "-connect",
+            description = "Arg: <port> or <socket file>.\n" + INDENT +
+                    "Send the -run or -verify invocation with its -set, -test, -maxSteps and -timeout " +
+                    "arguments to a -daemon and print its JSON result line.")
+    public String connect;
+
+    @Parameter(names = "-timeout",
+            description = "Arg: <millis>.\n" + INDENT +
+                    "Time budget of a -batch entry or a -daemon request. Runs still going on are stopped " +
+                    "and fail. 0 for no limit.")
+    public long timeout = 0;
+
+    @Parameter(names = "-threads",
+            description = "Arg: <n>.\n" + INDENT +
+                    "Number of test cases run concurrently in -verify mode, entries in -batch mode or " +
+                    "requests in -daemon mode. " +
+                    "0 uses all available processors.")
+    public int threads = 0;
+
+    @Parameter(names = "-saveTrace",
+            description = "Arg: <file>.\n" + INDENT +
+                    "Record the timeline of the program and save it to the file " +
+                    "instead of opening the graphical user interface.")
+    public String saveTrace;
+
+    @Parameter(names = "-openTrace",
+            description = "Arg: <file>.\n" + INDENT +
+                    "Open a trace saved with -saveTrace in the graphical user interface. " +
+                    "The program is neither parsed nor executed again.")
+    public String openTrace;
+
+    @Parameter(names = "-cacheDir",
+            description = "Arg: <dir>.\n" + INDENT +
+                    "Keep assembled programs in this directory, so that unchanged " +
+                    "programs are not parsed again.")
+    public String cacheDir;
+
+    @Parameter(names = "-stats",
+            description = "Print the counters of the execution as a JSON object after -run (steps, halt " +
+                    "reason, timings, instruction cache and compiler) or -saveTrace (recorded steps and " +
+                    "updates, memory taken).")
+    public boolean stats;
+
+    @Parameter(names = "-profile",
+            description = "Arg: <file>.\n" + INDENT +
+                    "Count the executed instructions in -run and -verify mode. The most frequently " +
+                    "executed source lines are printed, the steps per subroutine call stack are saved " +
+                    "to the file in the collapsed format of flame graph tools. Slows execution down " +
+                    "and disables the COMPILER engine and -detectCycles.")
+    public String profile;
+
+    @Parameter(names = "-detectCycles",
+            description = "Stop -run and -verify as soon as the program provably loops forever, i.e. " +
+                    "returns to an earlier state, and report the loop. The final state is the same as " +
+                    "after running up to -maxSteps. Terminating programs run slower and without the COMPILER engine.")
+    public boolean detectCycles;
+
     @Parameter(names = "-maxSteps", description = "Maximum number of steps to be recorded by mima flux")
-    public int maxSteps = 1000;
+    public long maxSteps = 1000;
+
+    @Parameter(names = "-engine",
+            description = "Arg: INTERPRETER, COMPILER or CROSS_CHECK.\n" + INDENT +
+                    "How programs are executed in -run and -verify mode. COMPILER translates " +
+                    "frequently executed code to JVM bytecode, CROSS_CHECK additionally compares " +
+                    "its results against the interpreter.")
+    public Executor.Engine engine = Executor.Engine.INTERPRETER;
 }
@@ -0,0 +1,125 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.gui;
+
+import edu.kit.kastel.formal.mimaflux.capacitor.Constants;
+
+import java.util.Arrays;
+
+/**
+ * A set of memory addresses that can be enumerated in order by index.
+ *
+ * The set is a bitset over the address space. A Fenwick tree over the
+ * population counts of its words finds the n-th address and the index of
+ * an address in logarithmic time, and is updated in logarithmic time when
+ * an address is added or removed.
+ */
+class AddressSet {
+
+    private static final int WORDS = Constants.ADDRESS_RANGE / 64;
+
+    private final long[] bits = new long[WORDS];
+    // Fenwick tree of the number of addresses in every word, 1-based
+    private final int[] tree = new int[WORDS + 1];
+    private int size;
+
+    boolean contains(int addr) {
+        return (bits[addr >> 6] & (1L << addr)) != 0;
+    }
+
+    void add(int addr) {
+        if (!contains(addr)) {
+            bits[addr >> 6] |= 1L << addr;
+            adjust(addr >> 6, 1);
+        }
+    }
+
+    void remove(int addr) {
+        if (contains(addr)) {
+            bits[addr >> 6] &= ~(1L << addr);
+            adjust(addr >> 6, -1);
+        }
+    }
+
+    private void adjust(int word, int delta) {
+        size += delta;
+        for (int i = word + 1; i <= WORDS; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(bits, 0L);
+        Arrays.fill(tree, 0);
+        size = 0;
+    }
+
+    /**
+     * Add addresses in bulk: add them with {@link #addUnindexed(int)}, then
+     * call {@link #reindex()}.
+     */
+    void addUnindexed(int addr) {
+        bits[addr >> 6] |= 1L << addr;
+    }
+
+    void reindex() {
+        size = 0;
+        Arrays.fill(tree, 0);
+        for (int i = 1; i <= WORDS; i++) {
+            int count = Long.bitCount(bits[i - 1]);
+            size += count;
+            tree[i] += count;
+            int parent = i + (i & -i);
+            if (parent <= WORDS) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of addresses in the set below the given one
+     */
+    int indexOf(int addr) {
+        int word = addr >> 6;
+        int result = 0;
+        for (int i = word; i > 0; i -= i & -i) {
+            result += tree[i];
+        }
+        return result + Long.bitCount(bits[word] & ((1L << addr) - 1));
+    }
+
+    /**
+     * @return the address with the given index in ascending order
+     */
+    int get(int index) {
+        int word = 0;
+        int remaining = index;
+        for (int step = Integer.highestOneBit(WORDS); step > 0; step >>= 1) {
+            if (word + step <= WORDS && tree[word + step] <= remaining) {
+                word += step;
+                remaining -= tree[word];
+            }
+        }
+        long wordBits = bits[word];
+        for (int i = 0; i < remaining; i++) {
+            wordBits &= wordBits - 1;
+        }
+        return (word << 6) | Long.numberOfTrailingZeros(wordBits);
+    }
+}
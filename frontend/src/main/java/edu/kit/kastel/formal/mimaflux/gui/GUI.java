@@ -15,12 +15,20 @@
 package edu.kit.kastel.formal.mimaflux.gui;
 
 import edu.kit.kastel.formal.mimaflux.capacitor.AddressRange;
+import edu.kit.kastel.formal.mimaflux.capacitor.ChangeSet;
 import edu.kit.kastel.formal.mimaflux.capacitor.Command;
+import edu.kit.kastel.formal.mimaflux.capacitor.Constants;
 import edu.kit.kastel.formal.mimaflux.capacitor.Interpreter;
 import edu.kit.kastel.formal.mimaflux.capacitor.Logger;
+import edu.kit.kastel.formal.mimaflux.capacitor.RecordingMonitor;
 import edu.kit.kastel.formal.mimaflux.capacitor.State;
+import edu.kit.kastel.formal.mimaflux.capacitor.SymbolTable;
 import edu.kit.kastel.formal.mimaflux.capacitor.Timeline;
-import edu.kit.kastel.formal.mimaflux.capacitor.UpdateListener;
+import edu.kit.kastel.formal.mimaflux.capacitor.TraceFile;
+import edu.kit.kastel.formal.mimaflux.capacitor.TimelineListener;
+import edu.kit.kastel.formal.mimaflux.capacitor.Watchpoint;
+import edu.kit.kastel.formal.mimaflux.capacitor.Watchpoints;
+import edu.kit.kastel.formal.mimaflux.capacitor.WriteFilter;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.kordamp.ikonli.Ikon;
 import org.kordamp.ikonli.codicons.Codicons;
@@ -29,37 +37,51 @@ import org.kordamp.ikonli.swing.FontIcon;
 import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ToIntFunction;
 
-public class GUI extends JFrame implements UpdateListener {
-    private static final String STEP_LABEL_PATTERN = "Step %d of %d    ";
-    private static final Object[] TABLE_HEADERS = { "Address", "Value", "Instruction" };
-    public static final int ROW_COUNT = 1 << 12;
+public class GUI extends JFrame implements TimelineListener {
+    private static final String STEP_LABEL_PATTERN = "Step %d of %d%s    ";
     private static final Font TABLE_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 14);
+    // returned by the address functions of write popups if there is no address
+    private static final int NO_ADDRESS = Integer.MIN_VALUE;
+    // steps recorded between two searches for a breakpoint in the background
+    private static final int SEARCH_BATCH = 1 << 16;
+    private static final WriteFilter BECOMES_NEGATIVE =
+            (oldValue, newValue) -> (oldValue & Constants.SIGNBIT) == 0 && (newValue & Constants.SIGNBIT) != 0;
 
     private static final FileFilter MIMA_ASM_FILE_FILTER =
             new FileNameExtensionFilter("Mima ASM Files (.mima)", "mima");
+    private static final FileFilter TRACE_FILE_FILTER =
+            new FileNameExtensionFilter("Mima Flux Traces (" + TraceFile.EXTENSION + ")",
+                    TraceFile.EXTENSION.substring(1));
 
 
     private final BreakpointManager breakpointManager = new BreakpointManager();
+    // the watchpoint specifications, applied to every loaded timeline
+    private List<String> watchpointSpecs = List.of();
 
     private BreakpointPane code;
     private Timeline timeline;
-    private DefaultTableModel tableModel;
-    private JSpinner pageSpinner;
+    private final MemoryTableModel memoryModel = new MemoryTableModel();
+    private JTable memTable;
     private JComboBox<RepreState> repreMode;
+    private JComboBox<MemoryFilter> memoryFilter;
     private JLabel stepLabel;
     private JTextField accuField;
     private JTextField iarField;
@@ -69,16 +91,25 @@ public class GUI extends JFrame implements UpdateListener {
     private JPanel optionalPanel;
     private boolean modifiedSinceLoad;
     private final Logger logger;
-    private final int maxSteps;
+    private final long maxSteps;
+    private Timeline recordedTimeline;
+    // the worker of the latest load, until it has finished
+    private LoadWorker loading;
+    // the worker recording the rest of recordedTimeline, until it has finished
+    private RecordingWorker recording;
+    private JPanel recordingPanel;
+    private JProgressBar recordingProgress;
+    private JLabel recordingLabel;
     private final List<AddressRange> printRanges;
 
-    public GUI(Timeline timeline, String filename, Logger logger, int maxSteps, List<AddressRange> printRanges) {
+    public GUI(Timeline timeline, String filename, Logger logger, long maxSteps, List<AddressRange> printRanges) {
         super("Mima Flux Capacitor -- Time Travel Debugger");
         this.logger = logger;
         this.maxSteps = maxSteps;
         this.lastFilename = filename;
         this.printRanges = printRanges;
         initGui();
+        this.recordedTimeline = timeline;
         setTimeline(timeline);
         modifiedSinceLoad = false;
     }
@@ -94,62 +125,76 @@ public class GUI extends JFrame implements UpdateListener {
         code.setText(timeline.getFileContent());
         this.timeline = timeline;
 
-        memoryChanged(Timeline.STEP, 0);
-        memoryChanged(State.ACCU, 0);
-        memoryChanged(State.IAR, timeline.get(State.IAR));
+        showRegisters();
 
         setModified(false);
-        refillTable();
+        memoryModel.setTimeline(timeline);
+        applyWatchpoints();
     }
 
-    private void setModified(boolean b) {
-        componentsToDisable.forEach(x -> x.setEnabled(!b));
-        ((CardLayout)optionalPanel.getLayout()).show(optionalPanel, b ? "modified" : "normal");
-        if(b) {
-            code.removeHighlights();
+    /**
+     * Set the watchpoints, see {@link Watchpoint} for the syntax. They are
+     * kept when another program is loaded.
+     *
+     * @throws IllegalArgumentException if a specification cannot be parsed
+     */
+    public void setWatchpoints(List<String> specs) {
+        if (timeline != null) {
+            Watchpoints.parse(specs, timeline.getLabelMap());
         }
+        watchpointSpecs = List.copyOf(specs);
+        applyWatchpoints();
     }
 
-    private void refillTable() {
-        int page = ((Number)pageSpinner.getValue()).intValue() * ROW_COUNT;
-
-        iarField.setText(formatValue(timeline.get(State.IAR)));
-        accuField.setText(formatValue(timeline.get(State.ACCU)));
+    // specifications referring to labels that no longer exist are skipped
+    private void applyWatchpoints() {
+        if (timeline == null) {
+            return;
+        }
+        List<Watchpoint> watchpoints = new ArrayList<>();
+        for (String spec : watchpointSpecs) {
+            try {
+                watchpoints.add(Watchpoint.parse(spec, timeline.getLabelMap()));
+            } catch (IllegalArgumentException ex) {
+                logger.error(ex.getMessage());
+            }
+        }
+        timeline.setWatchpoints(new Watchpoints(watchpoints));
+    }
 
-        for (int i = 0; i < ROW_COUNT; i++) {
-            int adr = page | i;
-            String name = timeline.getNameFor(adr);
-            if (name == null) {
-                name = "";
-            } else {
-                name = " (" + name + ")";
+    private void editWatchpoints(ActionEvent e) {
+        JTextArea text = new JTextArea(String.join("\n", watchpointSpecs), 8, 30);
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(new JLabel("<html>One watchpoint per line, continuing stops after the steps that<br>" +
+                "<tt>addr</tt>: write to addr<br>" +
+                "<tt>addr=val</tt>: change the value at addr to val<br>" +
+                "<tt>addr=from-to</tt>: change the value at addr to the range<br>" +
+                "Use <tt>_accu</tt> and <tt>_iar</tt> for the registers.</html>"), BorderLayout.NORTH);
+        panel.add(new JScrollPane(text), BorderLayout.CENTER);
+        while (JOptionPane.showConfirmDialog(this, panel, "Watchpoints",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION) {
+            List<String> specs = text.getText().lines().map(String::trim).filter(line -> !line.isEmpty()).toList();
+            try {
+                setWatchpoints(specs);
+                return;
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(this, ex.getMessage(), "Watchpoints", JOptionPane.ERROR_MESSAGE);
             }
-            tableModel.setValueAt(String.format("0x%05x%s", adr, name), i, 0);
-            tableModel.setValueAt(formatValue(timeline.get(adr)), i, 1);
-            tableModel.setValueAt(State.toInstruction(timeline.get(adr)), i, 2);
         }
     }
 
-    private String formatValue(int val) {
-        switch ((RepreState) Objects.requireNonNull(repreMode.getSelectedItem())) {
-            case BIN:
-                char[] res = new char[24 + 5];
-                for (int p = res.length-1, i = 0; i < 24; i++, p--) {
-                    res[p] = (val & (1 << i)) == 0 ? '0' : '1';
-                    if (i % 4 == 3 && i < 23) {
-                        res[--p] = '\u2009';
-                    }
-                }
-                return new String(res);
-            case DEC:
-                return String.format("%d", val);
-            case HEX:
-                return String.format("0x%06x", val);
-            default:
-                return "";
+    private void setModified(boolean b) {
+        componentsToDisable.forEach(x -> x.setEnabled(!b));
+        ((CardLayout)optionalPanel.getLayout()).show(optionalPanel, b ? "modified" : "normal");
+        if(b) {
+            code.removeHighlights();
         }
     }
 
+    private String formatValue(int val) {
+        return ((RepreState) Objects.requireNonNull(repreMode.getSelectedItem())).format(val);
+    }
+
     private void initGui() {
         Container cp = getContentPane();
         cp.setLayout(new BorderLayout());
@@ -192,6 +237,13 @@ public class GUI extends JFrame implements UpdateListener {
             @Override
             public void windowClosing(WindowEvent e) {
                 if (sureChangesLost()) {
+                    // deletes the temporary file of a long recording
+                    if (recordedTimeline != null && recordedTimeline != timeline) {
+                        closeTimeline(recordedTimeline);
+                    }
+                    if (timeline != null) {
+                        closeTimeline(timeline);
+                    }
                     System.exit(0);
                 }
             }
@@ -201,11 +253,12 @@ public class GUI extends JFrame implements UpdateListener {
 
     private JPanel makeMemPanel() {
         JPanel result = new JPanel(new GridBagLayout());
-        this.tableModel = new DefaultTableModel(ROW_COUNT, 3);
-        tableModel.setColumnIdentifiers(TABLE_HEADERS);
-        JTable memTable = new JTable(tableModel);
+        this.memTable = new JTable(memoryModel);
         memTable.setFont(TABLE_FONT);
-        memTable.setEnabled(false);
+        addWritePopup(memTable, e -> {
+            int row = memTable.rowAtPoint(e.getPoint());
+            return row < 0 ? NO_ADDRESS : memoryModel.getAddress(row);
+        });
 
         GridBagConstraints gbc = new GridBagConstraints(0, 0,
                 1, 1, 0., 0.,
@@ -221,6 +274,7 @@ public class GUI extends JFrame implements UpdateListener {
         accuField.setEditable(false);
         accuField.setFont(TABLE_FONT);
         accuField.setBackground(UIManager.getColor("Table.background"));
+        addWritePopup(accuField, e -> State.ACCU);
         result.add(accuField, gbc);
 
         gbc.gridy++;
@@ -234,6 +288,7 @@ public class GUI extends JFrame implements UpdateListener {
         iarField.setEditable(false);
         iarField.setFont(TABLE_FONT);
         iarField.setBackground(UIManager.getColor("Table.background"));
+        addWritePopup(iarField, e -> State.IAR);
         result.add(iarField, gbc);
 
         gbc.gridy++;
@@ -259,17 +314,24 @@ public class GUI extends JFrame implements UpdateListener {
         {
             JPanel p = new JPanel(new FlowLayout(FlowLayout.RIGHT));
             this.repreMode = new JComboBox<>(RepreState.values());
-            repreMode.addActionListener(e -> refillTable());
+            repreMode.addActionListener(e -> {
+                memoryModel.setRepreState((RepreState) repreMode.getSelectedItem());
+                if (timeline != null) {
+                    showRegisters();
+                }
+            });
             p.add(repreMode);
 
-            p.add(new JLabel("      Memory page: "));
-            this.pageSpinner = new JSpinner();
-            pageSpinner.setModel(new SpinnerNumberModel(0, 0, 0xff, 1));
-            pageSpinner.addChangeListener(e -> refillTable());
-            JSpinner.DefaultEditor editor = (JSpinner.DefaultEditor) pageSpinner.getEditor();
-            JFormattedTextField tf = editor.getTextField();
-            tf.setFormatterFactory(new HexFormatter.Factory());
-            p.add(pageSpinner, gbc);
+            this.memoryFilter = new JComboBox<>(MemoryFilter.values());
+            memoryFilter.addActionListener(e -> memoryModel.setFilter((MemoryFilter) memoryFilter.getSelectedItem()));
+            p.add(memoryFilter);
+
+            p.add(new JLabel("      Go to address: "));
+            JFormattedTextField addressField = new JFormattedTextField(new HexFormatter.Factory(), 0);
+            addressField.setColumns(6);
+            addressField.addPropertyChangeListener("value",
+                    e -> scrollToAddress(((Number) addressField.getValue()).intValue()));
+            p.add(addressField);
             result.add(p, gbc);
         }
 
@@ -283,24 +345,114 @@ public class GUI extends JFrame implements UpdateListener {
         return result;
     }
 
+    private void scrollToAddress(int addr) {
+        int row = Math.min(memoryModel.getRowAtOrAfter(addr), memoryModel.getRowCount() - 1);
+        if (row >= 0) {
+            memTable.scrollRectToVisible(memTable.getCellRect(row, 0, true));
+            memTable.setRowSelectionInterval(row, row);
+        }
+    }
+
+    /*
+     * Right-clicking the component offers to go to the previous or next
+     * write to the address under the mouse.
+     */
+    private void addWritePopup(JComponent component, ToIntFunction<MouseEvent> addressAt) {
+        component.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                showPopup(e);
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                showPopup(e);
+            }
+
+            private void showPopup(MouseEvent e) {
+                if (!e.isPopupTrigger() || timeline == null) {
+                    return;
+                }
+                int addr = addressAt.applyAsInt(e);
+                if (addr == NO_ADDRESS) {
+                    return;
+                }
+                JPopupMenu popup = new JPopupMenu();
+                popup.add("Go to previous write").addActionListener(ev -> gotoWrite(addr, -1, null));
+                popup.add("Go to next write").addActionListener(ev -> gotoWrite(addr, +1, null));
+                if (addr == State.ACCU) {
+                    popup.addSeparator();
+                    popup.add("Go to previous step making ACCU negative")
+                            .addActionListener(ev -> gotoWrite(addr, -1, BECOMES_NEGATIVE));
+                    popup.add("Go to next step making ACCU negative")
+                            .addActionListener(ev -> gotoWrite(addr, +1, BECOMES_NEGATIVE));
+                }
+                popup.show(e.getComponent(), e.getX(), e.getY());
+            }
+        });
+    }
+
+    /*
+     * Jump to the previous or next step writing the address. Forwards, only
+     * the recorded steps are searched here. Further steps are recorded and
+     * searched in the background.
+     */
+    private void gotoWrite(int addr, int direction, WriteFilter filter) {
+        if (timeline == null) {
+            return;
+        }
+        long current = timeline.getPosition();
+        long position = direction < 0 ?
+                timeline.previousWrite(addr, current, filter) :
+                timeline.nextWrite(addr, current, filter, timeline.countStates());
+        if (position >= 0) {
+            timeline.setPosition(position);
+        } else if (direction > 0 && timeline.canRecord()) {
+            if (recording == null) {
+                startRecording(new RecordingWorker(timeline,
+                        (searched, from, steps) -> searched.nextWrite(addr, from, filter, steps), current,
+                        () -> writeNotFound(direction)), "Searching ...");
+            }
+        } else {
+            writeNotFound(direction);
+        }
+    }
+
+    private void writeNotFound(int direction) {
+        JOptionPane.showMessageDialog(this,
+                direction < 0 ? "There is no such write before the current step." :
+                        "There is no such write after the current step.",
+                "Not found", JOptionPane.INFORMATION_MESSAGE);
+    }
+
     private Container makeButtonPanel() {
         JToolBar buttonPanel = new JToolBar();
         buttonPanel.setFloatable(false);
         buttonPanel.add(button("Menu", null, Codicons.MENU, this::showMenu, false));
         buttonPanel.addSeparator(new Dimension(50,0));
         buttonPanel.add(button("Go to initial state", null, Codicons.DEBUG_RESTART, this::gotoStart, false));
-        buttonPanel.add(button("Continue backwards until breakpoint",  KeyStroke.getKeyStroke("F5"), Codicons.DEBUG_REVERSE_CONTINUE, e -> continueToBreakpoint(-1), true));
+        buttonPanel.add(button("Continue backwards until breakpoint or watchpoint",  KeyStroke.getKeyStroke("F5"), Codicons.DEBUG_REVERSE_CONTINUE, e -> continueToBreakpoint(-1), true));
         buttonPanel.add(button("Step backwards",  KeyStroke.getKeyStroke("F6"), Codicons.DEBUG_STEP_BACK, e -> timeline.addToPosition(-1), true));
         buttonPanel.add(button("Step forwards",  KeyStroke.getKeyStroke("F8"), Codicons.DEBUG_STEP_OVER, e -> timeline.addToPosition(1), true));
-        buttonPanel.add(button("Continue forwards until breakpoint",  KeyStroke.getKeyStroke("F9"), Codicons.DEBUG_CONTINUE, e-> continueToBreakpoint(+1), true));
-        buttonPanel.add(button("Go to terminal state",  null, Codicons.DEBUG_START, e-> timeline.setPosition(timeline.countStates() - 1), true));
+        buttonPanel.add(button("Continue forwards until breakpoint or watchpoint",  KeyStroke.getKeyStroke("F9"), Codicons.DEBUG_CONTINUE, e-> continueToBreakpoint(+1), true));
+        buttonPanel.add(button("Go to terminal state",  null, Codicons.DEBUG_START, this::gotoEnd, true));
+
+        this.recordingPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        this.recordingProgress = new JProgressBar(0, 1000);
+        this.recordingLabel = new JLabel();
+        recordingPanel.add(recordingProgress);
+        recordingPanel.add(recordingLabel);
+        recordingPanel.add(button("Stop recording", null, Codicons.DEBUG_STOP, this::stopButton, false));
+        recordingPanel.setVisible(false);
+        buttonPanel.addSeparator(new Dimension(50,0));
+        buttonPanel.add(recordingPanel);
 
         return buttonPanel;
     }
 
     private void gotoStart(ActionEvent actionEvent) {
         if (timeline == null) {
-            loadString(code.getText());
+            loadString(code.getText(), false);
         } else {
             timeline.setPosition(0);
         }
@@ -313,6 +465,13 @@ public class GUI extends JFrame implements UpdateListener {
         popup.add("Save").addActionListener(this::saveLastFile);
         popup.add("Save As ...").addActionListener(this::saveAs);
         popup.addSeparator();
+        popup.add("Open trace ...").addActionListener(this::chooseTrace);
+        JMenuItem saveTrace = popup.add("Save trace as ...");
+        saveTrace.addActionListener(this::saveTraceAs);
+        saveTrace.setEnabled(timeline != null);
+        popup.addSeparator();
+        popup.add("Watchpoints ...").addActionListener(this::editWatchpoints);
+        popup.addSeparator();
         popup.add("Exit").addActionListener(ev -> {
             if(sureChangesLost()) System.exit(0);
         });
@@ -378,6 +537,64 @@ public class GUI extends JFrame implements UpdateListener {
         }
     }
 
+    private void chooseTrace(ActionEvent e) {
+        if(!sureChangesLost()) {
+            return;
+        }
+        JFileChooser jfc = new JFileChooser(".");
+        jfc.addChoosableFileFilter(TRACE_FILE_FILTER);
+        jfc.setFileFilter(TRACE_FILE_FILTER);
+        int result = jfc.showOpenDialog(this);
+        if (result == JFileChooser.APPROVE_OPTION) {
+            try {
+                Timeline loaded = TraceFile.load(jfc.getSelectedFile().toPath(), logger);
+                loading = null;
+                closeRecordedTimeline();
+                recordedTimeline = loaded;
+                this.lastFilename = null;
+                setTimeline(loaded);
+                modifiedSinceLoad = false;
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(this,
+                        ex.getMessage(),
+                        "Error while loading trace.", JOptionPane.ERROR_MESSAGE);
+                logger.logStacktrace(ex);
+            }
+        }
+    }
+
+    private void saveTraceAs(ActionEvent e) {
+        JFileChooser jfc = new JFileChooser(".");
+        jfc.addChoosableFileFilter(TRACE_FILE_FILTER);
+        jfc.setFileFilter(TRACE_FILE_FILTER);
+        int result = jfc.showSaveDialog(this);
+        if (result == JFileChooser.APPROVE_OPTION) {
+            String fileName = jfc.getSelectedFile().toString();
+            if (!fileName.endsWith(TraceFile.EXTENSION)) {
+                fileName += TraceFile.EXTENSION;
+            }
+            if (timeline.canRecord() && recording == null) {
+                // the trace is saved once all steps are recorded or the recording is stopped
+                RecordingWorker worker = new RecordingWorker(timeline);
+                worker.saveTo = Paths.get(fileName);
+                startRecording(worker, "Recording ...");
+            } else {
+                saveTrace(timeline, Paths.get(fileName));
+            }
+        }
+    }
+
+    private void saveTrace(Timeline saved, Path file) {
+        try {
+            TraceFile.save(saved, file);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this,
+                    ex.getMessage(),
+                    "Error while saving trace.", JOptionPane.ERROR_MESSAGE);
+            logger.logStacktrace(ex);
+        }
+    }
+
     private boolean sureChangesLost() {
         if (!modifiedSinceLoad) {
             return true;
@@ -389,62 +606,149 @@ public class GUI extends JFrame implements UpdateListener {
     }
 
     private void loadFile(String file) {
-        String content = null;
-        try {
-            content = Files.readString(Paths.get(file));
-            this.lastFilename = file;
-        } catch (IOException ex) {
-            JOptionPane.showMessageDialog(this,
-                    ex.getMessage(),
-                    "Error while loading file.", JOptionPane.ERROR_MESSAGE);
-            logger.logStacktrace(ex);
+        new SwingWorker<String, Void>() {
+            @Override
+            protected String doInBackground() throws IOException {
+                return Files.readString(Paths.get(file));
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    String content = get();
+                    lastFilename = file;
+                    loadString(content, true);
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(GUI.this,
+                            cause.getMessage(),
+                            "Error while loading file.", JOptionPane.ERROR_MESSAGE);
+                    logger.logStacktrace(ex);
+                }
+            }
+        }.execute();
+    }
+
+    /*
+     * Parse the program in the background. The currently shown timeline is
+     * kept until the new one is ready.
+     */
+    private void loadString(String content, boolean fromFile) {
+        loading = new LoadWorker(content, fromFile);
+        loading.execute();
+    }
+
+    /*
+     * Jump to the end of the timeline. Steps that have not been recorded so
+     * far are recorded in the background first.
+     */
+    private void gotoEnd(ActionEvent e) {
+        if (!timeline.canRecord()) {
+            timeline.setPosition(timeline.countStates() - 1);
+        } else if (recording == null) {
+            startRecording(new RecordingWorker(timeline), "Recording ...");
         }
-        loadString(content);
-        modifiedSinceLoad = false;
     }
 
-    private void loadString(String content) {
-        try {
-            Interpreter interpreter = new Interpreter();
-            interpreter.parseString(content);
-            timeline = interpreter.makeTimeline(logger, maxSteps, printRanges);
-            setTimeline(timeline);
+    private void startRecording(RecordingWorker worker, String label) {
+        recording = worker;
+        recordingProgress.setValue(0);
+        recordingLabel.setText(label);
+        recordingPanel.setVisible(true);
+        recording.execute();
+    }
 
-            if (timeline.countStates() == maxSteps) {
-                JOptionPane.showMessageDialog(this,
-                        new Object[] {
-                                "This timeline reaches the maximum number of steps.",
-                                "Perhaps an infinite loop? Consider using '-maxStep' to increase this bound." },
-                "Warning", JOptionPane.WARNING_MESSAGE);
-            }
+    // keeps the steps recorded so far
+    private void stopButton(ActionEvent e) {
+        if (recording != null) {
+            recording.stop();
+        }
+    }
 
-        } catch (ParseCancellationException parseCancel) {
-            JOptionPane.showMessageDialog(this,
-                    parseCancel.getCause().getMessage(),
-                    "Error while executing mima file.", JOptionPane.ERROR_MESSAGE);
-            logger.logStacktrace(parseCancel);
-        } catch(Exception ex) {
-            JOptionPane.showMessageDialog(this,
-                    ex.getMessage(),
-                    "Error while executing mima file.", JOptionPane.ERROR_MESSAGE);
+    private void reportError(Throwable ex) {
+        String message = ex instanceof ParseCancellationException ? ex.getCause().getMessage() : ex.getMessage();
+        JOptionPane.showMessageDialog(this,
+                message,
+                "Error while executing mima file.", JOptionPane.ERROR_MESSAGE);
+        logger.logStacktrace(ex instanceof Exception ? (Exception) ex : new RuntimeException(ex));
+    }
+
+    // the timeline is still referenced here after an edit has reset it
+    private void closeRecordedTimeline() {
+        if (recording != null) {
+            // the worker closes it once it has stopped writing to it
+            recording.stop();
+            recording.closeWhenStopped = true;
+            recording = null;
+            recordingPanel.setVisible(false);
+        } else if (recordedTimeline != null) {
+            closeTimeline(recordedTimeline);
+        }
+        recordedTimeline = null;
+    }
+
+    private void closeTimeline(Timeline timeline) {
+        try {
+            timeline.close();
+        } catch (IOException ex) {
             logger.logStacktrace(ex);
         }
+    }
 
+    /*
+     * Jump to the next or previous position at which the IAR points to a
+     * command with a breakpoint or which follows a step hitting a
+     * watchpoint, or to the first or last position if there is none.
+     * Forwards, only the recorded steps are searched here. Further steps are
+     * recorded and searched in the background.
+     */
+    private void continueToBreakpoint(int direction) {
+        int[] addresses = breakpointAddresses();
+        long current = timeline.getPosition();
+        if (direction < 0) {
+            long position = timeline.previousWatchpointHit(current);
+            if (addresses.length > 0) {
+                position = Math.max(position, timeline.previousIARPosition(addresses, current));
+            }
+            timeline.setPosition(Math.max(position, 0));
+            return;
+        }
+        long position = nextBreakpoint(timeline, addresses, current, timeline.countStates());
+        if (position >= 0) {
+            timeline.setPosition(position);
+        } else if (!timeline.canRecord()) {
+            timeline.setPosition(timeline.countStates());
+        } else if (recording == null) {
+            startRecording(new RecordingWorker(timeline,
+                    (searched, from, steps) -> nextBreakpoint(searched, addresses, from, steps), current, null),
+                    "Searching ...");
+        }
     }
 
-    private void continueToBreakpoint(int offset) {
-        int pos;
-        do {
-            timeline.addToPosition(offset);
-            Command command = timeline.findIARCommand();
-            if (command != null) {
-                int line = command.getMnemonicLine();
-                if(breakpointManager.hasBreakpoint(this, line - 1)) {
-                    break;
-                }
+    /*
+     * The next position after the given one at which the IAR is at one of
+     * the addresses or which follows a step hitting a watchpoint, -1 if
+     * there is none within the given number of steps.
+     */
+    private static long nextBreakpoint(Timeline timeline, int[] addresses, long position, long steps) {
+        long result = timeline.nextWatchpointHit(position, steps);
+        if (addresses.length > 0) {
+            long breakpoint = timeline.nextIARPosition(addresses, position, steps);
+            if (result < 0 || breakpoint >= 0 && breakpoint < result) {
+                result = breakpoint;
             }
-            pos = timeline.getPosition();
-        } while(pos > 0 && pos < timeline.countStates());
+        }
+        return result;
+    }
+
+    // the addresses whose command, as found by findIARCommand, has a breakpoint
+    private int[] breakpointAddresses() {
+        SymbolTable symbols = timeline.getSymbols();
+        return breakpointManager.getBreakpoints(this).stream()
+                .mapToInt(line -> symbols.getAddressOfLine(line + 1))
+                .filter(addr -> addr != SymbolTable.NO_ADDRESS)
+                .filter(addr -> breakpointManager.hasBreakpoint(this, symbols.getCommand(addr).getMnemonicLine() - 1))
+                .toArray();
     }
 
     private JButton button(String text, KeyStroke keyStroke, Ikon ikon, ActionListener listener, boolean needsProgram) {
@@ -468,33 +772,215 @@ public class GUI extends JFrame implements UpdateListener {
         return res;
     }
 
+    private void updateStepLabel() {
+        stepLabel.setText(String.format(STEP_LABEL_PATTERN, timeline.getPosition(), timeline.countStates(),
+                timeline.isComplete() ? "" : "+"));
+    }
+
     @Override
-    public void memoryChanged(int addr, int val) {
-        switch(addr) {
-            case Timeline.STEP:
-                stepLabel.setText(String.format(STEP_LABEL_PATTERN, val, timeline.countStates()));
-                return;
-            case State.ACCU:
-                accuField.setText(formatValue(val));
-                return;
-            case State.IAR:
-                iarField.setText(formatValue(val));
-                nextInstruction.setText(State.toInstruction(timeline.get(val)));
-                code.removeHighlights();
-                Command command = timeline.findIARCommand();
-                if (command != null) {
-                    int line = command.getMnemonicLine();
-                    code.addHighlight(line - 1);
+    public void timelineChanged(ChangeSet changes) {
+        memoryModel.timelineChanged(changes);
+        showRegisters();
+    }
+
+    private void showRegisters() {
+        updateStepLabel();
+        accuField.setText(formatValue(timeline.get(State.ACCU)));
+        int iar = timeline.get(State.IAR);
+        iarField.setText(formatValue(iar));
+        nextInstruction.setText(State.toInstruction(timeline.get(iar)));
+        code.removeHighlights();
+        Command command = timeline.findIARCommand();
+        if (command != null) {
+            int line = command.getMnemonicLine();
+            code.addHighlight(line - 1);
+        }
+    }
+
+    /**
+     * Parses a program and creates its timeline, which is recorded on
+     * demand.
+     */
+    private class LoadWorker extends SwingWorker<Timeline, Void> {
+        private final String content;
+        private final boolean fromFile;
+
+        LoadWorker(String content, boolean fromFile) {
+            this.content = content;
+            this.fromFile = fromFile;
+        }
+
+        @Override
+        protected Timeline doInBackground() {
+            Interpreter interpreter = new Interpreter();
+            interpreter.parseString(content);
+            return interpreter.makeLazyTimeline(logger, maxSteps, printRanges);
+        }
+
+        @Override
+        protected void done() {
+            try {
+                Timeline loaded = get();
+                if (loading != this) {
+                    // superseded by a later load
+                    closeTimeline(loaded);
+                    return;
+                }
+                closeRecordedTimeline();
+                recordedTimeline = loaded;
+                setTimeline(loaded);
+                if (fromFile) {
+                    modifiedSinceLoad = false;
+                }
+            } catch (ExecutionException ex) {
+                if (loading == this) {
+                    reportError(ex.getCause());
+                }
+            } catch (InterruptedException ex) {
+                reportError(ex);
+            } finally {
+                if (loading == this) {
+                    loading = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches forwards from a position within the given number of steps,
+     * recording further steps as needed.
+     */
+    @FunctionalInterface
+    private interface ForwardSearch {
+        /**
+         * @return the position found, -1 if there is none within the steps
+         */
+        long next(Timeline timeline, long position, long steps);
+    }
+
+    /**
+     * Records the remaining steps of a timeline and jumps to its end, or to
+     * the position found if it searches for one. Progress is reported in
+     * the recording panel, the timeline can be used meanwhile.
+     */
+    private class RecordingWorker extends SwingWorker<Long, Long> implements RecordingMonitor {
+        private final Timeline recorded;
+        // null to record all steps
+        private final ForwardSearch search;
+        private final long searchFrom;
+        // run if the search finds nothing, null to jump to the end
+        private final Runnable notFound;
+        private final long startTime = System.nanoTime();
+        private volatile boolean stopped;
+        // only accessed on the event dispatch thread
+        private boolean closeWhenStopped;
+        // the file the trace is saved to once recorded, null for none
+        private Path saveTo;
+
+        RecordingWorker(Timeline recorded) {
+            this(recorded, null, 0, null);
+        }
+
+        RecordingWorker(Timeline recorded, ForwardSearch search, long searchFrom, Runnable notFound) {
+            this.recorded = recorded;
+            this.search = search;
+            this.searchFrom = searchFrom;
+            this.notFound = notFound;
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        @Override
+        protected Long doInBackground() {
+            if (search == null) {
+                recorded.recordAll(this);
+                return -1L;
+            }
+            long position = searchFrom;
+            while (progress(recorded.countStates())) {
+                // steps recorded meanwhile by others are searched again
+                long steps = recorded.countStates();
+                boolean recordable = recorded.canRecord();
+                long found = search.next(recorded, position, steps + SEARCH_BATCH);
+                if (found >= 0 || !recordable) {
+                    return found;
                 }
+                position = steps;
+            }
+            return -1L;
+        }
+
+        @Override
+        public boolean progress(long steps) {
+            publish(steps);
+            return !stopped;
+        }
+
+        @Override
+        protected void process(List<Long> chunks) {
+            if (recording != this) {
                 return;
+            }
+            long steps = chunks.get(chunks.size() - 1);
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            recordingProgress.setValue((int) (steps * 1000 / maxSteps));
+            recordingLabel.setText(String.format("Recorded %,d steps (%,.0f steps/s)", steps, steps / seconds));
+            if (timeline == recorded) {
+                updateStepLabel();
+            }
         }
 
-        int page = addr >> 12;
-        if (page != (Integer) pageSpinner.getValue()) {
-            return;
+        @Override
+        protected void done() {
+            if (closeWhenStopped) {
+                closeTimeline(recorded);
+                return;
+            }
+            recording = null;
+            recordingPanel.setVisible(false);
+            long found = -1;
+            try {
+                found = get();
+            } catch (ExecutionException ex) {
+                reportError(ex.getCause());
+            } catch (InterruptedException ex) {
+                reportError(ex);
+            }
+            if (saveTo != null) {
+                // a stopped recording is saved as incomplete trace
+                saveTrace(recorded, saveTo);
+            }
+            if (timeline != recorded) {
+                return;
+            }
+            updateStepLabel();
+            if (stopped) {
+                return;
+            }
+            if (found >= 0) {
+                recorded.setPosition(found);
+            } else if (notFound != null) {
+                if (!recorded.canRecord()) {
+                    notFound.run();
+                }
+            } else if (!recorded.canRecord()) {
+                recorded.setPosition(recorded.countStates() - 1);
+                if (recorded.getCycle() != null) {
+                    JOptionPane.showMessageDialog(GUI.this,
+                            new Object[] {
+                                    "This program does not terminate:",
+                                    recorded.getCycle() + "." },
+                            "Infinite loop", JOptionPane.WARNING_MESSAGE);
+                } else if (recorded.countStates() == maxSteps) {
+                    JOptionPane.showMessageDialog(GUI.this,
+                            new Object[] {
+                                    "This timeline reaches the maximum number of steps.",
+                                    "Perhaps an infinite loop? Consider using '-maxStep' to increase this bound." },
+                            "Warning", JOptionPane.WARNING_MESSAGE);
+                }
+            }
         }
-        addr &= ROW_COUNT-1;
-        tableModel.setValueAt(formatValue(val), addr, 1);
-        tableModel.setValueAt(State.toInstruction(val), addr, 2);
     }
 }
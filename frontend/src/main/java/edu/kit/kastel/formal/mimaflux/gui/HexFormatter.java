@@ -14,6 +14,8 @@
  */
 package edu.kit.kastel.formal.mimaflux.gui;
 
+import edu.kit.kastel.formal.mimaflux.capacitor.Constants;
+
 import javax.swing.JFormattedTextField.AbstractFormatter;
 import javax.swing.text.DefaultFormatter;
 import javax.swing.text.DefaultFormatterFactory;
@@ -33,7 +35,7 @@ class HexFormatter extends DefaultFormatter {
     public Object stringToValue(String text) throws ParseException {
         try {
             int result = Integer.valueOf(text, 16);
-            return result & 0xff;
+            return result & Constants.ADDRESS_MASK;
         } catch (NumberFormatException nfe) {
             throw new ParseException(text, 0);
         }
@@ -41,6 +43,6 @@ class HexFormatter extends DefaultFormatter {
 
     @Override
     public String valueToString(Object value) {
-        return String.format("%02X", value);
+        return String.format("%05X", value);
     }
 }
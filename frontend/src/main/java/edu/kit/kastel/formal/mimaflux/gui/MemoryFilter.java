@@ -0,0 +1,33 @@
+package edu.kit.kastel.formal.mimaflux.gui;
+
+/**
+ * Options for the addresses shown in the memory table.
+ */
+public enum MemoryFilter {
+
+    /**
+     * All addresses
+     */
+    ALL("All addresses"),
+
+    /**
+     * Addresses holding a value other than 0
+     */
+    NON_ZERO("Non-zero"),
+
+    /**
+     * Addresses with a label
+     */
+    LABELLED("Labelled");
+
+    private final String label;
+
+    MemoryFilter(String label) {
+        this.label = label;
+    }
+
+    @Override
+    public String toString() {
+        return this.label;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.gui;
+
+import edu.kit.kastel.formal.mimaflux.capacitor.ChangeSet;
+import edu.kit.kastel.formal.mimaflux.capacitor.Constants;
+import edu.kit.kastel.formal.mimaflux.capacitor.State;
+import edu.kit.kastel.formal.mimaflux.capacitor.Timeline;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.IntFunction;
+
+/**
+ * Table model of the memory of a timeline: one row per address, or per
+ * address passing a {@link MemoryFilter}.
+ *
+ * Cells are formatted when they are requested, the formatted strings are
+ * cached per {@link RepreState}. The addresses of the filters are kept in
+ * {@link AddressSet}s, the non-zero addresses are updated with every
+ * change of the timeline.
+ */
+class MemoryTableModel extends AbstractTableModel {
+
+    private static final String[] COLUMN_NAMES = { "Address", "Value", "Instruction" };
+
+    private Timeline timeline;
+    private RepreState repreState = RepreState.HEX;
+    private MemoryFilter filter = MemoryFilter.ALL;
+
+    private final AddressSet nonZero = new AddressSet();
+    private final AddressSet labelled = new AddressSet();
+
+    private final FormatCache addressCache = new FormatCache(this::formatAddress);
+    private final Map<RepreState, FormatCache> valueCaches = new EnumMap<>(RepreState.class);
+    private final FormatCache instructionCache = new FormatCache(State::toInstruction);
+
+    MemoryTableModel() {
+        for (RepreState state : RepreState.values()) {
+            valueCaches.put(state, new FormatCache(state::format));
+        }
+    }
+
+    void setTimeline(Timeline timeline) {
+        this.timeline = timeline;
+        addressCache.clear();
+
+        nonZero.clear();
+        for (int addr = 0; addr < Constants.ADDRESS_RANGE; addr++) {
+            if (timeline.get(addr) != 0) {
+                nonZero.addUnindexed(addr);
+            }
+        }
+        nonZero.reindex();
+
+        labelled.clear();
+        for (Entry<String, Integer> entry : timeline.getLabelMap().entrySet()) {
+            if (Constants.isAddress(entry.getValue())) {
+                labelled.addUnindexed(entry.getValue());
+            }
+        }
+        labelled.reindex();
+        fireTableDataChanged();
+    }
+
+    void setRepreState(RepreState repreState) {
+        this.repreState = repreState;
+        if (getRowCount() > 0) {
+            fireTableRowsUpdated(0, getRowCount() - 1);
+        }
+    }
+
+    void setFilter(MemoryFilter filter) {
+        this.filter = filter;
+        fireTableDataChanged();
+    }
+
+    /**
+     * Update the values and the non-zero addresses. A single table event is
+     * fired for all changes.
+     */
+    void timelineChanged(ChangeSet changes) {
+        boolean rowsChanged = false;
+        int firstRow = Integer.MAX_VALUE;
+        int lastRow = -1;
+        for (int i = 0; i < changes.size(); i++) {
+            int addr = changes.getAddress(i);
+            boolean zero = changes.getValue(i) == 0;
+            if (zero == nonZero.contains(addr)) {
+                if (zero) {
+                    nonZero.remove(addr);
+                } else {
+                    nonZero.add(addr);
+                }
+                rowsChanged |= filter == MemoryFilter.NON_ZERO;
+            }
+            int row = getRow(addr);
+            if (row >= 0) {
+                firstRow = Math.min(firstRow, row);
+                lastRow = Math.max(lastRow, row);
+            }
+        }
+        if (rowsChanged) {
+            fireTableDataChanged();
+        } else if (lastRow >= 0) {
+            fireTableRowsUpdated(firstRow, lastRow);
+        }
+    }
+
+    /**
+     * @return the address shown in the row
+     */
+    int getAddress(int row) {
+        switch (filter) {
+            case NON_ZERO:
+                return nonZero.get(row);
+            case LABELLED:
+                return labelled.get(row);
+            default:
+                return row;
+        }
+    }
+
+    /**
+     * @return the row of the address, -1 if it is not shown
+     */
+    int getRow(int addr) {
+        AddressSet set = filterSet();
+        if (set == null) {
+            return addr;
+        }
+        return set.contains(addr) ? set.indexOf(addr) : -1;
+    }
+
+    /**
+     * @return the row of the first address shown at or after the given one,
+     * the row count if there is none
+     */
+    int getRowAtOrAfter(int addr) {
+        AddressSet set = filterSet();
+        return set == null ? addr : set.indexOf(addr);
+    }
+
+    private AddressSet filterSet() {
+        switch (filter) {
+            case NON_ZERO:
+                return nonZero;
+            case LABELLED:
+                return labelled;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        if (timeline == null) {
+            return 0;
+        }
+        AddressSet set = filterSet();
+        return set == null ? Constants.ADDRESS_RANGE : set.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int addr = getAddress(row);
+        switch (column) {
+            case 0:
+                return addressCache.get(addr);
+            case 1:
+                return valueCaches.get(repreState).get(timeline.get(addr));
+            default:
+                return instructionCache.get(timeline.get(addr));
+        }
+    }
+
+    private String formatAddress(int addr) {
+        String name = timeline.getNameFor(addr);
+        return name == null ? String.format("0x%05x", addr) : String.format("0x%05x (%s)", addr, name);
+    }
+
+    /*
+     * Direct-mapped cache of formatted strings. A slot holds the string of
+     * the key last formatted into it.
+     */
+    private static final class FormatCache {
+        private static final int BITS = 12;
+
+        private final IntFunction<String> format;
+        private final int[] keys = new int[1 << BITS];
+        private final String[] strings = new String[1 << BITS];
+
+        FormatCache(IntFunction<String> format) {
+            this.format = format;
+        }
+
+        String get(int key) {
+            int slot = (key * 0x9e3779b9) >>> (32 - BITS);
+            String result = strings[slot];
+            if (result == null || keys[slot] != key) {
+                result = format.apply(key);
+                keys[slot] = key;
+                strings[slot] = result;
+            }
+            return result;
+        }
+
+        void clear() {
+            Arrays.fill(strings, null);
+        }
+    }
+}
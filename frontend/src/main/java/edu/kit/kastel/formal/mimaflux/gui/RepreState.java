@@ -30,4 +30,27 @@ public enum RepreState {
     public String toString() {
         return this.label;
     }
+
+    /**
+     * Format a 24 bit value in this representation.
+     */
+    public String format(int val) {
+        switch (this) {
+            case BIN:
+                char[] res = new char[24 + 5];
+                for (int p = res.length-1, i = 0; i < 24; i++, p--) {
+                    res[p] = (val & (1 << i)) == 0 ? '0' : '1';
+                    if (i % 4 == 3 && i < 23) {
+                        res[--p] = '\u2009';
+                    }
+                }
+                return new String(res);
+            case DEC:
+                return String.format("%d", val);
+            case HEX:
+                return String.format("0x%06x", val);
+            default:
+                return "";
+        }
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * This file is part of the tool MimaFlux.
+ * https://github.com/mattulbrich/mimaflux
+ *
+ * MimaFlux is a time travel debugger for the Minimal Machine
+ * used in Informatics teaching at a number of schools.
+ *
+ * The system is protected by the GNU General Public License Version 3.
+ * See the file LICENSE in the main directory of the project.
+ *
+ * (c) 2016-2022 Karlsruhe Institute of Technology
+ *
+ * Adapted for Mima by Mattias Ulbrich
+ */
+package edu.kit.kastel.formal.mimaflux.gui;
+
+import edu.kit.kastel.formal.mimaflux.capacitor.Constants;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The ranks of an {@link AddressSet} compared with a {@link TreeSet} after
+ * random changes.
+ */
+public class AddressSetTest {
+
+    // word boundaries and the ends of the address space
+    private static final List<Integer> EDGES = List.of(0, 1, 62, 63, 64, 65, 127, 128,
+            Constants.ADDRESS_RANGE - 65, Constants.ADDRESS_RANGE - 64, Constants.ADDRESS_RANGE - 2,
+            Constants.ADDRESS_RANGE - 1);
+
+    @Test
+    public void addAndRemove() {
+        Random random = new Random(42);
+        AddressSet set = new AddressSet();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 50; i++) {
+                int addr = randomAddress(random);
+                if (random.nextInt(3) == 0) {
+                    set.remove(addr);
+                    expected.remove(addr);
+                } else {
+                    set.add(addr);
+                    expected.add(addr);
+                }
+            }
+            assertSameSet(expected, set, random);
+        }
+        for (int addr : EDGES) {
+            set.remove(addr);
+            expected.remove(addr);
+        }
+        assertSameSet(expected, set, random);
+        set.clear();
+        expected.clear();
+        assertSameSet(expected, set, random);
+    }
+
+    @Test
+    public void addUnindexed() {
+        Random random = new Random(7);
+        AddressSet set = new AddressSet();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 500; i++) {
+                int addr = randomAddress(random);
+                set.addUnindexed(addr);
+                expected.add(addr);
+            }
+            set.reindex();
+            assertSameSet(expected, set, random);
+        }
+        // all addresses of the first words and of the last word
+        for (int addr = 0; addr < 192; addr++) {
+            set.addUnindexed(addr);
+            expected.add(addr);
+        }
+        for (int addr = Constants.ADDRESS_RANGE - 64; addr < Constants.ADDRESS_RANGE; addr++) {
+            set.addUnindexed(addr);
+            expected.add(addr);
+        }
+        set.reindex();
+        assertSameSet(expected, set, random);
+    }
+
+    // mostly near the edges, so that words fill up and empty again
+    private static int randomAddress(Random random) {
+        return switch (random.nextInt(4)) {
+            case 0 -> EDGES.get(random.nextInt(EDGES.size()));
+            case 1 -> random.nextInt(256);
+            case 2 -> Constants.ADDRESS_RANGE - 1 - random.nextInt(256);
+            default -> random.nextInt(Constants.ADDRESS_RANGE);
+        };
+    }
+
+    private static void assertSameSet(TreeSet<Integer> expected, AddressSet set, Random random) {
+        assertEquals(expected.size(), set.size());
+        int index = 0;
+        for (int addr : expected) {
+            assertEquals(addr, set.get(index), "get(" + index + ")");
+            assertEquals(index, set.indexOf(addr), "indexOf(" + addr + ")");
+            index++;
+        }
+        for (int i = 0; i < 100; i++) {
+            int addr = randomAddress(random);
+            assertEquals(expected.contains(addr), set.contains(addr), "contains(" + addr + ")");
+            assertEquals(expected.headSet(addr).size(), set.indexOf(addr), "indexOf(" + addr + ")");
+        }
+    }
+}
@@ -9,3 +9,4 @@ pluginManagement {
 }
 include("frontend")
 include("backend")
+include("benchmarks")